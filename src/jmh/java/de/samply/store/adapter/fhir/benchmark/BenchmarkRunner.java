@@ -0,0 +1,79 @@
+package de.samply.store.adapter.fhir.benchmark;
+
+import java.util.Collection;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler and prints a summary per patient.
+ *
+ * <p>Run it with {@code mvn -Pbenchmark test-compile exec:exec}. JMH command line options can be
+ * passed with {@code -Dbenchmark.args="-p patients=50 -i 1"}. The summary reports the throughput
+ * in patients per second, the 50th and 99th percentile of the latency per page and the bytes
+ * allocated per patient.
+ */
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args JMH command line options, possibly in one whitespace separated argument
+   * @throws CommandLineOptionException if the options are invalid
+   * @throws RunnerException            if a benchmark fails
+   */
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    var options = new OptionsBuilder()
+        .parent(new CommandLineOptions(splitArgs(args)))
+        .include(MappingBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build();
+    printSummary(new Runner(options).run());
+  }
+
+  private static String[] splitArgs(String[] args) {
+    var joined = String.join(" ", args).trim();
+    return joined.isEmpty() ? new String[0] : joined.split("\\s+");
+  }
+
+  private static void printSummary(Collection<RunResult> results) {
+    System.out.printf("%n%-80s %14s %12s %12s %16s%n", "params", "patients/s", "p50 ms/page",
+        "p99 ms/page", "bytes/patient");
+    for (var result : results) {
+      var params = result.getParams();
+      var patients = Integer.parseInt(params.getParam("patients"));
+      var primary = result.getPrimaryResult();
+      var description = params.getParamsKeys().stream()
+          .map(key -> key + "=" + params.getParam(key))
+          .reduce((a, b) -> a + " " + b)
+          .orElse("");
+      switch (params.getMode()) {
+        case Throughput -> System.out.printf("%-80s %14.0f %12s %12s %16.0f%n", description,
+            primary.getScore() * 1000 * patients, "", "",
+            allocatedBytes(result) / patients);
+        case SampleTime -> System.out.printf("%-80s %14s %12.3f %12.3f %16s%n", description, "",
+            primary.getStatistics().getPercentile(50), primary.getStatistics().getPercentile(99),
+            "");
+        default -> {
+        }
+      }
+    }
+  }
+
+  private static double allocatedBytes(RunResult result) {
+    return result.getSecondaryResults().entrySet().stream()
+        .filter(e -> e.getKey().endsWith("gc.alloc.rate.norm"))
+        .map(e -> e.getValue())
+        .mapToDouble(Result::getScore)
+        .findFirst()
+        .orElse(Double.NaN);
+  }
+}
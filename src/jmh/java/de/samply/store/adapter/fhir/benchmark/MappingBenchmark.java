@@ -0,0 +1,86 @@
+package de.samply.store.adapter.fhir.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.StoreFhirAdapterApplication;
+import de.samply.store.adapter.fhir.model.RootNodeBuilder;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan;
+import de.samply.store.adapter.fhir.service.mapping.QueryResultMapping;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator.Shape;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks building the root node of a page and mapping its patients, the CPU bound part of
+ * serving a result page.
+ *
+ * <p>One operation is one page of synthetic patients. The {@link BenchmarkRunner} normalizes the
+ * results per patient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class MappingBenchmark {
+
+  private static final long SEED = 20211115;
+
+  @Param({"50", "200"})
+  public int patients;
+
+  @Param({"2"})
+  public int conditions;
+
+  @Param({"2", "6"})
+  public int observations;
+
+  @Param({"1"})
+  public int clinicalImpressions;
+
+  @Param({"2"})
+  public int procedures;
+
+  private Bundle bundle;
+  private Function<Map<String, Resource>, QueryResultMapping> mappingFactory;
+
+  /**
+   * Generates the page and creates the mapping factory the same way the application does.
+   */
+  @Setup(Level.Trial)
+  public void setUp() {
+    var shape = new Shape(conditions, observations, clinicalImpressions, procedures, 1);
+    bundle = new SyntheticDataGenerator(SEED, shape).bundle(0, patients);
+    var fhirContext = FhirContext.forR4();
+    mappingFactory = new StoreFhirAdapterApplication().mappingServiceFactory(fhirContext,
+        MappingPlan.standard(fhirContext));
+  }
+
+  /**
+   * Builds the root node of the page and maps all of its patients.
+   *
+   * @return the query result, so that it isn't eliminated
+   */
+  @Benchmark
+  public QueryResult buildAndMap() {
+    var rootNode = RootNodeBuilder.fromBundle(bundle);
+    return mappingFactory.apply(rootNode.resources()).map(rootNode.patients());
+  }
+}
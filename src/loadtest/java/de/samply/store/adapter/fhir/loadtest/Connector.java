@@ -0,0 +1,143 @@
+package de.samply.store.adapter.fhir.loadtest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.share.model.common.QueryResultStatistic;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.bind.JAXB;
+
+/**
+ * A simulated Samply connector driving the REST API of the adapter.
+ *
+ * <p>Like the connector, it posts a request, polls its statistics until they are available and
+ * then fetches the result pages one after another.
+ */
+class Connector {
+
+  private static final String QUERY = "<query/>";
+  private static final Duration POLL_INTERVAL = Duration.ofMillis(100);
+  private static final int MAX_POLLS = 600;
+
+  private final HttpClient client;
+  private final URI target;
+  private final Integer pageSize;
+  private final Timer pageLatency;
+  private final Counter errors;
+  private final Counter calls;
+  private final AtomicLong patients;
+
+  /**
+   * Creates a new {@code Connector}.
+   *
+   * @param client      the HTTP client shared by all connectors
+   * @param target      the base URL of the adapter
+   * @param pageSize    the page size to request or {@code null} to let the adapter choose
+   * @param pageLatency the timer to record the latency of every page fetch in
+   * @param errors      the counter of failed calls
+   * @param calls       the counter of all calls
+   * @param patients    the number of patients fetched
+   */
+  Connector(HttpClient client, URI target, Integer pageSize, Timer pageLatency, Counter errors,
+      Counter calls, AtomicLong patients) {
+    this.client = client;
+    this.target = target;
+    this.pageSize = pageSize;
+    this.pageLatency = pageLatency;
+    this.errors = errors;
+    this.calls = calls;
+    this.patients = patients;
+  }
+
+  /**
+   * Runs one request from posting it to fetching its last page.
+   *
+   * <p>Failures are counted and end the request, but never throw.
+   */
+  void runRequest() {
+    try {
+      var id = createRequest();
+      if (id.isEmpty()) {
+        return;
+      }
+      var stats = pollStats(id.get());
+      if (stats.isPresent()) {
+        fetchPages(id.get(), stats.get().getNumberOfPages());
+      }
+    } catch (IOException e) {
+      errors.increment();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Optional<String> createRequest() throws IOException, InterruptedException {
+    var uri = target.resolve("rest/teiler/requests"
+        + (pageSize == null ? "" : "?pageSize=" + pageSize));
+    var response = send(HttpRequest.newBuilder(uri)
+        .header("Content-Type", "application/xml")
+        .POST(BodyPublishers.ofString(QUERY)).build());
+    if (response.statusCode() != 201) {
+      return Optional.empty();
+    }
+    return response.headers().firstValue("Location")
+        .map(location -> location.substring(location.lastIndexOf('/') + 1));
+  }
+
+  private Optional<QueryResultStatistic> pollStats(String id)
+      throws IOException, InterruptedException {
+    var request = HttpRequest.newBuilder(target.resolve("rest/teiler/requests/" + id + "/stats"))
+        .header("Accept", "application/xml").build();
+    for (int poll = 0; poll < MAX_POLLS; poll++) {
+      var response = client.send(request, BodyHandlers.ofString(UTF_8));
+      calls.increment();
+      if (response.statusCode() == 200) {
+        return Optional.of(JAXB.unmarshal(new StringReader(response.body()),
+            QueryResultStatistic.class));
+      } else if (response.statusCode() != 404) {
+        errors.increment();
+        return Optional.empty();
+      }
+      Thread.sleep(POLL_INTERVAL.toMillis());
+    }
+    errors.increment();
+    return Optional.empty();
+  }
+
+  private void fetchPages(String id, int numberOfPages) throws IOException, InterruptedException {
+    for (int page = 0; page < numberOfPages; page++) {
+      var request = HttpRequest.newBuilder(target.resolve("rest/teiler/requests/" + id
+          + "/result?page=" + page)).header("Accept", "application/xml").build();
+      var start = System.nanoTime();
+      var response = send(request);
+      if (response.statusCode() != 200) {
+        return;
+      }
+      pageLatency.record(Duration.ofNanos(System.nanoTime() - start));
+      patients.addAndGet(JAXB.unmarshal(new StringReader(response.body()), QueryResult.class)
+          .getPatient().size());
+    }
+  }
+
+  private HttpResponse<String> send(HttpRequest request) throws IOException,
+      InterruptedException {
+    var response = client.send(request, BodyHandlers.ofString(UTF_8));
+    calls.increment();
+    if (response.statusCode() >= 300) {
+      errors.increment();
+    }
+    return response;
+  }
+}
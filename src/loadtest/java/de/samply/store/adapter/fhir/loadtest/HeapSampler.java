@@ -0,0 +1,54 @@
+package de.samply.store.adapter.fhir.loadtest;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Samples the used heap periodically and keeps its high-water mark.
+ *
+ * <p>Sampling misses peaks between two samples, but unlike the peak usage of the memory pools, it
+ * works for a remote adapter and it doesn't sum up the peaks of pools reached at different times.
+ */
+class HeapSampler implements AutoCloseable {
+
+  private final LongSupplier usedHeap;
+  private final AtomicLong highWaterMark = new AtomicLong();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * Creates a new {@code HeapSampler} and starts sampling.
+   *
+   * @param usedHeap       the supplier of the used heap in bytes, returning a negative value if
+   *                       it's not available
+   * @param intervalMillis the interval between two samples in milliseconds
+   */
+  HeapSampler(LongSupplier usedHeap, long intervalMillis) {
+    this.usedHeap = usedHeap;
+    executor.scheduleAtFixedRate(this::sample, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void sample() {
+    try {
+      highWaterMark.accumulateAndGet(usedHeap.getAsLong(), Math::max);
+    } catch (RuntimeException e) {
+      // a failed sample should not stop the sampling
+    }
+  }
+
+  /**
+   * Returns the maximum used heap sampled so far.
+   *
+   * @return the high-water mark in bytes
+   */
+  long highWaterMark() {
+    return highWaterMark.get();
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,192 @@
+package de.samply.store.adapter.fhir.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.samply.store.adapter.fhir.StoreFhirAdapterApplication;
+import de.samply.store.adapter.fhir.synthetic.StubFhirServer;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator.Shape;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Drives the REST API of the adapter with many concurrent simulated connectors and reports the
+ * sustained throughput in patients per second, the 50th and 99th percentile of the page latency,
+ * the error rate and the heap high-water mark.
+ *
+ * <p>Run it with {@code mvn -Ploadtest test-compile exec:exec}. Options are passed as {@code
+ * name=value} pairs in {@code -Dloadtest.args="connectors=32 requests=4"}:
+ *
+ * <ul>
+ *   <li>{@code connectors} the number of concurrent connectors, 16 by default
+ *   <li>{@code requests} the number of requests every connector runs, 4 by default
+ *   <li>{@code warmup} the number of requests run by a single connector before measuring, 2 by
+ *   default
+ *   <li>{@code patients} the number of patients served by the stub FHIR server, 1000 by default
+ *   <li>{@code page-size} the page size the connectors request, chosen by the adapter by default
+ *   <li>{@code target} the base URL of an already running adapter
+ * </ul>
+ *
+ * <p>Without {@code target}, a {@link StubFhirServer} and the adapter are started in this JVM, so
+ * the heap high-water mark also contains the stub server and the connectors. With {@code target},
+ * the heap is sampled from the metrics endpoint of the remote adapter.
+ */
+public final class LoadTest {
+
+  private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 100;
+
+  private LoadTest() {
+  }
+
+  /**
+   * Runs the load test.
+   *
+   * @param args options as {@code name=value} pairs, possibly in one whitespace separated argument
+   * @throws IOException          if the stub server can't be started
+   * @throws InterruptedException if interrupted while waiting for the connectors
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    var options = parseArgs(args);
+    var connectors = Integer.parseInt(options.getOrDefault("connectors", "16"));
+    var requests = Integer.parseInt(options.getOrDefault("requests", "4"));
+    var warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+    var patients = Integer.parseInt(options.getOrDefault("patients", "1000"));
+    var pageSize = options.containsKey("page-size")
+        ? Integer.valueOf(options.get("page-size")) : null;
+
+    var client = HttpClient.newBuilder()
+        .executor(Executors.newFixedThreadPool(connectors))
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+
+    if (options.containsKey("target")) {
+      var target = URI.create(options.get("target").replaceAll("/?$", "/"));
+      run(client, target, pageSize, connectors, requests, warmup, remoteHeap(client, target));
+      System.exit(0);
+    }
+
+    try (var server = new StubFhirServer(new SyntheticDataGenerator(1, Shape.TYPICAL), patients,
+        connectors); var context = startAdapter(server.baseUrl())) {
+      var target = URI.create("http://localhost:"
+          + context.getEnvironment().getProperty("local.server.port") + "/");
+      run(client, target, pageSize, connectors, requests, warmup,
+          () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+    System.exit(0);
+  }
+
+  private static void run(HttpClient client, URI target, Integer pageSize, int connectors,
+      int requests, int warmup, LongSupplier usedHeap) throws InterruptedException {
+    var registry = new SimpleMeterRegistry();
+    var pageLatency = Timer.builder("loadtest.page.latency")
+        .publishPercentiles(0.5, 0.99)
+        .register(registry);
+    var errors = Counter.builder("loadtest.errors").register(registry);
+    var calls = Counter.builder("loadtest.calls").register(registry);
+    var patients = new AtomicLong();
+
+    var warmupConnector = new Connector(client, target, pageSize,
+        Timer.builder("loadtest.warmup").register(registry), errors, calls, new AtomicLong());
+    for (int i = 0; i < warmup; i++) {
+      warmupConnector.runRequest();
+    }
+    var warmupErrors = errors.count();
+    var warmupCalls = calls.count();
+
+    var executor = Executors.newFixedThreadPool(connectors);
+    try (var heap = new HeapSampler(usedHeap, HEAP_SAMPLE_INTERVAL_MILLIS)) {
+      var start = System.nanoTime();
+      var futures = IntStream.range(0, connectors)
+          .mapToObj(i -> new Connector(client, target, pageSize, pageLatency, errors, calls,
+              patients))
+          .map(connector -> CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < requests; i++) {
+              connector.runRequest();
+            }
+          }, executor))
+          .toArray(CompletableFuture[]::new);
+      CompletableFuture.allOf(futures).join();
+      var seconds = (System.nanoTime() - start) / 1e9;
+
+      var snapshot = pageLatency.takeSnapshot();
+      var percentiles = snapshot.percentileValues();
+      System.out.printf("%nconnectors=%d requests=%d target=%s%n", connectors, requests, target);
+      System.out.printf("%-24s %12.1f%n", "duration s", seconds);
+      System.out.printf("%-24s %12d%n", "patients", patients.get());
+      System.out.printf("%-24s %12.0f%n", "patients/s", patients.get() / seconds);
+      System.out.printf("%-24s %12d%n", "pages", snapshot.count());
+      System.out.printf("%-24s %12.1f%n", "p50 ms/page",
+          percentiles[0].value(TimeUnit.MILLISECONDS));
+      System.out.printf("%-24s %12.1f%n", "p99 ms/page",
+          percentiles[1].value(TimeUnit.MILLISECONDS));
+      System.out.printf("%-24s %12.4f%n", "error rate",
+          (errors.count() - warmupErrors) / Math.max(1, calls.count() - warmupCalls));
+      System.out.printf("%-24s %12.0f%n", "heap high-water MiB",
+          heap.highWaterMark() / (1024.0 * 1024.0));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static ConfigurableApplicationContext startAdapter(String storeUrl) {
+    return new SpringApplicationBuilder(StoreFhirAdapterApplication.class)
+        .run("--server.port=0", "--app.store.url=" + storeUrl, "--logging.level.de.samply=INFO");
+  }
+
+  /**
+   * Returns a supplier of the used heap of the adapter at {@code target} which reads the {@code
+   * jvm.memory.used} metric of the heap.
+   */
+  private static LongSupplier remoteHeap(HttpClient client, URI target) {
+    var request = HttpRequest.newBuilder(target.resolve(
+        "actuator/metrics/jvm.memory.used?tag=area:heap")).build();
+    var mapper = new ObjectMapper();
+    return () -> {
+      try {
+        var response = client.send(request, BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+          return -1;
+        }
+        return mapper.readTree(response.body()).path("measurements").path(0).path("value")
+            .asLong(-1);
+      } catch (IOException e) {
+        return -1;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    };
+  }
+
+  private static Map<String, String> parseArgs(String[] args) {
+    var options = new HashMap<String, String>();
+    var joined = String.join(" ", args).trim();
+    if (!joined.isEmpty()) {
+      for (var arg : joined.split("\\s+")) {
+        var parts = arg.split("=", 2);
+        if (parts.length != 2) {
+          throw new IllegalArgumentException("Expected name=value but was: " + arg);
+        }
+        options.put(parts[0], parts[1]);
+      }
+    }
+    return options;
+  }
+}
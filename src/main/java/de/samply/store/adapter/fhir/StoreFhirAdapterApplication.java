@@ -1,11 +1,21 @@
 package de.samply.store.adapter.fhir;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.GZipContentInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.store.adapter.fhir.api.MeteredJsonMessageConverter;
+import de.samply.store.adapter.fhir.api.MeteredXmlMessageConverter;
+import de.samply.store.adapter.fhir.api.ResponseCompressionFilter;
+import de.samply.store.adapter.fhir.api.XmlPreferringContentNegotiationStrategy;
+import de.samply.store.adapter.fhir.client.StoreHttpClientFactory;
 import de.samply.store.adapter.fhir.service.EvaluationContext;
 import de.samply.store.adapter.fhir.service.FhirPathR4;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
 import de.samply.store.adapter.fhir.service.mapping.DiagnosisMapping;
 import de.samply.store.adapter.fhir.service.mapping.HistologyMapping;
+import de.samply.store.adapter.fhir.service.mapping.MappingDefinitions;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan;
 import de.samply.store.adapter.fhir.service.mapping.MetastasisMapping;
 import de.samply.store.adapter.fhir.service.mapping.PatientMapping;
 import de.samply.store.adapter.fhir.service.mapping.ProgressMapping;
@@ -15,16 +25,32 @@ import de.samply.store.adapter.fhir.service.mapping.SampleMapping;
 import de.samply.store.adapter.fhir.service.mapping.SurgeryMapping;
 import de.samply.store.adapter.fhir.service.mapping.TnmMapping;
 import de.samply.store.adapter.fhir.service.mapping.TumorMapping;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.utils.FHIRPathEngine.IEvaluationContext;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.web.servlet.config.annotation.ContentNegotiationConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 /**
  * Main Application Entrypoint.
@@ -43,19 +69,22 @@ public class StoreFhirAdapterApplication {
    * Creates a mapping service factory, a function from a map of resources to a QueryResultMapping.
    *
    * @param fhirContext the FHIR context
+   * @param mappingPlan the compiled mapping definitions
    * @return the mapping service factory
    */
   @Bean
   public Function<Map<String, Resource>, QueryResultMapping> mappingServiceFactory(
-      FhirContext fhirContext) {
+      FhirContext fhirContext, MappingPlan mappingPlan) {
     return resources -> {
       FhirPathR4 fhirPathEngine = new FhirPathR4(fhirContext, new EvaluationContext(resources));
       TnmMapping tnmMapping = new TnmMapping(fhirPathEngine);
-      HistologyMapping histologyMapping = new HistologyMapping(fhirPathEngine);
-      MetastasisMapping metastasisMapping = new MetastasisMapping(fhirPathEngine);
-      SurgeryMapping surgeryMapping = new SurgeryMapping(fhirPathEngine);
-      RadiationTherapyMapping radiationTherapyMapping = new RadiationTherapyMapping(fhirPathEngine);
-      ProgressMapping progressMapping = new ProgressMapping(fhirPathEngine, tnmMapping);
+      HistologyMapping histologyMapping = new HistologyMapping(fhirPathEngine, mappingPlan);
+      MetastasisMapping metastasisMapping = new MetastasisMapping(fhirPathEngine, mappingPlan);
+      SurgeryMapping surgeryMapping = new SurgeryMapping(fhirPathEngine, mappingPlan);
+      RadiationTherapyMapping radiationTherapyMapping = new RadiationTherapyMapping(fhirPathEngine,
+          mappingPlan);
+      ProgressMapping progressMapping = new ProgressMapping(fhirPathEngine, tnmMapping,
+          mappingPlan);
       TumorMapping tumorMapping = new TumorMapping(fhirPathEngine, histologyMapping,
           metastasisMapping, surgeryMapping, radiationTherapyMapping, progressMapping, tnmMapping);
       DiagnosisMapping diagnosisMapping = new DiagnosisMapping(fhirPathEngine, tumorMapping);
@@ -64,6 +93,79 @@ public class StoreFhirAdapterApplication {
     };
   }
 
+  /**
+   * Loads the mapping definitions from {@code location} and compiles them into a plan.
+   *
+   * <p>The definitions shipped with the adapter can be replaced by pointing {@code location} to a
+   * file, so that mappings can be changed without building a new release.
+   *
+   * @param fhirContext    the FHIR context
+   * @param resourceLoader the loader of the definitions
+   * @param location       the location of the definitions like {@code classpath:mapping.yml}
+   * @return the compiled mapping definitions
+   * @throws IOException              if the definitions can't be read
+   * @throws IllegalArgumentException if the definitions are invalid or one of the {@link
+   *                                  MappingPlan#REQUIRED_ENTITIES required entities} is missing
+   */
+  @Bean
+  public MappingPlan mappingPlan(FhirContext fhirContext, ResourceLoader resourceLoader,
+      @Value("${app.mapping.definitions}") String location) throws IOException {
+    try (var in = resourceLoader.getResource(location).getInputStream()) {
+      return MappingPlan.compile(fhirContext, MappingDefinitions.load(in))
+          .requireEntities(MappingPlan.REQUIRED_ENTITIES);
+    }
+  }
+
+  /**
+   * Creates the bounded executor used to map the patients of a page concurrently.
+   *
+   * @param parallelism the number of mapping threads
+   * @return the mapping executor
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService mappingExecutor(@Value("${app.mapping.parallelism}") int parallelism) {
+    return Executors.newFixedThreadPool(Math.max(1, parallelism), daemonThreadFactory("mapping"));
+  }
+
+  /**
+   * Creates the bounded executor on which API requests talking to the FHIR server run.
+   *
+   * <p>Tasks submitted while all threads are busy and the queue is full are rejected.
+   *
+   * @param threads       the number of I/O threads
+   * @param queueCapacity the number of tasks which can wait for a free thread
+   * @return the I/O executor
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService ioExecutor(@Value("${app.api.io-threads}") int threads,
+      @Value("${app.api.io-queue-capacity}") int queueCapacity) {
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), daemonThreadFactory("io"));
+  }
+
+  /**
+   * Creates the executor on which the non-blocking FHIR client decodes response bodies.
+   *
+   * <p>Decoding reads the body while it is received and blocks while waiting for more of it, so
+   * it doesn't run on the threads of the HTTP client.
+   *
+   * @param threads the number of decode threads
+   * @return the decode executor
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService decodeExecutor(@Value("${app.store.async.decode-threads}") int threads) {
+    return Executors.newFixedThreadPool(Math.max(1, threads), daemonThreadFactory("decode"));
+  }
+
+  private static ThreadFactory daemonThreadFactory(String namePrefix) {
+    var threadNumber = new AtomicInteger();
+    return runnable -> {
+      var thread = new Thread(runnable, namePrefix + "-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
   @Bean
   public FhirContext fhirContext() {
     return FhirContext.forR4();
@@ -79,9 +181,104 @@ public class StoreFhirAdapterApplication {
     return new EvaluationContext();
   }
 
+  /**
+   * Creates the HTTP client used to talk to the FHIR server.
+   *
+   * <p>The client is created by the {@link StoreHttpClientFactory} which configures the connection
+   * pool and timeouts from {@code app.store.connection}, instruments the pool and the requests and
+   * replaces the content compression of the Apache HTTP client by a compression interceptor which
+   * also records the number of bytes transferred.
+   *
+   * @param storeHttpClientFactory the factory of the HTTP client
+   * @return the HTTP client
+   */
+  @Bean
+  public CloseableHttpClient storeHttpClient(StoreHttpClientFactory storeHttpClientFactory) {
+    return storeHttpClientFactory.createHttpClient();
+  }
+
+  /**
+   * Creates the HAPI FHIR client of the FHIR server.
+   *
+   * @param fhirContext               the FHIR context
+   * @param storeHttpClient           the HTTP client to use
+   * @param requestCompressionEnabled whether request bodies should be sent gzip compressed
+   * @return the HAPI FHIR client
+   */
+  @Bean
+  public IGenericClient storeClient(FhirContext fhirContext, HttpClient storeHttpClient,
+      @Value("${app.store.compression.request-body}") boolean requestCompressionEnabled) {
+    fhirContext.getRestfulClientFactory().setHttpClient(storeHttpClient);
+    var client = fhirContext.newRestfulGenericClient(storeUrl);
+    if (requestCompressionEnabled) {
+      client.registerInterceptor(new GZipContentInterceptor());
+    }
+    return client;
+  }
+
+  /**
+   * Registers the {@link ResponseCompressionFilter} for result pages.
+   *
+   * @param meterRegistry  the registry to record metrics in
+   * @param enabled        whether result pages should be compressed at all
+   * @param deflateEnabled whether {@code deflate} should be offered in addition to {@code gzip}
+   * @return the filter registration
+   */
+  @Bean
+  public FilterRegistrationBean<ResponseCompressionFilter> responseCompressionFilter(
+      MeterRegistry meterRegistry,
+      @Value("${app.compression.enabled}") boolean enabled,
+      @Value("${app.compression.deflate}") boolean deflateEnabled) {
+    var registration = new FilterRegistrationBean<>(
+        new ResponseCompressionFilter(meterRegistry, deflateEnabled));
+    registration.addUrlPatterns("/rest/teiler/requests/*");
+    registration.setEnabled(enabled);
+    return registration;
+  }
+
+  /**
+   * Creates the XML message converter which records the serialization of results.
+   *
+   * <p>It takes precedence over the default JAXB message converter.
+   *
+   * @param metrics  the metrics of the request pipeline
+   * @param timeline the timelines of results
+   * @return the XML message converter
+   */
+  @Bean
+  public MeteredXmlMessageConverter meteredXmlMessageConverter(PipelineMetrics metrics,
+      ResultTimeline timeline) {
+    return new MeteredXmlMessageConverter(metrics, timeline);
+  }
+
+  /**
+   * Creates the JSON message converter which writes results and their statistics.
+   *
+   * <p>It takes precedence over the default Jackson message converter.
+   *
+   * @param metrics  the metrics of the request pipeline
+   * @param timeline the timelines of results
+   * @return the JSON message converter
+   */
+  @Bean
+  public MeteredJsonMessageConverter meteredJsonMessageConverter(PipelineMetrics metrics,
+      ResultTimeline timeline) {
+    return new MeteredJsonMessageConverter(metrics, timeline);
+  }
+
+  /**
+   * Configures content negotiation to prefer XML if the client accepts XML and JSON alike.
+   *
+   * @return the configurer
+   */
   @Bean
-  public IGenericClient storeClient(FhirContext fhirContext) {
-    return fhirContext.newRestfulGenericClient(storeUrl);
+  public WebMvcConfigurer contentNegotiationConfigurer() {
+    return new WebMvcConfigurer() {
+      @Override
+      public void configureContentNegotiation(ContentNegotiationConfigurer configurer) {
+        configurer.strategies(List.of(new XmlPreferringContentNegotiationStrategy()));
+      }
+    };
   }
 
   @Bean
@@ -0,0 +1,38 @@
+package de.samply.store.adapter.fhir.api;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream which counts the number of bytes written to the underlying stream.
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+  private long count;
+
+  CountingOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /**
+   * Returns the number of bytes written so far.
+   *
+   * @return the number of bytes written so far
+   */
+  long getCount() {
+    return count;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    count += len;
+  }
+}
@@ -0,0 +1,67 @@
+package de.samply.store.adapter.fhir.api;
+
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.share.model.common.QueryResultStatistic;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
+import java.io.IOException;
+import java.time.Instant;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+/**
+ * A message converter which writes {@link QueryResult QueryResults} and {@link
+ * QueryResultStatistic QueryResultStatistics} as JSON and records the duration of the
+ * serialization and the number of bytes written like the {@link MeteredXmlMessageConverter}.
+ *
+ * <p>The JSON is written by the {@link QueryResultJsonWriter}.
+ */
+public class MeteredJsonMessageConverter extends AbstractHttpMessageConverter<Object> {
+
+  private final SerializationRecorder recorder;
+
+  /**
+   * Creates a new {@code MeteredJsonMessageConverter}.
+   *
+   * @param metrics  the metrics of the request pipeline
+   * @param timeline the timelines of results
+   */
+  public MeteredJsonMessageConverter(PipelineMetrics metrics, ResultTimeline timeline) {
+    super(MediaType.APPLICATION_JSON);
+    recorder = new SerializationRecorder(metrics, timeline);
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return QueryResult.class.equals(clazz) || QueryResultStatistic.class.equals(clazz);
+  }
+
+  @Override
+  protected boolean canRead(MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+    throw new HttpMessageNotReadableException("Reading JSON isn't supported.", inputMessage);
+  }
+
+  @Override
+  protected void writeInternal(Object o, HttpOutputMessage outputMessage) throws IOException {
+    var out = new CountingOutputStream(outputMessage.getBody());
+    var startTime = Instant.now();
+    var start = System.nanoTime();
+    try (var generator = QueryResultJsonWriter.createGenerator(out)) {
+      if (o instanceof QueryResult queryResult) {
+        QueryResultJsonWriter.writeQueryResult(generator, queryResult);
+      } else {
+        QueryResultJsonWriter.writeStatistic(generator, (QueryResultStatistic) o);
+      }
+    } finally {
+      recorder.record(o, startTime, System.nanoTime() - start, out.getCount());
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package de.samply.store.adapter.fhir.api;
+
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
+import java.time.Instant;
+import javax.xml.transform.Result;
+import javax.xml.transform.stream.StreamResult;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.xml.Jaxb2RootElementHttpMessageConverter;
+
+/**
+ * A JAXB message converter which records the duration of the XML serialization and the number of
+ * bytes written in the {@link PipelineMetrics}.
+ *
+ * <p>Because the XML is streamed to the response, the duration includes the time of writing full
+ * response buffers to the client.
+ *
+ * <p>The serialization of a {@link QueryResult} is also recorded in the {@link ResultTimeline} of
+ * its result, attributed to the page requested.
+ */
+public class MeteredXmlMessageConverter extends Jaxb2RootElementHttpMessageConverter {
+
+  private final SerializationRecorder recorder;
+
+  /**
+   * Creates a new {@code MeteredXmlMessageConverter}.
+   *
+   * @param metrics  the metrics of the request pipeline
+   * @param timeline the timelines of results
+   */
+  public MeteredXmlMessageConverter(PipelineMetrics metrics, ResultTimeline timeline) {
+    recorder = new SerializationRecorder(metrics, timeline);
+  }
+
+  @Override
+  protected void writeToResult(Object o, HttpHeaders headers, Result result) throws Exception {
+    if (!(result instanceof StreamResult streamResult)
+        || streamResult.getOutputStream() == null) {
+      super.writeToResult(o, headers, result);
+      return;
+    }
+    var out = new CountingOutputStream(streamResult.getOutputStream());
+    var startTime = Instant.now();
+    var start = System.nanoTime();
+    try {
+      super.writeToResult(o, headers, new StreamResult(out));
+    } finally {
+      recorder.record(o, startTime, System.nanoTime() - start, out.getCount());
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package de.samply.store.adapter.fhir.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import de.samply.share.model.ccp.Attribute;
+import de.samply.share.model.ccp.Container;
+import de.samply.share.model.ccp.Entity;
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.share.model.common.QueryResultStatistic;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes {@link QueryResult QueryResults}, their patients and {@link QueryResultStatistic
+ * QueryResultStatistics} as JSON with a streaming generator.
+ *
+ * <p>The JSON follows the structure of the XML, with repeated elements as arrays named like the
+ * element, for example:
+ *
+ * <pre>
+ * {"id": "...", "patient": [{"id": "...", "attribute": [{"mdrKey": "...", "value": "..."}],
+ *   "container": [{"id": "...", "designation": "...", "attribute": [...]}]}]}
+ * </pre>
+ *
+ * <p>Like in the XML, absent identifiers and empty arrays are omitted.
+ */
+final class QueryResultJsonWriter {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactoryBuilder()
+      .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+      .rootValueSeparator((String) null)
+      .build();
+
+  private QueryResultJsonWriter() {
+  }
+
+  /**
+   * Creates a generator writing to {@code out} which doesn't close {@code out} and writes root
+   * values without separator.
+   */
+  static JsonGenerator createGenerator(OutputStream out) throws IOException {
+    return JSON_FACTORY.createGenerator(out);
+  }
+
+  static void writeQueryResult(JsonGenerator generator, QueryResult queryResult)
+      throws IOException {
+    generator.writeStartObject();
+    writeStringField(generator, "id", queryResult.getId());
+    writeEntities(generator, "patient", queryResult.getPatient());
+    generator.writeEndObject();
+  }
+
+  /**
+   * Writes {@code entity} like a patient or a container as JSON object.
+   */
+  static void writeEntity(JsonGenerator generator, Entity entity) throws IOException {
+    generator.writeStartObject();
+    writeStringField(generator, "id", entity.getId());
+    if (entity instanceof Container container) {
+      writeStringField(generator, "designation", container.getDesignation());
+    }
+    writeAttributes(generator, entity.getAttribute());
+    writeEntities(generator, "container", entity.getContainer());
+    generator.writeEndObject();
+  }
+
+  private static void writeEntities(JsonGenerator generator, String name,
+      List<? extends Entity> entities) throws IOException {
+    if (entities.isEmpty()) {
+      return;
+    }
+    generator.writeArrayFieldStart(name);
+    for (var entity : entities) {
+      writeEntity(generator, entity);
+    }
+    generator.writeEndArray();
+  }
+
+  private static void writeAttributes(JsonGenerator generator, List<Attribute> attributes)
+      throws IOException {
+    if (attributes.isEmpty()) {
+      return;
+    }
+    generator.writeArrayFieldStart("attribute");
+    for (var attribute : attributes) {
+      generator.writeStartObject();
+      writeStringField(generator, "mdrKey", attribute.getMdrKey());
+      writeStringField(generator, "value",
+          attribute.getValue() == null ? null : attribute.getValue().getValue());
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+  }
+
+  static void writeStatistic(JsonGenerator generator, QueryResultStatistic stats)
+      throws IOException {
+    generator.writeStartObject();
+    writeStringField(generator, "requestId", stats.getRequestId());
+    generator.writeNumberField("totalSize", stats.getTotalSize());
+    generator.writeNumberField("numberOfPages", stats.getNumberOfPages());
+    generator.writeEndObject();
+  }
+
+  private static void writeStringField(JsonGenerator generator, String name, String value)
+      throws IOException {
+    if (value != null) {
+      generator.writeStringField(name, value);
+    }
+  }
+}
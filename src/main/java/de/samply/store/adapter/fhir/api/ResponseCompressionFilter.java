@@ -0,0 +1,348 @@
+package de.samply.store.adapter.fhir.api;
+
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.springframework.http.HttpHeaders.CONTENT_ENCODING;
+import static org.springframework.http.HttpHeaders.CONTENT_LENGTH;
+import static org.springframework.http.HttpHeaders.VARY;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * A filter which compresses result pages and exports with {@code gzip} or {@code deflate} if the
+ * client accepts it.
+ *
+ * <p>The number of bytes before and after compression are recorded in the distribution summaries
+ * {@value #UNCOMPRESSED_METRIC} and {@value #COMPRESSED_METRIC} tagged with the content encoding.
+ */
+public class ResponseCompressionFilter extends OncePerRequestFilter {
+
+  static final String COMPRESSED_METRIC = "api.response.compressed";
+  static final String UNCOMPRESSED_METRIC = "api.response.uncompressed";
+
+  private static final String GZIP = "gzip";
+  private static final String DEFLATE = "deflate";
+  private static final String RESULT_PATH_SUFFIX = "/result";
+  private static final String EXPORT_PATH_SUFFIX = "/export";
+
+  private final MeterRegistry meterRegistry;
+  private final boolean deflateEnabled;
+
+  /**
+   * Creates a new {@code ResponseCompressionFilter}.
+   *
+   * @param meterRegistry  the registry to record the byte counts in
+   * @param deflateEnabled whether {@code deflate} should be offered in addition to {@code gzip}
+   */
+  public ResponseCompressionFilter(MeterRegistry meterRegistry, boolean deflateEnabled) {
+    this.meterRegistry = Objects.requireNonNull(meterRegistry);
+    this.deflateEnabled = deflateEnabled;
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    var uri = request.getRequestURI();
+    return !uri.endsWith(RESULT_PATH_SUFFIX) && !uri.endsWith(EXPORT_PATH_SUFFIX);
+  }
+
+  /**
+   * The result pages are written asynchronously, so the compressed stream can only be finished
+   * after the async dispatch.
+   */
+  @Override
+  protected boolean shouldNotFilterAsyncDispatch() {
+    return false;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    var dispatchedResponse = WebUtils.getNativeResponse(response, CompressingResponse.class);
+    if (dispatchedResponse != null) {
+      try {
+        filterChain.doFilter(request, response);
+      } finally {
+        if (!isAsyncStarted(request)) {
+          dispatchedResponse.finish();
+        }
+      }
+      return;
+    }
+
+    response.addHeader(VARY, ACCEPT_ENCODING);
+    var encoding = negotiateEncoding(request.getHeader(ACCEPT_ENCODING));
+    if (encoding.isEmpty()) {
+      filterChain.doFilter(request, response);
+      return;
+    }
+
+    var compressingResponse = new CompressingResponse(response, encoding.get());
+    try {
+      filterChain.doFilter(request, compressingResponse);
+    } finally {
+      if (!isAsyncStarted(request)) {
+        compressingResponse.finish();
+      }
+    }
+  }
+
+  /**
+   * Selects the content encoding to use from the value of an {@code Accept-Encoding} header.
+   *
+   * @param acceptEncoding the value of the {@code Accept-Encoding} header or {@code null}
+   * @return the selected encoding or {@link Optional#empty() empty} if no compression should be
+   *     used
+   */
+  Optional<String> negotiateEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return Optional.empty();
+    }
+    var accepted = Arrays.stream(acceptEncoding.split(","))
+        .map(String::trim)
+        .filter(ResponseCompressionFilter::isAcceptable)
+        .map(s -> s.split(";")[0].trim().toLowerCase(Locale.ROOT))
+        .toList();
+    if (accepted.contains(GZIP) || accepted.contains("*")) {
+      return Optional.of(GZIP);
+    } else if (deflateEnabled && accepted.contains(DEFLATE)) {
+      return Optional.of(DEFLATE);
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  private static boolean isAcceptable(String coding) {
+    var parts = coding.split(";");
+    for (int i = 1; i < parts.length; i++) {
+      var param = parts[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2)) > 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private void record(String encoding, long uncompressedBytes, long compressedBytes) {
+    summary(UNCOMPRESSED_METRIC, encoding).record(uncompressedBytes);
+    summary(COMPRESSED_METRIC, encoding).record(compressedBytes);
+  }
+
+  private DistributionSummary summary(String name, String encoding) {
+    return DistributionSummary.builder(name)
+        .baseUnit("bytes")
+        .tag("encoding", encoding)
+        .register(meterRegistry);
+  }
+
+  /**
+   * A response which compresses everything written to its output stream.
+   *
+   * <p>The {@code Content-Encoding} header is only set if the body is actually written, so that
+   * error responses stay untouched.
+   */
+  private class CompressingResponse extends HttpServletResponseWrapper {
+
+    private final String encoding;
+    private CompressingOutputStream outputStream;
+    private PrintWriter writer;
+
+    private CompressingResponse(HttpServletResponse response, String encoding) {
+      super(response);
+      this.encoding = encoding;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() has already been called on this response.");
+      }
+      return compressingOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        if (outputStream != null) {
+          throw new IllegalStateException(
+              "getOutputStream() has already been called on this response.");
+        }
+        writer = new PrintWriter(new OutputStreamWriter(compressingOutputStream(),
+            getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    private CompressingOutputStream compressingOutputStream() throws IOException {
+      if (outputStream == null) {
+        super.setHeader(CONTENT_ENCODING, encoding);
+        outputStream = new CompressingOutputStream(super.getOutputStream(), encoding);
+      }
+      return outputStream;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      // the length of the compressed content is not known in advance
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+      // the length of the compressed content is not known in advance
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+        super.setHeader(name, value);
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+        super.addHeader(name, value);
+      }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      } else if (outputStream != null) {
+        outputStream.flush();
+      }
+      super.flushBuffer();
+    }
+
+    private void finish() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      if (outputStream != null) {
+        outputStream.finish();
+      }
+    }
+  }
+
+  /**
+   * A servlet output stream which compresses into the output stream of the original response and
+   * counts the bytes on both sides.
+   *
+   * <p>Flushing flushes the compressor, so that streamed exports reach the client continuously.
+   */
+  private class CompressingOutputStream extends ServletOutputStream {
+
+    private final ServletOutputStream target;
+    private final String encoding;
+    private final DeflaterOutputStream compressor;
+    private final Deflater deflater;
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private boolean finished;
+
+    private CompressingOutputStream(ServletOutputStream target, String encoding)
+        throws IOException {
+      this.target = target;
+      this.encoding = encoding;
+      var counter = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          target.write(b);
+          compressedBytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          target.write(b, off, len);
+          compressedBytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+          target.flush();
+        }
+      };
+      this.deflater = GZIP.equals(encoding) ? null : new Deflater();
+      this.compressor = deflater == null
+          ? new GZIPOutputStream(counter, 8192, true)
+          : new DeflaterOutputStream(counter, deflater, 8192, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      compressor.write(b);
+      uncompressedBytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      compressor.write(b, off, len);
+      uncompressedBytes += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      compressor.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      finish();
+      target.close();
+    }
+
+    /**
+     * Finishes the compressed stream and releases the native memory of the compressor right away
+     * instead of leaving it to the garbage collector. Closing the compressor doesn't close the
+     * target.
+     */
+    private void finish() throws IOException {
+      if (!finished) {
+        finished = true;
+        try {
+          compressor.close();
+        } finally {
+          if (deflater != null) {
+            deflater.end();
+          }
+        }
+        target.flush();
+        record(encoding, uncompressedBytes, compressedBytes);
+      }
+    }
+
+    @Override
+    public boolean isReady() {
+      return target.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      target.setWriteListener(writeListener);
+    }
+  }
+}
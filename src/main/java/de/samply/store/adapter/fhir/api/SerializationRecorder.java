@@ -0,0 +1,55 @@
+package de.samply.store.adapter.fhir.api;
+
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Span;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Stage;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Records the serialization of response bodies in the {@link PipelineMetrics} and, for a {@link
+ * QueryResult}, in the {@link ResultTimeline} of its result, attributed to the page requested.
+ */
+final class SerializationRecorder {
+
+  private final PipelineMetrics metrics;
+  private final ResultTimeline timeline;
+
+  SerializationRecorder(PipelineMetrics metrics, ResultTimeline timeline) {
+    this.metrics = Objects.requireNonNull(metrics);
+    this.timeline = Objects.requireNonNull(timeline);
+  }
+
+  /**
+   * Records the serialization of {@code o} which started at {@code startTime}, took {@code nanos}
+   * and wrote {@code size} bytes.
+   */
+  void record(Object o, Instant startTime, long nanos, long size) {
+    metrics.record(Stage.SERIALIZE, startTime, nanos);
+    metrics.recordResponseSize(size);
+    if (o instanceof QueryResult queryResult && queryResult.getId() != null) {
+      timeline.record(queryResult.getId(), requestedPage(),
+          List.of(new Span(Stage.SERIALIZE, startTime, nanos, size)));
+    }
+  }
+
+  /**
+   * Returns the number of the page requested by the current request or {@code null} if unknown.
+   */
+  private static Integer requestedPage() {
+    if (RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes attrs) {
+      var page = attrs.getRequest().getParameter("page");
+      try {
+        return page == null ? 0 : Integer.valueOf(page);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+}
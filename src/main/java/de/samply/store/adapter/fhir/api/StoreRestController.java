@@ -1,22 +1,53 @@
 package de.samply.store.adapter.fhir.api;
 
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.GATEWAY_TIMEOUT;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
 import static org.springframework.http.MediaType.APPLICATION_XML_VALUE;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import de.samply.share.model.ccp.QueryResult;
 import de.samply.share.model.common.QueryResultStatistic;
+import de.samply.store.adapter.fhir.model.Result;
+import de.samply.store.adapter.fhir.model.RootNode;
+import de.samply.store.adapter.fhir.model.lean.LeanBundle;
+import de.samply.store.adapter.fhir.service.BatchBuffer;
 import de.samply.store.adapter.fhir.service.FhirDownloadService;
+import de.samply.store.adapter.fhir.service.LeanPageService;
 import de.samply.store.adapter.fhir.service.MappingService;
+import de.samply.store.adapter.fhir.service.PageSizeEstimator;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Span;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Stage;
 import de.samply.store.adapter.fhir.service.ResultStore;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
+import de.samply.store.adapter.fhir.service.ResultTimeline.Event;
 import de.samply.store.adapter.fhir.util.Anomaly;
 import de.samply.store.adapter.fhir.util.Anomaly.NotFound;
 import de.samply.store.adapter.fhir.util.Either;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.hl7.fhir.r4.model.Bundle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -26,9 +57,22 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 /**
  * The complete REST API of the Store-FHIR-Adapter.
+ *
+ * <p>Endpoints which talk to the FHIR server are handled asynchronously on a dedicated, bounded
+ * I/O executor, so that the servlet container threads stay available for cheap endpoints like
+ * {@link #getInfo() info} and {@link #getStats(String) stats}.
+ *
+ * <p>The pages served can be smaller than the pages fetched from the FHIR server. In that case,
+ * the patients of one page of the FHIR server, called batch, are buffered and served in slices.
+ *
+ * <p>The stages of creating a result and of fetching its pages are recorded in its {@link
+ * ResultTimeline timeline}.
  */
 @RestController
 @RequestMapping("/rest")
@@ -38,30 +82,70 @@ public class StoreRestController {
 
   private final FhirDownloadService downloadService;
   private final MappingService mappingService;
+  private final LeanPageService leanPageService;
   private final ResultStore resultStore;
-  private final int pageSize;
+  private final PageSizeEstimator pageSizeEstimator;
+  private final BatchBuffer batchBuffer;
+  private final PipelineMetrics metrics;
+  private final ResultTimeline timeline;
+  private final int batchSize;
+  private final int maxPageSize;
   private final String version;
   private final String baseUrl;
+  private final Executor ioExecutor;
+  private final Duration createRequestTimeout;
+  private final Duration resultTimeout;
+  private final int exportReadAhead;
 
   /**
    * Creates a new {@code StoreRestController}.
    *
-   * @param downloadService the FHIR backend
-   * @param mappingService  the mapping service between FHIR and {@link QueryResult}
-   * @param resultStore     the result store
-   * @param pageSize        the number of patients per page
-   * @param version         the application version
+   * @param downloadService      the FHIR backend
+   * @param mappingService       the mapping service between FHIR and {@link QueryResult}
+   * @param leanPageService      the lean pipeline of fetching and mapping pages
+   * @param resultStore          the result store
+   * @param pageSizeEstimator    the estimator of the number of patients per page
+   * @param batchBuffer          the buffer of batches which are served as several pages
+   * @param metrics              the metrics of the request pipeline
+   * @param timeline             the timelines of results
+   * @param batchSize            the minimum number of patients fetched from the FHIR server at
+   *                             once
+   * @param maxPageSize          the maximum number of patients per page a client can request
+   * @param version              the application version
+   * @param baseUrl              the base URL of this service used in Location headers
+   * @param ioExecutor           the executor running requests which talk to the FHIR server
+   * @param createRequestTimeout the maximum duration of creating a request
+   * @param resultTimeout        the maximum duration of fetching a result page
+   * @param exportReadAhead      the number of pages fetched ahead while exporting a result
    */
   public StoreRestController(FhirDownloadService downloadService, MappingService mappingService,
-      ResultStore resultStore, @Value("${app.store.page-size}") int pageSize,
+      LeanPageService leanPageService, ResultStore resultStore,
+      PageSizeEstimator pageSizeEstimator, BatchBuffer batchBuffer,
+      PipelineMetrics metrics, ResultTimeline timeline,
+      @Value("${app.store.batch-size}") int batchSize,
+      @Value("${app.api.max-page-size}") int maxPageSize,
       @Value("${app.version}") String version,
-      @Value("${app.base-url}") String baseUrl) {
+      @Value("${app.base-url}") String baseUrl,
+      @Qualifier("ioExecutor") Executor ioExecutor,
+      @Value("${app.api.create-request-timeout}") Duration createRequestTimeout,
+      @Value("${app.api.result-timeout}") Duration resultTimeout,
+      @Value("${app.api.export-read-ahead}") int exportReadAhead) {
     this.downloadService = Objects.requireNonNull(downloadService);
     this.mappingService = Objects.requireNonNull(mappingService);
+    this.leanPageService = Objects.requireNonNull(leanPageService);
     this.resultStore = Objects.requireNonNull(resultStore);
-    this.pageSize = pageSize;
+    this.pageSizeEstimator = Objects.requireNonNull(pageSizeEstimator);
+    this.batchBuffer = Objects.requireNonNull(batchBuffer);
+    this.metrics = Objects.requireNonNull(metrics);
+    this.timeline = Objects.requireNonNull(timeline);
+    this.batchSize = batchSize;
+    this.maxPageSize = maxPageSize;
     this.version = version;
     this.baseUrl = baseUrl;
+    this.ioExecutor = Objects.requireNonNull(ioExecutor);
+    this.createRequestTimeout = Objects.requireNonNull(createRequestTimeout);
+    this.resultTimeout = Objects.requireNonNull(resultTimeout);
+    this.exportReadAhead = exportReadAhead;
   }
 
   /**
@@ -80,23 +164,45 @@ public class StoreRestController {
    * Runs {@code query} against the FHIR server, saves the result and returns a 201 created response
    * with the Location header pointing to the request created.
    *
-   * @param query the query to execute
-   * @return a 201 created response
+   * <p>The number of patients per page of the result is either requested by {@code pageSize},
+   * capped at the maximum page size, or estimated from the pages fetched before. It stays fixed for
+   * the whole result.
+   *
+   * @param pageSize the optional number of patients per page
+   * @param query    the query to execute
+   * @return a deferred 201 created response
    */
   @PostMapping("/teiler/requests")
-  public ResponseEntity<Object> createRequest(
+  public DeferredResult<ResponseEntity<Object>> createRequest(
       @RequestParam(name = "statisticsOnly", required = false, defaultValue = "false")
           boolean statisticsOnly,
+      @RequestParam(name = "pageSize", required = false) Integer pageSize,
       @RequestBody String query) {
-    logger.debug("create request statisticsOnly={}", statisticsOnly);
+    logger.debug("create request statisticsOnly={}, pageSize={}", statisticsOnly, pageSize);
 
-    return downloadService.runQuery()
-        .flatMap(resultStore::create)
-        .map(result -> ResponseEntity.created(createRequestUrl(result)).build())
-        .orElseGet(msg -> ResponseEntity.status(INTERNAL_SERVER_ERROR).body(msg));
+    if (pageSize != null && pageSize < 1) {
+      throw new ResponseStatusException(BAD_REQUEST, "The page size has to be positive.");
+    }
+    var resultPageSize = pageSize == null ? pageSizeEstimator.pageSize()
+        : Math.min(pageSize, maxPageSize);
+    var resultBatchSize = resultPageSize * Math.max(1, batchSize / resultPageSize);
+    return async(createRequestTimeout, () -> {
+      var spans = new ArrayList<Span>();
+      return metrics.trace(spans, () -> downloadService.runQuery(resultBatchSize))
+          .map(bundle -> {
+            pageSizeEstimator.observe(bundle);
+            return bundle;
+          })
+          .flatMap(bundle -> resultStore.create(bundle, resultPageSize, resultBatchSize))
+          .map(result -> {
+            timeline.record(result.id(), null, spans);
+            return ResponseEntity.created(createRequestUrl(result)).build();
+          })
+          .orElseGet(msg -> ResponseEntity.status(INTERNAL_SERVER_ERROR).body(msg));
+    });
   }
 
-  private URI createRequestUrl(de.samply.store.adapter.fhir.model.Result result) {
+  private URI createRequestUrl(Result result) {
     return URI.create(baseUrl + "/rest/teiler/requests/" + result.id());
   }
 
@@ -104,18 +210,22 @@ public class StoreRestController {
    * Tries to retrieve the result with {@code id} and returns the {@code QueryResultStatistic} with
    * {@code numberOfPages} and {@code totalSize}.
    *
+   * <p>The statistic is written as XML by default and as JSON if the client prefers
+   * {@code application/json}.
+   *
    * @param id the identifier of the result
    * @return the {@code QueryResultStatistic} according of the found result
    * @throws RequestNotFoundException if the result was not found
    */
-  @GetMapping(value = "/teiler/requests/{id}/stats", produces = APPLICATION_XML_VALUE)
+  @GetMapping(value = "/teiler/requests/{id}/stats",
+      produces = {APPLICATION_XML_VALUE, APPLICATION_JSON_VALUE})
   public QueryResultStatistic getStats(@PathVariable("id") String id) {
     logger.debug("request stats id={}", id);
 
     var result = resultStore.get(id);
     if (result.isPresent()) {
       var stats = new QueryResultStatistic();
-      stats.setNumberOfPages((int) Math.ceil((double) result.get().total() / pageSize));
+      stats.setNumberOfPages(result.get().numPages());
       stats.setTotalSize(result.get().total());
       stats.setRequestId(id);
       return stats;
@@ -124,66 +234,251 @@ public class StoreRestController {
     }
   }
 
+  /**
+   * Returns the timeline of the result with {@code id}.
+   *
+   * <p>The timeline consists of the stages of creating the result and of fetching, building,
+   * mapping and serializing its pages with their durations and sizes.
+   *
+   * @param id the identifier of the result
+   * @return the events of the timeline
+   * @throws RequestNotFoundException if the timeline of the result isn't kept
+   */
+  @GetMapping(value = "/teiler/requests/{id}/timeline", produces = APPLICATION_JSON_VALUE)
+  public List<Event> getTimeline(@PathVariable("id") String id) {
+    logger.debug("request timeline id={}", id);
+
+    return timeline.get(id).orElseThrow(() -> new RequestNotFoundException(id));
+  }
+
   /**
    * Tries to retrieve the result with {@code id} and {@code pageNum} and returns the corresponding
    * {@code QueryResult}.
    *
+   * <p>The result is written as XML by default and as JSON if the client prefers
+   * {@code application/json}.
+   *
+   * <p>The returned deferred result completes with a {@link RequestNotFoundException} if the
+   * result was not found and with a {@link MissingPageUrlException} if the page with {@code
+   * pageNum} was not found.
+   *
    * @param id the identifier of the result
-   * @return the {@code QueryResult} according of the found result
-   * @throws RequestNotFoundException if the result was not found
-   * @throws MissingPageUrlException  page with {@code pageNum} was not found
+   * @return the deferred {@code QueryResult} according of the found result
    */
-  @GetMapping(value = "/teiler/requests/{id}/result", produces = APPLICATION_XML_VALUE)
-  public QueryResult getResult(@PathVariable("id") String id,
+  @GetMapping(value = "/teiler/requests/{id}/result",
+      produces = {APPLICATION_XML_VALUE, APPLICATION_JSON_VALUE})
+  public DeferredResult<QueryResult> getResult(@PathVariable("id") String id,
       @RequestParam(name = "page", required = false, defaultValue = "0") int pageNum) {
     logger.debug("request result id={}, pageNum={}", id, pageNum);
 
-    if (resultStore.get(id).isPresent()) {
-      return fetchPage(id, pageNum)
-          .map(mappingService::map)
-          .map(queryResult -> {
-            queryResult.setId(id);
-            return queryResult;
-          })
-          .orElseThrow(anomaly -> {
-            if (anomaly instanceof NotFound) {
-              return new MissingPageUrlException(id, pageNum);
-            } else {
-              return new RuntimeException(anomaly.msg());
-            }
-          });
-    } else {
-      throw new RequestNotFoundException(id);
+    return async(resultTimeout, () -> fetchResult(id, pageNum));
+  }
+
+  /**
+   * Streams the patients of all pages of the result with {@code id} as newline-delimited JSON, one
+   * patient per line in the JSON format of result pages.
+   *
+   * <p>The pages are fetched in order on the I/O executor, up to {@code exportReadAhead} pages
+   * ahead of the page currently written. Each page is recorded in the timeline of the result like
+   * a page requested on its own.
+   *
+   * <p>Because the response is committed with the first page, a failing page aborts the response
+   * and the client sees an incomplete stream.
+   *
+   * @param id the identifier of the result
+   * @return the body streaming all patients
+   * @throws RequestNotFoundException if the result was not found
+   */
+  @GetMapping(value = "/teiler/requests/{id}/export", produces = APPLICATION_NDJSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> export(@PathVariable("id") String id) {
+    logger.debug("request export id={}", id);
+
+    var result = resultStore.get(id).orElseThrow(() -> new RequestNotFoundException(id));
+    return ResponseEntity.ok().contentType(APPLICATION_NDJSON)
+        .body(out -> export(result, out));
+  }
+
+  private void export(Result result, OutputStream body) throws IOException {
+    var out = new CountingOutputStream(body);
+    var pages = new ArrayDeque<CompletableFuture<QueryResult>>();
+    var lastPage = CompletableFuture.<QueryResult>completedFuture(null);
+    var nextPageNum = 0;
+    try (var generator = QueryResultJsonWriter.createGenerator(out)) {
+      for (int pageNum = 0; pageNum < result.numPages(); pageNum++) {
+        while (nextPageNum < result.numPages() && pages.size() <= exportReadAhead) {
+          var fetchedPageNum = nextPageNum++;
+          lastPage = lastPage.thenCompose(previous -> CompletableFuture.supplyAsync(
+              () -> fetchResult(result.id(), fetchedPageNum), ioExecutor));
+          pages.add(lastPage);
+        }
+        writePage(generator, out, pageNum, join(pages.remove()));
+      }
+    } finally {
+      pages.forEach(page -> page.cancel(false));
+      metrics.recordResponseSize(out.getCount());
+    }
+  }
+
+  /**
+   * Writes the patients of {@code page} one per line and records the serialization like the
+   * message converters do.
+   */
+  private void writePage(JsonGenerator generator, CountingOutputStream out, int pageNum,
+      QueryResult page) throws IOException {
+    final long startCount = out.getCount();
+    var startTime = Instant.now();
+    var start = System.nanoTime();
+    for (var patient : page.getPatient()) {
+      QueryResultJsonWriter.writeEntity(generator, patient);
+      generator.writeRaw('\n');
+    }
+    generator.flush();
+    var nanos = System.nanoTime() - start;
+    metrics.record(Stage.SERIALIZE, startTime, nanos);
+    timeline.record(page.getId(), pageNum,
+        List.of(new Span(Stage.SERIALIZE, startTime, nanos, out.getCount() - startCount)));
+  }
+
+  /**
+   * Waits for {@code future} and rethrows the exception it completed with. Responds with 503
+   * Service Unavailable if the I/O executor is saturated.
+   */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RejectedExecutionException) {
+        logger.warn("abort export because the I/O executor is saturated");
+        throw new ResponseStatusException(SERVICE_UNAVAILABLE,
+            "Too many concurrent requests to the FHIR server.");
+      } else if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  private QueryResult fetchResult(String id, int pageNum) {
+    var result = resultStore.get(id).orElseThrow(() -> new RequestNotFoundException(id));
+    var spans = new ArrayList<Span>();
+    var mapped = metrics.trace(spans, () -> fetchAndMap(result, pageNum));
+    timeline.record(id, pageNum, spans);
+    return mapped
+        .map(queryResult -> {
+          queryResult.setId(id);
+          return queryResult;
+        })
+        .orElseThrow(anomaly -> {
+          if (anomaly instanceof NotFound) {
+            return new MissingPageUrlException(id, pageNum);
+          } else {
+            return new RuntimeException(anomaly.msg());
+          }
+        });
+  }
+
+  private Either<Anomaly, QueryResult> fetchAndMap(Result result, int pageNum) {
+    if (result.pagesPerBatch() == 1) {
+      if (leanPageService.enabled()) {
+        return fetchLeanPage(result.id(), pageNum).map(leanPageService::map);
+      }
+      return fetchPage(result.id(), pageNum).map(mappingService::map);
+    }
+    var slice = pageNum % result.pagesPerBatch();
+    return fetchBatch(result.id(), pageNum / result.pagesPerBatch())
+        .map(batch -> mappingService.map(slice(batch, result.pageSize(), slice)));
+  }
+
+  private Either<Anomaly, RootNode> fetchBatch(String resultId, int batchNum) {
+    return batchBuffer.get(resultId, batchNum, () -> fetchPage(resultId, batchNum)
+        .map(mappingService::buildRootNode));
+  }
+
+  /**
+   * Returns the patients of the slice with {@code index} of {@code batch}.
+   */
+  static RootNode slice(RootNode batch, int pageSize, int index) {
+    var patients = batch.patients();
+    var from = Math.min(patients.size(), index * pageSize);
+    var to = Math.min(patients.size(), from + pageSize);
+    return new RootNode(patients.subList(from, to), batch.resources());
+  }
+
+  /**
+   * Runs {@code supplier} on the I/O executor and returns a deferred result which completes with
+   * its value or exception.
+   *
+   * <p>Responds with 504 Gateway Timeout if the supplier doesn't complete within {@code timeout}
+   * and with 503 Service Unavailable if the I/O executor is saturated.
+   */
+  private <T> DeferredResult<T> async(Duration timeout, Supplier<T> supplier) {
+    var deferredResult = new DeferredResult<T>(timeout.toMillis());
+    deferredResult.onTimeout(() -> deferredResult.setErrorResult(
+        new ResponseStatusException(GATEWAY_TIMEOUT, "The FHIR server did not respond in time.")));
+    try {
+      CompletableFuture.supplyAsync(supplier, ioExecutor).whenComplete((value, e) -> {
+        if (e == null) {
+          deferredResult.setResult(value);
+        } else {
+          deferredResult.setErrorResult(
+              e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      logger.warn("reject request because the I/O executor is saturated");
+      deferredResult.setErrorResult(new ResponseStatusException(SERVICE_UNAVAILABLE,
+          "Too many concurrent requests to the FHIR server."));
     }
+    return deferredResult;
   }
 
   private Either<Anomaly, Bundle> fetchPage(String resultId, int pageNum) {
-    return fetchPage1(resultId, pageNum)
+    return fetchPage(resultId, pageNum, url -> downloadService.fetchPage(url).map(bundle -> {
+      pageSizeEstimator.observe(bundle);
+      return bundle;
+    }), bundle -> bundle.getLinkOrCreate("next").getUrl());
+  }
+
+  /**
+   * Fetches the page with {@code pageNum} by {@code fetch}. If its URL isn't known yet, the pages
+   * before are fetched to follow their next links.
+   */
+  private <P> Either<Anomaly, P> fetchPage(String resultId, int pageNum,
+      Function<String, Either<Anomaly, P>> fetch, Function<P, String> nextUrl) {
+    return fetchPage1(resultId, pageNum, fetch, nextUrl)
         .orElse(anomaly -> {
           if (anomaly instanceof NotFound) {
             resultStore.getMaxPageNum(resultId).ifPresent(maxPageNum -> {
               while (maxPageNum <= pageNum) {
-                fetchPage1(resultId, maxPageNum);
+                fetchPage1(resultId, maxPageNum, fetch, nextUrl);
                 maxPageNum++;
               }
             });
-            return fetchPage1(resultId, pageNum);
+            return fetchPage1(resultId, pageNum, fetch, nextUrl);
           } else {
             return Either.left(anomaly);
           }
         });
   }
 
-  private Either<Anomaly, Bundle> fetchPage1(String resultId, int pageNum) {
+  private <P> Either<Anomaly, P> fetchPage1(String resultId, int pageNum,
+      Function<String, Either<Anomaly, P>> fetch, Function<P, String> nextUrl) {
     return Either.<Anomaly, String>fromOptional(resultStore.getPageUrl(resultId, pageNum),
             new NotFound("page URL not found"))
-        .flatMap(downloadService::fetchPage)
-        .map(bundle -> {
-          var url = bundle.getLinkOrCreate("next").getUrl();
+        .flatMap(fetch)
+        .map(page -> {
+          var url = nextUrl.apply(page);
           if (url != null) {
             resultStore.savePageUrl(resultId, pageNum + 1, url);
           }
-          return bundle;
+          return page;
         });
   }
+
+  private Either<Anomaly, LeanBundle> fetchLeanPage(String resultId, int pageNum) {
+    return fetchPage(resultId, pageNum, url -> leanPageService.fetchPage(url).map(bundle -> {
+      pageSizeEstimator.observe(bundle.numEntries(), bundle.numPatients());
+      return bundle;
+    }), LeanBundle::nextUrl);
+  }
 }
@@ -0,0 +1,34 @@
+package de.samply.store.adapter.fhir.api;
+
+import java.util.Comparator;
+import java.util.List;
+import org.springframework.http.MediaType;
+import org.springframework.web.HttpMediaTypeNotAcceptableException;
+import org.springframework.web.accept.HeaderContentNegotiationStrategy;
+import org.springframework.web.context.request.NativeWebRequest;
+
+/**
+ * A content negotiation strategy based on the {@code Accept} header which prefers XML over other
+ * media types of the same quality.
+ *
+ * <p>Clients accepting both XML and JSON with the same quality, like HTTP clients listing the
+ * media types of all their message converters, get XML which stays the default. JSON is only
+ * chosen if the client prefers it by quality or doesn't accept XML.
+ */
+public class XmlPreferringContentNegotiationStrategy extends HeaderContentNegotiationStrategy {
+
+  private static final Comparator<MediaType> XML_FIRST = Comparator
+      .comparing(MediaType::getQualityValue, Comparator.reverseOrder())
+      .thenComparing(mediaType -> !isXml(mediaType));
+
+  @Override
+  public List<MediaType> resolveMediaTypes(NativeWebRequest request)
+      throws HttpMediaTypeNotAcceptableException {
+    return super.resolveMediaTypes(request).stream().sorted(XML_FIRST).toList();
+  }
+
+  private static boolean isXml(MediaType mediaType) {
+    return !mediaType.isWildcardSubtype() && (mediaType.getSubtype().equals("xml")
+        || mediaType.getSubtype().endsWith("+xml"));
+  }
+}
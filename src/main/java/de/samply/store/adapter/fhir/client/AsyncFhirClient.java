@@ -0,0 +1,469 @@
+package de.samply.store.adapter.fhir.client;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.store.adapter.fhir.service.FhirService;
+import de.samply.store.adapter.fhir.util.Anomaly;
+import de.samply.store.adapter.fhir.util.Anomaly.Fault;
+import de.samply.store.adapter.fhir.util.Anomaly.NotFound;
+import de.samply.store.adapter.fhir.util.Either;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A non-blocking FHIR client based on the HTTP client of the JDK.
+ *
+ * <p>In contrast to the HAPI FHIR client, no thread is held while waiting for the response.
+ * Requests are sent over HTTP/2 if the FHIR server supports it, so that many requests can be
+ * multiplexed over a single connection. The response body is parsed while it is received, so that
+ * a page is never held as bytes in addition to the parsed result. Parsing blocks while waiting for
+ * more of the body, so it runs on the decode executor instead of the threads of the HTTP client.
+ *
+ * <p>Every request, including receiving and parsing its body, is bounded by the timeout. If the
+ * timeout elapses or the returned future is cancelled, the exchange is aborted, so that a stalled
+ * body releases its decode thread and connection.
+ *
+ * <p>The client has its own connection handling by the JDK and isn't covered by the connection
+ * pool of the {@link StoreHttpClientFactory}. Of the {@code app.store.connection} settings only
+ * the connect timeout applies, there is no limit of connections, and no connection pool metrics
+ * are recorded for it.
+ *
+ * <p>All methods return futures which never complete exceptionally. Errors are returned as Left
+ * with {@link NotFound} for a HTTP 404 and {@link Fault} for all other errors.
+ */
+@Component
+public class AsyncFhirClient {
+
+  private static final Logger logger = LoggerFactory.getLogger(AsyncFhirClient.class);
+  private static final String FHIR_JSON = "application/fhir+json";
+
+  /**
+   * The number of resources per page when following all pages of a search.
+   */
+  private static final int RESOURCE_PAGE_SIZE = 1000;
+
+  private final FhirContext fhirContext;
+  private final String baseUrl;
+  private final Duration timeout;
+  private final boolean compressionEnabled;
+  private final HttpClient httpClient;
+  private final Executor decodeExecutor;
+
+  /**
+   * Creates a new {@code AsyncFhirClient}.
+   *
+   * @param fhirContext        the HAPI FHIR context used to parse and encode resources
+   * @param baseUrl            the base URL of the FHIR server
+   * @param connectTimeout     the timeout to establish a connection
+   * @param timeout            the maximum time to wait for a complete response
+   * @param compressionEnabled whether compressed responses should be requested
+   * @param decodeExecutor     the executor on which response bodies are decoded
+   */
+  public AsyncFhirClient(FhirContext fhirContext, @Value("${app.store.url}") String baseUrl,
+      @Value("${app.store.connection.connect-timeout}") Duration connectTimeout,
+      @Value("${app.store.async.timeout}") Duration timeout,
+      @Value("${app.store.compression.enabled}") boolean compressionEnabled,
+      @Qualifier("decodeExecutor") Executor decodeExecutor) {
+    this.fhirContext = Objects.requireNonNull(fhirContext);
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    this.timeout = Objects.requireNonNull(timeout);
+    this.compressionEnabled = compressionEnabled;
+    this.httpClient = HttpClient.newBuilder()
+        .version(Version.HTTP_2)
+        .connectTimeout(connectTimeout)
+        .followRedirects(Redirect.NORMAL)
+        .build();
+    this.decodeExecutor = Objects.requireNonNull(decodeExecutor);
+  }
+
+  /**
+   * Fetches the page with {@code pageUrl}.
+   *
+   * @param pageUrl the absolute URL of the page to fetch
+   * @return a future of either the bundle of the page or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> fetchPage(String pageUrl) {
+    logger.debug("fetch page asynchronously pageUrl={}", pageUrl);
+    return send(request(pageUrl).GET().build(), Bundle.class);
+  }
+
+  /**
+   * Fetches the page with {@code pageUrl} and decodes its body with {@code decoder} instead of
+   * parsing it into a {@link Bundle}.
+   *
+   * @param pageUrl the absolute URL of the page to fetch
+   * @param decoder the decoder of the uncompressed body
+   * @param <T>     the type of the decoded page
+   * @return a future of either the decoded page or an anomaly
+   */
+  public <T> CompletableFuture<Either<Anomaly, T>> fetchPage(String pageUrl,
+      BodyDecoder<T> decoder) {
+    logger.debug("fetch page asynchronously pageUrl={}", pageUrl);
+    return send(request(pageUrl).GET().build(), decoder);
+  }
+
+  /**
+   * Searches with the relative {@code query}, like {@code Patient?_id=0,1}.
+   *
+   * @param query the search query relative to the base URL
+   * @return a future of either the search set bundle or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> search(String query) {
+    return fetchPage(baseUrl + "/" + query);
+  }
+
+  /**
+   * Fetches the first page of patients on list with {@code listId} together with all resources
+   * referencing them.
+   *
+   * @param listId   the ID of the list to fetch patients from
+   * @param pageSize the page size
+   * @return a future of either the bundle of the first page or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> fetchFirstPage(String listId, int pageSize) {
+    return search(patientQuery("_list=" + encode(listId), pageSize));
+  }
+
+  /**
+   * Fetches the patients with {@code ids} together with all resources referencing them.
+   *
+   * @param ids the IDs of the patients to fetch
+   * @return a future of either the bundle of the patients or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> fetchPatients(List<String> ids) {
+    return search(patientsQuery(ids));
+  }
+
+  /**
+   * Returns the query of {@link #fetchPatients(List)}.
+   *
+   * @param ids the IDs of the patients to fetch
+   * @return the search query relative to the base URL
+   */
+  public static String patientsQuery(List<String> ids) {
+    return patientQuery("_id=" + encode(String.join(",", ids)), ids.size());
+  }
+
+  /**
+   * Fetches all resources referencing one of the patients with {@code ids} by the search parameter
+   * of {@code revInclude}, following all pages of the search.
+   *
+   * @param revInclude a reverse include like {@code Condition:patient}
+   * @param ids        the IDs of the patients
+   * @return a future of either a bundle of all resources found or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> fetchReferencing(String revInclude,
+      List<String> ids) {
+    return searchAll(referencingQuery(revInclude, ids));
+  }
+
+  /**
+   * Returns the first query of {@link #fetchReferencing(String, List)}.
+   *
+   * @param revInclude a reverse include like {@code Condition:patient}
+   * @param ids        the IDs of the patients
+   * @return the search query relative to the base URL
+   */
+  public static String referencingQuery(String revInclude, List<String> ids) {
+    var parts = revInclude.split(":", 2);
+    return parts[0] + "?" + parts[1] + "=" + encode(String.join(",", ids)) + "&_count="
+        + RESOURCE_PAGE_SIZE;
+  }
+
+  /**
+   * Searches with the relative {@code query} and follows all next links. The entries of all pages
+   * are collected in the bundle of the first page.
+   *
+   * @param query the search query relative to the base URL
+   * @return a future of either a bundle with the entries of all pages or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> searchAll(String query) {
+    return search(query).thenCompose(this::fetchRemainingPages);
+  }
+
+  /**
+   * Follows all next links of {@code page} and collects the entries of all pages in it.
+   *
+   * @param page either the first page of a search or an anomaly which is returned unchanged
+   * @return a future of either a bundle with the entries of all pages or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> fetchRemainingPages(
+      Either<Anomaly, Bundle> page) {
+    return page.map(bundle -> {
+      var next = bundle.getLink(IBaseBundle.LINK_NEXT);
+      if (next == null) {
+        return CompletableFuture.completedFuture(page);
+      }
+      return fetchPage(next.getUrl())
+          .thenCompose(this::fetchRemainingPages)
+          .thenApply(rest -> rest.map(restBundle -> {
+            bundle.getEntry().addAll(restBundle.getEntry());
+            return bundle;
+          }));
+    }).orElseGet(anomaly -> CompletableFuture.completedFuture(page));
+  }
+
+  private static String patientQuery(String criteria, int count) {
+    var query = new StringBuilder("Patient?").append(criteria);
+    for (String revInclude : FhirService.PATIENT_REV_INCLUDES) {
+      query.append("&_revinclude=").append(encode(revInclude));
+    }
+    return query.append("&_count=").append(count).toString();
+  }
+
+  /**
+   * Runs all {@code queries} in one batch bundle and returns the result of each query.
+   *
+   * <p>This saves round trips compared to sending each query separately. Only the first page of
+   * each search is returned. If the batch itself fails, the anomaly is returned for every query.
+   *
+   * @param queries the search queries relative to the base URL
+   * @return a future of either the search set bundle or an anomaly of each query in the same order
+   */
+  public CompletableFuture<List<Either<Anomaly, Bundle>>> batch(List<String> queries) {
+    logger.debug("run {} searches in one batch", queries.size());
+    var batch = new Bundle().setType(BundleType.BATCH);
+    for (String query : queries) {
+      batch.addEntry().getRequest().setMethod(HTTPVerb.GET).setUrl(query);
+    }
+    var body = fhirContext.newJsonParser().encodeResourceToString(batch);
+    return send(request(baseUrl)
+        .header("Content-Type", FHIR_JSON)
+        .POST(BodyPublishers.ofString(body, UTF_8))
+        .build(), Bundle.class)
+        .thenApply(response -> response
+            .flatMap(responseBundle -> demultiplex(queries, responseBundle))
+            .orElseGet(anomaly -> Collections.nCopies(queries.size(), Either.left(anomaly))));
+  }
+
+  private static Either<Anomaly, List<Either<Anomaly, Bundle>>> demultiplex(List<String> queries,
+      Bundle responseBundle) {
+    if (responseBundle.getEntry().size() != queries.size()) {
+      return Either.left(new Fault(format("Expected %d entries in the batch response but got %d.",
+          queries.size(), responseBundle.getEntry().size())));
+    }
+    var results = new ArrayList<Either<Anomaly, Bundle>>(queries.size());
+    for (int i = 0; i < queries.size(); i++) {
+      results.add(entryResult(queries.get(i), responseBundle.getEntry().get(i)));
+    }
+    return Either.right(results);
+  }
+
+  private static Either<Anomaly, Bundle> entryResult(String query, BundleEntryComponent entry) {
+    var status = entry.getResponse().getStatus();
+    var statusCode = statusCode(status);
+    if (statusCode == 404) {
+      return Either.left(new NotFound(format("Not found `%s`.", query)));
+    }
+    if (statusCode >= 400 || !(entry.getResource() instanceof Bundle bundle)) {
+      return Either.left(new Fault(format("Unexpected status %s while searching `%s`.", status,
+          query)));
+    }
+    return Either.right(bundle);
+  }
+
+  /**
+   * Parses the status code of a batch response entry like {@code 200 OK}.
+   */
+  private static int statusCode(String status) {
+    if (status == null || status.isBlank()) {
+      return 200;
+    }
+    try {
+      return Integer.parseInt(status.strip().split(" ", 2)[0]);
+    } catch (NumberFormatException e) {
+      return 500;
+    }
+  }
+
+  /**
+   * Fetches the bundle with the total size of the list with {@code listId}.
+   *
+   * @param listId the ID of the list
+   * @return a future of either the bundle or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> fetchTotalBundle(String listId) {
+    return search("Patient?_list=" + encode(listId) + "&_summary=count");
+  }
+
+  /**
+   * Evaluates the measure with {@code uri}.
+   *
+   * @param uri the canonical URI of the measure to evaluate
+   * @return a future of either the measure report or an anomaly
+   */
+  public CompletableFuture<Either<Anomaly, MeasureReport>> evaluateMeasure(String uri) {
+    var parameters = new Parameters();
+    parameters.addParameter().setName("measure").setValue(new StringType(uri));
+    parameters.addParameter().setName("reportType").setValue(new CodeType("subject-list"));
+    parameters.addParameter().setName("periodStart").setValue(new DateType(1900, 1, 1));
+    parameters.addParameter().setName("periodEnd").setValue(new DateType(2100, 1, 1));
+    var body = fhirContext.newJsonParser().encodeResourceToString(parameters);
+    return send(request(baseUrl + "/Measure/$evaluate-measure")
+        .header("Content-Type", FHIR_JSON)
+        .POST(BodyPublishers.ofString(body, UTF_8))
+        .build(), MeasureReport.class);
+  }
+
+  private HttpRequest.Builder request(String url) {
+    var builder = HttpRequest.newBuilder(URI.create(url))
+        .timeout(timeout)
+        .header("Accept", FHIR_JSON);
+    if (compressionEnabled) {
+      builder.header("Accept-Encoding", "gzip, deflate");
+    }
+    return builder;
+  }
+
+  private <T extends IBaseResource> CompletableFuture<Either<Anomaly, T>> send(
+      HttpRequest request, Class<T> type) {
+    return send(request, in -> {
+      try (Reader reader = new InputStreamReader(in, UTF_8)) {
+        return fhirContext.newJsonParser().parseResource(type, reader);
+      }
+    });
+  }
+
+  private <T> CompletableFuture<Either<Anomaly, T>> send(HttpRequest request,
+      BodyDecoder<T> decoder) {
+    var response = httpClient.sendAsync(request, BodyHandlers.ofInputStream());
+    var decoded = response.thenApplyAsync(r -> handle(request, r, decoder), decodeExecutor);
+    var result = new CompletableFuture<Either<Anomaly, T>>();
+    decoded.whenComplete((value, e) -> result.complete(e == null ? value : fault(request, e)));
+    var timedOut = Either.<Anomaly, T>left(new Fault(format(
+        "Timeout after %s while requesting `%s`.", timeout, request.uri())));
+    result.completeOnTimeout(timedOut, timeout.toMillis(), MILLISECONDS)
+        .whenComplete((value, e) -> {
+          if (!decoded.isDone()) {
+            abort(request, response);
+          }
+        });
+    return result;
+  }
+
+  private static <T> Either<Anomaly, T> fault(HttpRequest request, Throwable e) {
+    var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    logger.debug("error while requesting {}", request.uri(), cause);
+    return Either.left(new Fault(format("Error while requesting `%s`: %s", request.uri(),
+        cause.getMessage())));
+  }
+
+  /**
+   * Aborts the exchange of {@code response}. Cancelling aborts the exchange if the response
+   * headers aren't received yet. Otherwise closing the body cancels receiving it, which also ends
+   * a blocked read of the decoder.
+   */
+  private static void abort(HttpRequest request,
+      CompletableFuture<HttpResponse<InputStream>> response) {
+    logger.debug("abort request to {}", request.uri());
+    response.cancel(true);
+    response.thenAccept(r -> {
+      try {
+        r.body().close();
+      } catch (IOException e) {
+        logger.debug("error while closing the response body of {}", request.uri(), e);
+      }
+    });
+  }
+
+  /**
+   * Decodes the body of {@code response} while it is received. The body stream is closed in any
+   * case, so that the connection is released.
+   */
+  private static <T> Either<Anomaly, T> handle(HttpRequest request,
+      HttpResponse<InputStream> response, BodyDecoder<T> decoder) {
+    if (response.statusCode() >= 400) {
+      try (InputStream ignored = response.body()) {
+        return response.statusCode() == 404
+            ? Either.left(new NotFound(format("Not found `%s`.", request.uri())))
+            : Either.left(new Fault(format("Unexpected status %d while requesting `%s`.",
+                response.statusCode(), request.uri())));
+      } catch (IOException e) {
+        return Either.left(new Fault(format("Error while requesting `%s`: %s", request.uri(),
+            e.getMessage())));
+      }
+    }
+    try (InputStream in = decode(response)) {
+      return Either.right(decoder.decode(in));
+    } catch (IOException | RuntimeException e) {
+      return Either.left(new Fault(format("Error while parsing the response of `%s`: %s",
+          request.uri(), e.getMessage())));
+    }
+  }
+
+  private static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+    var in = response.body();
+    try {
+      return switch (response.headers().firstValue("Content-Encoding").orElse("identity")) {
+        case "gzip" -> new GZIPInputStream(in);
+        case "deflate" -> new DeflateInputStream(in);
+        default -> in;
+      };
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  private static String encode(String value) {
+    return URLEncoder.encode(Objects.requireNonNull(value), UTF_8);
+  }
+
+  /**
+   * A decoder of the body of a response.
+   *
+   * @param <T> the type of the decoded body
+   */
+  @FunctionalInterface
+  public interface BodyDecoder<T> {
+
+    /**
+     * Decodes the uncompressed body from {@code in}.
+     *
+     * @param in the body
+     * @return the decoded body
+     * @throws IOException if the body can't be read or decoded
+     */
+    T decode(InputStream in) throws IOException;
+  }
+}
@@ -0,0 +1,153 @@
+package de.samply.store.adapter.fhir.client;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An interceptor of the Apache HTTP client which negotiates compressed responses with the FHIR
+ * server.
+ *
+ * <p>Responses encoded with {@code gzip} or {@code deflate} are decompressed transparently. The
+ * number of bytes received over the wire and the number of bytes after decompression are recorded
+ * in the distribution summaries {@value #COMPRESSED_METRIC} and {@value #UNCOMPRESSED_METRIC}
+ * tagged with the content encoding.
+ */
+public class CompressionInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+  static final String COMPRESSED_METRIC = "fhir.client.response.compressed";
+  static final String UNCOMPRESSED_METRIC = "fhir.client.response.uncompressed";
+
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+  private static final String IDENTITY = "identity";
+
+  private final MeterRegistry meterRegistry;
+
+  /**
+   * Creates a new {@code CompressionInterceptor}.
+   *
+   * @param meterRegistry the registry to record the byte counts in
+   */
+  public CompressionInterceptor(MeterRegistry meterRegistry) {
+    this.meterRegistry = Objects.requireNonNull(meterRegistry);
+  }
+
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    if (!request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+      request.addHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+    }
+  }
+
+  @Override
+  public void process(HttpResponse response, HttpContext context) {
+    var entity = response.getEntity();
+    if (entity == null || entity.getContentLength() == 0) {
+      return;
+    }
+    var encoding = Optional.ofNullable(entity.getContentEncoding())
+        .map(header -> header.getValue().trim().toLowerCase(Locale.ROOT))
+        .orElse(IDENTITY);
+    switch (encoding) {
+      case "gzip", "x-gzip" -> decode(response, entity, "gzip", true);
+      case "deflate" -> decode(response, entity, "deflate", true);
+      case IDENTITY -> decode(response, entity, IDENTITY, false);
+      default -> {
+        // unknown encodings are passed through untouched
+      }
+    }
+  }
+
+  private void decode(HttpResponse response, HttpEntity entity, String encoding,
+      boolean compressed) {
+    response.setEntity(new MeteredEntity(entity, encoding, compressed));
+    if (compressed) {
+      response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+      response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+      response.removeHeaders(HttpHeaders.CONTENT_MD5);
+    }
+  }
+
+  private void record(String encoding, long compressedBytes, long uncompressedBytes) {
+    summary(COMPRESSED_METRIC, encoding).record(compressedBytes);
+    summary(UNCOMPRESSED_METRIC, encoding).record(uncompressedBytes);
+  }
+
+  private DistributionSummary summary(String name, String encoding) {
+    return DistributionSummary.builder(name)
+        .baseUnit("bytes")
+        .tag("encoding", encoding)
+        .register(meterRegistry);
+  }
+
+  /**
+   * An entity which decodes the content of the wrapped entity and records the byte counts as soon
+   * as its content stream is closed.
+   */
+  private class MeteredEntity extends HttpEntityWrapper {
+
+    private final String encoding;
+    private final boolean compressed;
+
+    private MeteredEntity(HttpEntity wrappedEntity, String encoding, boolean compressed) {
+      super(wrappedEntity);
+      this.encoding = encoding;
+      this.compressed = compressed;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      var wire = new CountingInputStream(wrappedEntity.getContent());
+      var decoded = switch (encoding) {
+        case "gzip" -> new GZIPInputStream(wire);
+        case "deflate" -> new DeflateInputStream(wire);
+        default -> wire;
+      };
+      return new CountingInputStream(decoded) {
+        private boolean closed;
+
+        @Override
+        public void close() throws IOException {
+          if (!closed) {
+            closed = true;
+            record(encoding, wire.getCount(), getCount());
+          }
+          super.close();
+        }
+      };
+    }
+
+    @Override
+    public long getContentLength() {
+      return compressed ? -1 : super.getContentLength();
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return compressed ? null : super.getContentEncoding();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      try (InputStream in = getContent()) {
+        in.transferTo(out);
+      }
+    }
+  }
+}
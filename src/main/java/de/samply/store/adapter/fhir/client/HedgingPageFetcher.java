@@ -0,0 +1,191 @@
+package de.samply.store.adapter.fhir.client;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import de.samply.store.adapter.fhir.util.Anomaly;
+import de.samply.store.adapter.fhir.util.Anomaly.Fault;
+import de.samply.store.adapter.fhir.util.Either;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Fetches pages with hedged requests and retries.
+ *
+ * <p>If a page fetch has not completed after a percentile of the recent page fetch latencies, a
+ * second, identical request is sent and whichever succeeds first is taken. The other request is
+ * cancelled then. Until enough latencies are recorded, the minimum delay is used. Because page
+ * fetches are idempotent GET requests, they are also retried with exponential backoff if they fail
+ * with a {@link Fault}.
+ *
+ * <p>The number of hedges fired and won are counted in {@value #HEDGES_FIRED_METRIC} and
+ * {@value #HEDGES_WON_METRIC}, the number of retries in {@value #RETRIES_METRIC}.
+ */
+@Component
+public class HedgingPageFetcher {
+
+  static final String HEDGES_FIRED_METRIC = "fhir.client.hedges.fired";
+  static final String HEDGES_WON_METRIC = "fhir.client.hedges.won";
+  static final String RETRIES_METRIC = "fhir.client.retries";
+
+  private static final Logger logger = LoggerFactory.getLogger(HedgingPageFetcher.class);
+  private static final int WINDOW_SIZE = 128;
+  private static final int MIN_SAMPLES = 10;
+
+  private final AsyncFhirClient client;
+  private final double percentile;
+  private final Duration minDelay;
+  private final int maxAttempts;
+  private final Duration backoff;
+  private final LatencyWindow latencies = new LatencyWindow(WINDOW_SIZE);
+  private final Counter hedgesFired;
+  private final Counter hedgesWon;
+  private final Counter retries;
+
+  /**
+   * Creates a new {@code HedgingPageFetcher}.
+   *
+   * @param client        the non-blocking FHIR client
+   * @param meterRegistry the registry to record the metrics in
+   * @param percentile    the percentile of recent latencies after which a hedge is fired
+   * @param minDelay      the minimum time to wait before a hedge is fired
+   * @param maxAttempts   the maximum number of attempts including the first one
+   * @param backoff       the time to wait before the first retry, doubled on every retry
+   */
+  public HedgingPageFetcher(AsyncFhirClient client, MeterRegistry meterRegistry,
+      @Value("${app.store.hedging.percentile}") double percentile,
+      @Value("${app.store.hedging.min-delay}") Duration minDelay,
+      @Value("${app.store.hedging.max-attempts}") int maxAttempts,
+      @Value("${app.store.hedging.backoff}") Duration backoff) {
+    this.client = Objects.requireNonNull(client);
+    this.percentile = percentile;
+    this.minDelay = Objects.requireNonNull(minDelay);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.backoff = Objects.requireNonNull(backoff);
+    hedgesFired = Counter.builder(HEDGES_FIRED_METRIC).register(meterRegistry);
+    hedgesWon = Counter.builder(HEDGES_WON_METRIC).register(meterRegistry);
+    retries = Counter.builder(RETRIES_METRIC).register(meterRegistry);
+  }
+
+  /**
+   * Fetches the page with {@code pageUrl}.
+   *
+   * @param pageUrl the absolute URL of the page to fetch
+   * @return a future of either the bundle of the page or the anomaly of the last attempt
+   */
+  public CompletableFuture<Either<Anomaly, Bundle>> fetchPage(String pageUrl) {
+    return attempt(pageUrl, 1);
+  }
+
+  private CompletableFuture<Either<Anomaly, Bundle>> attempt(String pageUrl, int attempt) {
+    return hedged(pageUrl).thenCompose(result -> result
+        .map(bundle -> CompletableFuture.completedFuture(result))
+        .orElseGet(anomaly -> {
+          if (anomaly instanceof Fault && attempt < maxAttempts) {
+            var delay = backoff.toMillis() << (attempt - 1);
+            logger.debug("retry fetching page pageUrl={} in {} ms after: {}", pageUrl, delay,
+                anomaly.msg());
+            retries.increment();
+            return CompletableFuture.supplyAsync(() -> pageUrl,
+                    CompletableFuture.delayedExecutor(delay, MILLISECONDS))
+                .thenCompose(url -> attempt(url, attempt + 1));
+          }
+          return CompletableFuture.completedFuture(result);
+        }));
+  }
+
+  private CompletableFuture<Either<Anomaly, Bundle>> hedged(String pageUrl) {
+    var hedge = new Hedge();
+    send(pageUrl, hedge, false);
+    CompletableFuture.delayedExecutor(hedgeDelay(), NANOSECONDS).execute(() -> {
+      if (!hedge.result.isDone()) {
+        hedge.outstanding.incrementAndGet();
+        logger.debug("fire hedge for page pageUrl={}", pageUrl);
+        hedgesFired.increment();
+        send(pageUrl, hedge, true);
+      }
+    });
+    return hedge.result;
+  }
+
+  /**
+   * Sends one request and settles {@code hedge} with its response if it's successful or if it
+   * is the last outstanding request.
+   */
+  private void send(String pageUrl, Hedge hedge, boolean isHedge) {
+    var start = System.nanoTime();
+    var request = client.fetchPage(pageUrl);
+    hedge.requests.set(isHedge ? 1 : 0, request);
+    if (hedge.settled.get()) {
+      // the other request has already won before this one was registered
+      request.cancel(true);
+      return;
+    }
+    request.thenAccept(response -> {
+      var remaining = hedge.outstanding.decrementAndGet();
+      if (response instanceof Either.Right) {
+        latencies.record(System.nanoTime() - start);
+        if (hedge.settle()) {
+          if (isHedge) {
+            hedgesWon.increment();
+          }
+          hedge.result.complete(response);
+        }
+      } else if (remaining == 0 && hedge.settle()) {
+        hedge.result.complete(response);
+      }
+    });
+  }
+
+  /**
+   * The state of one hedged fetch.
+   *
+   * <p>Both requests are kept, so that the one which loses can be cancelled. Cancelling aborts its
+   * exchange and frees its connection and decode thread.
+   */
+  private static class Hedge {
+
+    private final CompletableFuture<Either<Anomaly, Bundle>> result = new CompletableFuture<>();
+    private final AtomicReferenceArray<CompletableFuture<Either<Anomaly, Bundle>>> requests =
+        new AtomicReferenceArray<>(2);
+    private final AtomicInteger outstanding = new AtomicInteger(1);
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    /**
+     * Settles this hedge and cancels all requests still in flight. The caller completes the
+     * result afterwards.
+     *
+     * @return whether this hedge wasn't settled before
+     */
+    private boolean settle() {
+      if (!settled.compareAndSet(false, true)) {
+        return false;
+      }
+      for (int i = 0; i < requests.length(); i++) {
+        var request = requests.get(i);
+        if (request != null) {
+          request.cancel(true);
+        }
+      }
+      return true;
+    }
+  }
+
+  private long hedgeDelay() {
+    if (latencies.size() < MIN_SAMPLES) {
+      return minDelay.toNanos();
+    }
+    return Math.max(minDelay.toNanos(), latencies.percentile(percentile));
+  }
+}
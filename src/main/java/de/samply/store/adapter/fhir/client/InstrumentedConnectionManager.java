@@ -0,0 +1,55 @@
+package de.samply.store.adapter.fhir.client;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * A pooling connection manager which records the time requests have to wait until they can lease
+ * a connection from the pool in the timer {@value #LEASE_METRIC}.
+ */
+class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+  static final String LEASE_METRIC = "fhir.client.pool.lease";
+
+  private final MeterRegistry meterRegistry;
+
+  InstrumentedConnectionManager(long timeToLive, TimeUnit timeUnit, MeterRegistry meterRegistry) {
+    super(timeToLive, timeUnit);
+    this.meterRegistry = Objects.requireNonNull(meterRegistry);
+  }
+
+  @Override
+  public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+    var request = super.requestConnection(route, state);
+    return new ConnectionRequest() {
+      @Override
+      public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+          throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+        var sample = Timer.start(meterRegistry);
+        var outcome = "timeout";
+        try {
+          var connection = request.get(timeout, timeUnit);
+          outcome = "success";
+          return connection;
+        } finally {
+          sample.stop(Timer.builder(LEASE_METRIC)
+              .tag("outcome", outcome)
+              .register(meterRegistry));
+        }
+      }
+
+      @Override
+      public boolean cancel() {
+        return request.cancel();
+      }
+    };
+  }
+}
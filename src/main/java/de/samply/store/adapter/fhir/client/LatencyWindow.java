@@ -0,0 +1,43 @@
+package de.samply.store.adapter.fhir.client;
+
+import java.util.Arrays;
+
+/**
+ * A sliding window of the most recent latencies, used to estimate latency percentiles.
+ */
+class LatencyWindow {
+
+  private final long[] samples;
+  private int next;
+  private int size;
+
+  LatencyWindow(int capacity) {
+    samples = new long[capacity];
+  }
+
+  synchronized void record(long nanos) {
+    samples[next] = nanos;
+    next = (next + 1) % samples.length;
+    size = Math.min(size + 1, samples.length);
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the {@code percentile} of the latencies in this window or -1 if it is empty.
+   *
+   * @param percentile the percentile between 0 and 1
+   * @return the latency in nanoseconds
+   */
+  synchronized long percentile(double percentile) {
+    if (size == 0) {
+      return -1;
+    }
+    var sorted = Arrays.copyOf(samples, size);
+    Arrays.sort(sorted);
+    var index = (int) Math.ceil(percentile * size) - 1;
+    return sorted[Math.max(0, Math.min(size - 1, index))];
+  }
+}
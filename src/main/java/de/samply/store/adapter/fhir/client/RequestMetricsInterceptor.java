@@ -0,0 +1,124 @@
+package de.samply.store.adapter.fhir.client;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * An interceptor of the Apache HTTP client which records the latency of requests to the FHIR
+ * server and the size of their responses.
+ *
+ * <p>The latency is measured from sending the request until the response body is closed and
+ * recorded in the timer {@value #REQUEST_METRIC}. The number of bytes received over the wire is
+ * recorded in the distribution summary {@value #RESPONSE_SIZE_METRIC}. Both are tagged with the
+ * HTTP method and status.
+ */
+public class RequestMetricsInterceptor implements HttpRequestInterceptor,
+    HttpResponseInterceptor {
+
+  static final String REQUEST_METRIC = "fhir.client.requests";
+  static final String RESPONSE_SIZE_METRIC = "fhir.client.response.size";
+
+  private static final String START_ATTRIBUTE = RequestMetricsInterceptor.class.getName()
+      + ".start";
+
+  private final MeterRegistry meterRegistry;
+
+  /**
+   * Creates a new {@code RequestMetricsInterceptor}.
+   *
+   * @param meterRegistry the registry to record the metrics in
+   */
+  public RequestMetricsInterceptor(MeterRegistry meterRegistry) {
+    this.meterRegistry = Objects.requireNonNull(meterRegistry);
+  }
+
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+  }
+
+  @Override
+  public void process(HttpResponse response, HttpContext context) {
+    var start = (Long) context.getAttribute(START_ATTRIBUTE);
+    if (start == null) {
+      return;
+    }
+    var request = HttpCoreContext.adapt(context).getRequest();
+    var method = request == null ? "UNKNOWN" : request.getRequestLine().getMethod();
+    var status = Integer.toString(response.getStatusLine().getStatusCode());
+    var entity = response.getEntity();
+    if (entity == null) {
+      record(method, status, start, 0);
+    } else {
+      response.setEntity(new MeteredEntity(entity, method, status, start));
+    }
+  }
+
+  private void record(String method, String status, long start, long bytes) {
+    Timer.builder(REQUEST_METRIC)
+        .tag("method", method)
+        .tag("status", status)
+        .register(meterRegistry)
+        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    DistributionSummary.builder(RESPONSE_SIZE_METRIC)
+        .baseUnit("bytes")
+        .tag("method", method)
+        .tag("status", status)
+        .register(meterRegistry)
+        .record(bytes);
+  }
+
+  /**
+   * An entity which records the metrics as soon as its content stream is closed.
+   */
+  private class MeteredEntity extends HttpEntityWrapper {
+
+    private final String method;
+    private final String status;
+    private final long start;
+
+    private MeteredEntity(HttpEntity wrappedEntity, String method, String status, long start) {
+      super(wrappedEntity);
+      this.method = method;
+      this.status = status;
+      this.start = start;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new CountingInputStream(wrappedEntity.getContent()) {
+        private boolean closed;
+
+        @Override
+        public void close() throws IOException {
+          if (!closed) {
+            closed = true;
+            record(method, status, start, getCount());
+          }
+          super.close();
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      try (InputStream in = getContent()) {
+        in.transferTo(out);
+      }
+    }
+  }
+}
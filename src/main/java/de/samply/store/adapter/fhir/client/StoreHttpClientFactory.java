@@ -0,0 +1,116 @@
+package de.samply.store.adapter.fhir.client;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A factory of the HTTP client used to talk to the FHIR server.
+ *
+ * <p>All connection pool settings and timeouts are configurable under {@code app.store.connection}.
+ * The pool itself is instrumented with gauges of leased, available and pending connections under
+ * the name {@code fhir-store}, the lease wait time and the latency and size of every request.
+ */
+@Component
+public class StoreHttpClientFactory {
+
+  private static final String POOL_NAME = "fhir-store";
+
+  private final MeterRegistry meterRegistry;
+  private final int maxTotal;
+  private final int maxPerRoute;
+  private final Duration timeToLive;
+  private final Duration idleTimeout;
+  private final Duration keepAlive;
+  private final Duration connectTimeout;
+  private final Duration socketTimeout;
+  private final Duration requestTimeout;
+  private final boolean compressionEnabled;
+
+  /**
+   * Creates a new {@code StoreHttpClientFactory}.
+   *
+   * @param meterRegistry      the registry to record metrics in
+   * @param maxTotal           the maximum number of connections in the pool
+   * @param maxPerRoute        the maximum number of connections per route
+   * @param timeToLive         the maximum time a connection is reused after it was created
+   * @param idleTimeout        the time after which idle connections are evicted from the pool
+   * @param keepAlive          the maximum time a connection is kept alive if the server doesn't
+   *                           send a {@code Keep-Alive} header
+   * @param connectTimeout     the timeout to establish a connection
+   * @param socketTimeout      the maximum time of inactivity between two data packets
+   * @param requestTimeout     the maximum time to wait for a connection from the pool
+   * @param compressionEnabled whether compressed responses should be requested
+   */
+  public StoreHttpClientFactory(MeterRegistry meterRegistry,
+      @Value("${app.store.connection.max-total}") int maxTotal,
+      @Value("${app.store.connection.max-per-route}") int maxPerRoute,
+      @Value("${app.store.connection.time-to-live}") Duration timeToLive,
+      @Value("${app.store.connection.idle-timeout}") Duration idleTimeout,
+      @Value("${app.store.connection.keep-alive}") Duration keepAlive,
+      @Value("${app.store.connection.connect-timeout}") Duration connectTimeout,
+      @Value("${app.store.connection.socket-timeout}") Duration socketTimeout,
+      @Value("${app.store.connection.request-timeout}") Duration requestTimeout,
+      @Value("${app.store.compression.enabled}") boolean compressionEnabled) {
+    this.meterRegistry = Objects.requireNonNull(meterRegistry);
+    this.maxTotal = maxTotal;
+    this.maxPerRoute = maxPerRoute;
+    this.timeToLive = Objects.requireNonNull(timeToLive);
+    this.idleTimeout = Objects.requireNonNull(idleTimeout);
+    this.keepAlive = Objects.requireNonNull(keepAlive);
+    this.connectTimeout = Objects.requireNonNull(connectTimeout);
+    this.socketTimeout = Objects.requireNonNull(socketTimeout);
+    this.requestTimeout = Objects.requireNonNull(requestTimeout);
+    this.compressionEnabled = compressionEnabled;
+  }
+
+  /**
+   * Creates a new HTTP client with its own connection pool.
+   *
+   * @return the HTTP client
+   */
+  public CloseableHttpClient createHttpClient() {
+    var connectionManager = new InstrumentedConnectionManager(timeToLive.toMillis(),
+        TimeUnit.MILLISECONDS, meterRegistry);
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, POOL_NAME)
+        .bindTo(meterRegistry);
+
+    var metricsInterceptor = new RequestMetricsInterceptor(meterRegistry);
+    var builder = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(Math.toIntExact(connectTimeout.toMillis()))
+            .setSocketTimeout(Math.toIntExact(socketTimeout.toMillis()))
+            .setConnectionRequestTimeout(Math.toIntExact(requestTimeout.toMillis()))
+            .build())
+        .setKeepAliveStrategy((response, context) -> {
+          var duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+              .getKeepAliveDuration(response, context);
+          return duration < 0 ? keepAlive.toMillis() : Math.min(duration, keepAlive.toMillis());
+        })
+        .evictExpiredConnections()
+        .evictIdleConnections(idleTimeout.toMillis(), TimeUnit.MILLISECONDS)
+        .disableCookieManagement()
+        .disableContentCompression()
+        .addInterceptorFirst((HttpRequestInterceptor) metricsInterceptor)
+        .addInterceptorFirst((HttpResponseInterceptor) metricsInterceptor);
+    if (compressionEnabled) {
+      var compressionInterceptor = new CompressionInterceptor(meterRegistry);
+      builder.addInterceptorLast((HttpRequestInterceptor) compressionInterceptor);
+      builder.addInterceptorLast((HttpResponseInterceptor) compressionInterceptor);
+    }
+    return builder.build();
+  }
+}
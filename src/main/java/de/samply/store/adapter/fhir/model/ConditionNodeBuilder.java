@@ -1,9 +1,7 @@
 package de.samply.store.adapter.fhir.model;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.Condition;
@@ -16,8 +14,8 @@ class ConditionNodeBuilder {
   private Condition condition;
   private final List<Observation> histologies = new ArrayList<>();
   private final List<Procedure> procedures = new ArrayList<>();
-  private final Map<String, ClinicalImpressionNodeBuilder> clinicalImpressionContainers =
-      new HashMap<>();
+  private final List<ClinicalImpressionNodeBuilder> clinicalImpressionNodeBuilders =
+      new ArrayList<>();
 
   ConditionNodeBuilder(PatientNodeBuilder patientNodeBuilder) {
     this.patientNodeBuilder = patientNodeBuilder;
@@ -35,9 +33,10 @@ class ConditionNodeBuilder {
     procedures.add(Objects.requireNonNull(procedure));
   }
 
-  ClinicalImpressionNodeBuilder getClinicalImpressionNodeBuilder(String reference) {
-    return clinicalImpressionContainers.computeIfAbsent(Objects.requireNonNull(reference),
-        k -> new ClinicalImpressionNodeBuilder());
+  ClinicalImpressionNodeBuilder addClinicalImpressionNodeBuilder() {
+    var clinicalImpressionNodeBuilder = new ClinicalImpressionNodeBuilder();
+    clinicalImpressionNodeBuilders.add(clinicalImpressionNodeBuilder);
+    return clinicalImpressionNodeBuilder;
   }
 
   Stream<ConditionNode> build() {
@@ -45,7 +44,7 @@ class ConditionNodeBuilder {
         .map(c -> new ConditionNode(patient, c,
             List.copyOf(histologies),
             List.copyOf(procedures),
-            clinicalImpressionContainers.values().stream()
+            clinicalImpressionNodeBuilders.stream()
                 .flatMap(ClinicalImpressionNodeBuilder::build)
                 .toList())));
   }
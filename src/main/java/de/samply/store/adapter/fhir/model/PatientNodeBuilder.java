@@ -1,9 +1,7 @@
 package de.samply.store.adapter.fhir.model;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -15,7 +13,7 @@ class PatientNodeBuilder {
 
   private Patient patient;
   private Observation vitalState;
-  private final Map<String, ConditionNodeBuilder> conditionNodeBuilders = new HashMap<>();
+  private final List<ConditionNodeBuilder> conditionNodeBuilders = new ArrayList<>();
   private final List<Specimen> specimens = new ArrayList<>();
 
   PatientNodeBuilder() {
@@ -33,9 +31,10 @@ class PatientNodeBuilder {
     this.vitalState = Objects.requireNonNull(vitalState);
   }
 
-  ConditionNodeBuilder getConditionNodeBuilder(String reference) {
-    return conditionNodeBuilders.computeIfAbsent(Objects.requireNonNull(reference),
-        k -> new ConditionNodeBuilder(this));
+  ConditionNodeBuilder addConditionNodeBuilder() {
+    var conditionNodeBuilder = new ConditionNodeBuilder(this);
+    conditionNodeBuilders.add(conditionNodeBuilder);
+    return conditionNodeBuilder;
   }
 
   void addSpecimen(Specimen specimen) {
@@ -44,7 +43,7 @@ class PatientNodeBuilder {
 
   Stream<PatientNode> build() {
     return Stream.ofNullable(patient).map(p -> new PatientNode(p, Optional.ofNullable(vitalState),
-        conditionNodeBuilders.values().stream().flatMap(ConditionNodeBuilder::build).toList(),
+        conditionNodeBuilders.stream().flatMap(ConditionNodeBuilder::build).toList(),
         List.copyOf(specimens)));
   }
 }
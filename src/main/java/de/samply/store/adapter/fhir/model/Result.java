@@ -2,7 +2,30 @@ package de.samply.store.adapter.fhir.model;
 
 /**
  * A result of a FHIR query.
+ *
+ * @param id        the identifier of the result
+ * @param total     the total number of patients
+ * @param pageSize  the number of patients per page served
+ * @param batchSize the number of patients fetched from the FHIR server at once, a multiple of
+ *                  {@code pageSize}
  */
-public record Result(String id, int total) {
+public record Result(String id, int total, int pageSize, int batchSize) {
 
+  /**
+   * Returns the number of pages served from one batch.
+   *
+   * @return the number of pages per batch
+   */
+  public int pagesPerBatch() {
+    return batchSize / pageSize;
+  }
+
+  /**
+   * Returns the number of pages served.
+   *
+   * @return the number of pages
+   */
+  public int numPages() {
+    return (int) Math.ceil((double) total / pageSize);
+  }
 }
@@ -1,8 +1,12 @@
 package de.samply.store.adapter.fhir.model;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Function;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.ClinicalImpression;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -16,13 +20,23 @@ import org.hl7.fhir.r4.model.Specimen;
 
 /**
  * A builder for {@link RootNode}.
+ *
+ * <p>The builder indexes all resources in one pass. The reference of every resource is built
+ * only once and is also used as key of its node builder. The node builders are held in maps
+ * keyed by the identity of the builder of their parent and then by their reference, so that the
+ * patient and condition node builders don't need maps of their own.
  */
 public class RootNodeBuilder {
 
   private final Map<String, PatientNodeBuilder> patientNodeBuilders = new HashMap<>();
-  private final Map<String, Resource> resources = new HashMap<>();
+  private final Map<PatientNodeBuilder, Map<String, ConditionNodeBuilder>> conditionNodeBuilders =
+      new IdentityHashMap<>();
+  private final Map<ConditionNodeBuilder, Map<String, ClinicalImpressionNodeBuilder>>
+      clinicalImpressionNodeBuilders = new IdentityHashMap<>();
+  private final Map<String, Resource> resources;
 
-  private RootNodeBuilder() {
+  private RootNodeBuilder(int numResources) {
+    resources = new HashMap<>(capacity(numResources));
   }
 
   /**
@@ -33,37 +47,35 @@ public class RootNodeBuilder {
    *     each inner lists.
    */
   public static RootNode fromBundle(Bundle bundle) {
-    var builder = new RootNodeBuilder();
+    var builder = new RootNodeBuilder(bundle.getEntry().size());
 
     for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
       Resource resource = entry.getResource();
+      var reference = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
       switch (resource.getResourceType()) {
-        case Patient -> builder.addPatient((Patient) resource);
-        case Condition -> builder.addCondition((Condition) resource);
+        case Patient -> builder.addPatient(reference, (Patient) resource);
+        case Condition -> builder.addCondition(reference, (Condition) resource);
         case Observation -> builder.addObservation((Observation) resource);
         case Procedure -> builder.addProcedure((Procedure) resource);
         case Specimen -> builder.addSpecimen((Specimen) resource);
-        case ClinicalImpression -> builder.addClinicalImpression((ClinicalImpression) resource);
+        case ClinicalImpression -> builder.addClinicalImpression(reference,
+            (ClinicalImpression) resource);
         default -> {
           // TODO: google style needs this
         }
       }
-      builder.resources.put(
-          resource.getResourceType() + "/" + resource.getIdElement().getIdPart(),
-          resource);
+      builder.resources.put(reference, resource);
     }
     return builder.build();
   }
 
-  private void addPatient(Patient resource) {
-    getPatientNodeBuilder("Patient/" + resource.getIdElement().getIdPart())
-        .setPatient(resource);
+  private void addPatient(String reference, Patient resource) {
+    getPatientNodeBuilder(reference).setPatient(resource);
   }
 
-  private void addCondition(Condition resource) {
-    getPatientNodeBuilder(resource.getSubject().getReference())
-        .getConditionNodeBuilder("Condition/" + resource.getIdElement().getIdPart())
-        .setCondition(resource);
+  private void addCondition(String reference, Condition resource) {
+    getConditionNodeBuilder(getPatientNodeBuilder(resource.getSubject().getReference()),
+        reference).setCondition(resource);
   }
 
   private void addObservation(Observation observation) {
@@ -76,8 +88,9 @@ public class RootNodeBuilder {
               break;
             case "59847-4":
               if (observation.hasFocus()) {
-                getPatientNodeBuilder(observation.getSubject().getReference())
-                    .getConditionNodeBuilder(observation.getFocusFirstRep().getReference())
+                getConditionNodeBuilder(
+                    getPatientNodeBuilder(observation.getSubject().getReference()),
+                    observation.getFocusFirstRep().getReference())
                     .addHistology(observation);
               }
               break;
@@ -88,8 +101,8 @@ public class RootNodeBuilder {
 
   private void addProcedure(Procedure resource) {
     if (resource.hasReasonReference()) {
-      getPatientNodeBuilder(resource.getSubject().getReference())
-          .getConditionNodeBuilder(resource.getReasonReferenceFirstRep().getReference())
+      getConditionNodeBuilder(getPatientNodeBuilder(resource.getSubject().getReference()),
+          resource.getReasonReferenceFirstRep().getReference())
           .addProcedure(resource);
     }
   }
@@ -99,26 +112,66 @@ public class RootNodeBuilder {
         .addSpecimen(resource);
   }
 
-  private void addClinicalImpression(ClinicalImpression clinicalImpression) {
+  private void addClinicalImpression(String reference, ClinicalImpression clinicalImpression) {
     if (clinicalImpression.hasProblem()) {
-      getPatientNodeBuilder(clinicalImpression.getSubject().getReference())
-          .getConditionNodeBuilder(clinicalImpression.getProblemFirstRep().getReference())
-          .getClinicalImpressionNodeBuilder(
-              "ClinicalImpression/" + clinicalImpression.getIdElement().getIdPart())
+      var conditionNodeBuilder = getConditionNodeBuilder(
+          getPatientNodeBuilder(clinicalImpression.getSubject().getReference()),
+          clinicalImpression.getProblemFirstRep().getReference());
+      getChild(clinicalImpressionNodeBuilders, conditionNodeBuilder, reference,
+          ConditionNodeBuilder::addClinicalImpressionNodeBuilder)
           .setClinicalImpression(clinicalImpression);
     }
   }
 
+  /**
+   * The resources are not copied, because nothing else references the index.
+   */
   private RootNode build() {
     return new RootNode(
         patientNodeBuilders.values().stream().flatMap(PatientNodeBuilder::build).toList(),
-        Map.copyOf(resources));
+        Collections.unmodifiableMap(resources));
   }
 
   private PatientNodeBuilder getPatientNodeBuilder(String reference) {
     return patientNodeBuilders.computeIfAbsent(reference, k -> new PatientNodeBuilder());
   }
 
+  private ConditionNodeBuilder getConditionNodeBuilder(PatientNodeBuilder patientNodeBuilder,
+      String reference) {
+    return getChild(conditionNodeBuilders, patientNodeBuilder, reference,
+        PatientNodeBuilder::addConditionNodeBuilder);
+  }
+
+  /**
+   * Returns the child of {@code parent} with {@code reference} and adds it with {@code add} if it
+   * doesn't exist yet.
+   *
+   * <p>The children are held in one map per parent, which is looked up by identity, so that no key
+   * has to be allocated per lookup.
+   */
+  private static <P, C> C getChild(Map<P, Map<String, C>> children, P parent, String reference,
+      Function<P, C> add) {
+    var byReference = children.get(parent);
+    if (byReference == null) {
+      byReference = new HashMap<>();
+      children.put(parent, byReference);
+    }
+    var child = byReference.get(Objects.requireNonNull(reference));
+    if (child == null) {
+      child = add.apply(parent);
+      byReference.put(reference, child);
+    }
+    return child;
+  }
+
+  /**
+   * Returns the initial capacity of a {@link HashMap} holding {@code size} entries without
+   * resizing.
+   */
+  private static int capacity(int size) {
+    return (int) (size / 0.75f) + 1;
+  }
+
   private static Optional<String> findFirstLonicCode(CodeableConcept concept) {
     return concept.getCoding().stream()
         .filter(c -> "http://loinc.org".equals(c.getSystem()))
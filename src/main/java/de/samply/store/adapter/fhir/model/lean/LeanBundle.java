@@ -0,0 +1,38 @@
+package de.samply.store.adapter.fhir.model.lean;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A search set bundle of a page with its resources decoded as {@link LeanResource lean
+ * resources}.
+ *
+ * @param total      the total number of matches of the search or {@code null} if not given
+ * @param nextUrl    the URL of the next page or {@code null} on the last page
+ * @param numEntries the number of entries, including the resources of types which aren't decoded
+ * @param resources  the resources of the types which are decoded in the order of the bundle
+ */
+public record LeanBundle(Integer total, String nextUrl, int numEntries,
+                         List<LeanResource> resources) {
+
+  /**
+   * Parses the FHIR JSON search set bundle from {@code in}.
+   *
+   * @param in the input stream to parse, which is not closed
+   * @return the lean bundle
+   * @throws IOException if {@code in} can't be read or doesn't contain a JSON bundle
+   */
+  public static LeanBundle parse(InputStream in) throws IOException {
+    return LeanBundleParser.parse(in);
+  }
+
+  /**
+   * Returns the number of patients of this bundle.
+   *
+   * @return the number of patients
+   */
+  public int numPatients() {
+    return (int) resources.stream().filter(LeanResource.Patient.class::isInstance).count();
+  }
+}
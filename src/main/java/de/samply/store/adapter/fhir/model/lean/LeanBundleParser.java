@@ -0,0 +1,430 @@
+package de.samply.store.adapter.fhir.model.lean;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Coding;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Component;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Extension;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Identifier;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.ClinicalImpression;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Condition;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Observation;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Patient;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Procedure;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Specimen;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A streaming parser of FHIR JSON search set bundles into {@link LeanBundle lean bundles}.
+ *
+ * <p>Only the elements held by the {@link LeanResource lean resources} are decoded. All other
+ * elements, including whole resources of other types, are skipped token by token without
+ * creating any objects. Elements which can occur either once or repeated are accepted in both
+ * forms.
+ *
+ * <p>The fields of a resource are only filtered by its type after {@code resourceType} was read.
+ * FHIR servers usually write it first, but if not, the fields of all lean resource types are
+ * decoded until it occurs.
+ */
+final class LeanBundleParser {
+
+  private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+      .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+      .build();
+
+  private static final Map<String, Set<String>> FIELDS = Map.of(
+      "Patient", Set.of("id", "identifier", "gender", "birthDate"),
+      "Condition", Set.of("id", "subject", "code", "bodySite", "onsetDateTime", "onsetAge",
+          "recordedDate", "evidence", "stage", "extension"),
+      "Observation", Set.of("id", "subject", "code", "focus", "effectiveDateTime",
+          "valueCodeableConcept", "bodySite", "hasMember", "component"),
+      "Procedure", Set.of("id", "subject", "category", "reasonReference", "outcome",
+          "performedPeriod"),
+      "Specimen", Set.of("id", "subject", "type", "collection"),
+      "ClinicalImpression", Set.of("id", "subject", "problem", "effectiveDateTime", "finding"));
+
+  private final JsonParser parser;
+
+  private LeanBundleParser(JsonParser parser) {
+    this.parser = parser;
+  }
+
+  static LeanBundle parse(InputStream in) throws IOException {
+    try (var parser = JSON_FACTORY.createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException(parser, "Expected a JSON object.");
+      }
+      return new LeanBundleParser(parser).bundle();
+    }
+  }
+
+  private LeanBundle bundle() throws IOException {
+    Integer total = null;
+    String nextUrl = null;
+    var entries = new int[1];
+    var resources = new ArrayList<LeanResource>();
+    for (var name = nextField(); name != null; name = nextField()) {
+      switch (name) {
+        case "resourceType" -> {
+          var type = text();
+          if (!"Bundle".equals(type)) {
+            throw new JsonParseException(parser, "Expected a Bundle but got " + type + ".");
+          }
+        }
+        case "total" -> total = parser.currentToken() == JsonToken.VALUE_NUMBER_INT
+            ? parser.getIntValue() : null;
+        case "link" -> nextUrl = nextUrl(nextUrl);
+        case "entry" -> forEach(() -> {
+          entries[0]++;
+          var resource = entry();
+          if (resource != null) {
+            resources.add(resource);
+          }
+        });
+        default -> parser.skipChildren();
+      }
+    }
+    return new LeanBundle(total, nextUrl, entries[0], resources);
+  }
+
+  private String nextUrl(String nextUrl) throws IOException {
+    var urls = new String[]{nextUrl};
+    forEach(() -> {
+      String relation = null;
+      String url = null;
+      for (var name = nextObjectField(); name != null; name = nextField()) {
+        switch (name) {
+          case "relation" -> relation = text();
+          case "url" -> url = text();
+          default -> parser.skipChildren();
+        }
+      }
+      if ("next".equals(relation)) {
+        urls[0] = url;
+      }
+    });
+    return urls[0];
+  }
+
+  private LeanResource entry() throws IOException {
+    LeanResource resource = null;
+    for (var name = nextObjectField(); name != null; name = nextField()) {
+      if ("resource".equals(name)) {
+        resource = resource();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return resource;
+  }
+
+  private LeanResource resource() throws IOException {
+    var f = new ResourceFields();
+    for (var name = nextObjectField(); name != null; name = nextField()) {
+      if ("resourceType".equals(name)) {
+        f.resourceType = text();
+        continue;
+      }
+      if (f.resourceType != null
+          && !FIELDS.getOrDefault(f.resourceType, Set.of()).contains(name)) {
+        parser.skipChildren();
+        continue;
+      }
+      switch (name) {
+        case "id" -> f.id = text();
+        case "identifier" -> f.identifiers = identifiers();
+        case "gender" -> f.gender = text();
+        case "birthDate" -> f.birthDate = text();
+        case "subject" -> f.subject = reference();
+        case "code" -> f.code = codeableConcepts();
+        case "bodySite" -> f.bodySite = codeableConcepts();
+        case "onsetDateTime" -> f.onsetDateTime = text();
+        case "onsetAge" -> f.onsetAge = field("value");
+        case "recordedDate" -> f.recordedDate = text();
+        case "evidence" -> f.evidenceDetails = nestedReferences("detail");
+        case "stage" -> f.stageAssessments = nestedReferences("assessment");
+        case "extension" -> f.extensions = extensions();
+        case "focus" -> f.focus = first(references());
+        case "effectiveDateTime" -> f.effectiveDateTime = text();
+        case "valueCodeableConcept" -> f.value = codeableConcepts();
+        case "hasMember" -> f.hasMember = references();
+        case "component" -> f.components = components();
+        case "category" -> f.category = codeableConcepts();
+        case "reasonReference" -> f.reasonReferences = references();
+        case "outcome" -> f.outcome = codeableConcepts();
+        case "performedPeriod" -> {
+          for (var field = nextObjectField(); field != null; field = nextField()) {
+            switch (field) {
+              case "start" -> f.performedStart = text();
+              case "end" -> f.performedEnd = text();
+              default -> parser.skipChildren();
+            }
+          }
+        }
+        case "type" -> f.type = codeableConcepts();
+        case "collection" -> f.collectedDateTime = field("collectedDateTime");
+        case "problem" -> f.problems = references();
+        case "finding" -> f.findingItemReferences = nestedReferences("itemReference");
+        default -> parser.skipChildren();
+      }
+    }
+    return f.build();
+  }
+
+  private List<Identifier> identifiers() throws IOException {
+    var identifiers = new ArrayList<Identifier>();
+    forEach(() -> {
+      List<Coding> type = List.of();
+      String value = null;
+      for (var name = nextObjectField(); name != null; name = nextField()) {
+        switch (name) {
+          case "type" -> type = codeableConcepts();
+          case "value" -> value = text();
+          default -> parser.skipChildren();
+        }
+      }
+      identifiers.add(new Identifier(type, value));
+    });
+    return List.copyOf(identifiers);
+  }
+
+  private List<Extension> extensions() throws IOException {
+    var extensions = new ArrayList<Extension>();
+    forEach(() -> {
+      String url = null;
+      String valueReference = null;
+      List<Coding> valueCodeableConcept = List.of();
+      for (var name = nextObjectField(); name != null; name = nextField()) {
+        switch (name) {
+          case "url" -> url = text();
+          case "valueReference" -> valueReference = reference();
+          case "valueCodeableConcept" -> valueCodeableConcept = codeableConcepts();
+          default -> parser.skipChildren();
+        }
+      }
+      extensions.add(new Extension(url, valueReference, valueCodeableConcept));
+    });
+    return List.copyOf(extensions);
+  }
+
+  private List<Component> components() throws IOException {
+    var components = new ArrayList<Component>();
+    forEach(() -> {
+      List<Coding> code = List.of();
+      List<Coding> value = List.of();
+      List<Extension> extensions = List.of();
+      for (var name = nextObjectField(); name != null; name = nextField()) {
+        switch (name) {
+          case "code" -> code = codeableConcepts();
+          case "valueCodeableConcept" -> value = codeableConcepts();
+          case "extension" -> extensions = extensions();
+          default -> parser.skipChildren();
+        }
+      }
+      components.add(new Component(code, value, extensions));
+    });
+    return List.copyOf(components);
+  }
+
+  /**
+   * Returns the codings of one or more CodeableConcepts.
+   */
+  private List<Coding> codeableConcepts() throws IOException {
+    var codings = new ArrayList<Coding>();
+    forEach(() -> {
+      for (var name = nextObjectField(); name != null; name = nextField()) {
+        if ("coding".equals(name)) {
+          forEach(() -> codings.add(coding()));
+        } else {
+          parser.skipChildren();
+        }
+      }
+    });
+    return List.copyOf(codings);
+  }
+
+  private Coding coding() throws IOException {
+    String system = null;
+    String version = null;
+    String code = null;
+    for (var name = nextObjectField(); name != null; name = nextField()) {
+      switch (name) {
+        case "system" -> system = text();
+        case "version" -> version = text();
+        case "code" -> code = text();
+        default -> parser.skipChildren();
+      }
+    }
+    return new Coding(system, version, code);
+  }
+
+  /**
+   * Returns the references in the element {@code name} of one or more backbone elements.
+   */
+  private List<String> nestedReferences(String name) throws IOException {
+    var references = new ArrayList<String>();
+    forEach(() -> {
+      for (var field = nextObjectField(); field != null; field = nextField()) {
+        if (name.equals(field)) {
+          references.addAll(references());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    });
+    return List.copyOf(references);
+  }
+
+  private List<String> references() throws IOException {
+    var references = new ArrayList<String>();
+    forEach(() -> {
+      var reference = reference();
+      if (reference != null) {
+        references.add(reference);
+      }
+    });
+    return List.copyOf(references);
+  }
+
+  private String reference() throws IOException {
+    return field("reference");
+  }
+
+  /**
+   * Returns the primitive value of the field {@code name} of the current object.
+   */
+  private String field(String name) throws IOException {
+    String value = null;
+    for (var field = nextObjectField(); field != null; field = nextField()) {
+      if (name.equals(field)) {
+        value = text();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Returns the current primitive value as text or skips the current structured value and
+   * returns {@code null}.
+   */
+  private String text() throws IOException {
+    if (parser.currentToken().isScalarValue()) {
+      return parser.currentToken() == JsonToken.VALUE_NULL ? null : parser.getText();
+    }
+    parser.skipChildren();
+    return null;
+  }
+
+  /**
+   * Runs {@code element} on every element of the current array or once on the current value if
+   * it isn't an array.
+   */
+  private void forEach(ElementHandler element) throws IOException {
+    if (parser.currentToken() == JsonToken.START_ARRAY) {
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        element.handle();
+      }
+    } else {
+      element.handle();
+    }
+  }
+
+  /**
+   * Returns the name of the first field of the current object and moves to its value or returns
+   * {@code null} if the current value is no object or empty. Other values are skipped.
+   */
+  private String nextObjectField() throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return null;
+    }
+    return nextField();
+  }
+
+  /**
+   * Returns the name of the next field of the current object and moves to its value or returns
+   * {@code null} at the end of the object.
+   */
+  private String nextField() throws IOException {
+    if (parser.nextToken() != JsonToken.FIELD_NAME) {
+      return null;
+    }
+    var name = parser.getCurrentName();
+    parser.nextToken();
+    return name;
+  }
+
+  private static String first(List<String> values) {
+    return values.isEmpty() ? null : values.get(0);
+  }
+
+  @FunctionalInterface
+  private interface ElementHandler {
+
+    void handle() throws IOException;
+  }
+
+  /**
+   * The union of the decoded fields of all lean resource types.
+   */
+  private static final class ResourceFields {
+
+    private String resourceType;
+    private String id;
+    private List<Identifier> identifiers = List.of();
+    private String gender;
+    private String birthDate;
+    private String subject;
+    private List<Coding> code = List.of();
+    private List<Coding> bodySite = List.of();
+    private String onsetDateTime;
+    private String onsetAge;
+    private String recordedDate;
+    private List<String> evidenceDetails = List.of();
+    private List<String> stageAssessments = List.of();
+    private List<Extension> extensions = List.of();
+    private String focus;
+    private String effectiveDateTime;
+    private List<Coding> value = List.of();
+    private List<String> hasMember = List.of();
+    private List<Component> components = List.of();
+    private List<Coding> category = List.of();
+    private List<String> reasonReferences = List.of();
+    private List<Coding> outcome = List.of();
+    private String performedStart;
+    private String performedEnd;
+    private List<Coding> type = List.of();
+    private String collectedDateTime;
+    private List<String> problems = List.of();
+    private List<String> findingItemReferences = List.of();
+
+    private LeanResource build() {
+      if (resourceType == null) {
+        return null;
+      }
+      return switch (resourceType) {
+        case "Patient" -> new Patient(id, identifiers, gender, birthDate);
+        case "Condition" -> new Condition(id, subject, code, bodySite, onsetDateTime, onsetAge,
+            recordedDate, evidenceDetails, stageAssessments, extensions);
+        case "Observation" -> new Observation(id, subject, code, focus, effectiveDateTime, value,
+            bodySite, hasMember, components);
+        case "Procedure" -> new Procedure(id, subject, category, reasonReferences, outcome,
+            performedStart, performedEnd);
+        case "Specimen" -> new Specimen(id, subject, type, collectedDateTime);
+        case "ClinicalImpression" -> new ClinicalImpression(id, subject, problems,
+            effectiveDateTime, findingItemReferences);
+        default -> null;
+      };
+    }
+  }
+}
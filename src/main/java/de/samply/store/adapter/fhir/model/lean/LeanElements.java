@@ -0,0 +1,42 @@
+package de.samply.store.adapter.fhir.model.lean;
+
+import java.util.List;
+
+/**
+ * The compact FHIR elements used by the {@link LeanResource lean resources}.
+ */
+public final class LeanElements {
+
+  private LeanElements() {
+  }
+
+  /**
+   * A coding.
+   */
+  public record Coding(String system, String version, String code) {
+
+  }
+
+  /**
+   * An identifier with the codings of its type.
+   */
+  public record Identifier(List<Coding> type, String value) {
+
+  }
+
+  /**
+   * An extension with either a reference or a CodeableConcept value.
+   */
+  public record Extension(String url, String valueReference,
+                          List<Coding> valueCodeableConcept) {
+
+  }
+
+  /**
+   * A component of an Observation.
+   */
+  public record Component(List<Coding> code, List<Coding> valueCodeableConcept,
+                          List<Extension> extensions) {
+
+  }
+}
@@ -0,0 +1,122 @@
+package de.samply.store.adapter.fhir.model.lean;
+
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Coding;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Component;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Extension;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Identifier;
+import java.util.List;
+
+/**
+ * A compact FHIR resource holding only the elements used by the mappings.
+ *
+ * <p>CodeableConcepts are flattened into the list of their codings, references are held as the
+ * reference string and elements of choice types are held only in the variant which is mapped,
+ * like {@code onsetDateTime}. Absent elements are {@code null} or empty lists.
+ */
+public sealed interface LeanResource {
+
+  /**
+   * Returns the type of this resource like {@code Condition}.
+   *
+   * @return the type of this resource
+   */
+  String resourceType();
+
+  /**
+   * Returns the logical id of this resource.
+   *
+   * @return the logical id
+   */
+  String id();
+
+  /**
+   * Returns the relative reference of this resource like {@code Condition/0}.
+   *
+   * @return the relative reference
+   */
+  default String reference() {
+    return resourceType() + "/" + id();
+  }
+
+  /**
+   * A Patient.
+   */
+  record Patient(String id, List<Identifier> identifiers, String gender, String birthDate)
+      implements LeanResource {
+
+    @Override
+    public String resourceType() {
+      return "Patient";
+    }
+  }
+
+  /**
+   * A Condition.
+   *
+   * @param onsetAge the value of {@code onsetAge} as it appears in JSON
+   */
+  record Condition(String id, String subject, List<Coding> code, List<Coding> bodySite,
+                   String onsetDateTime, String onsetAge, String recordedDate,
+                   List<String> evidenceDetails, List<String> stageAssessments,
+                   List<Extension> extensions) implements LeanResource {
+
+    @Override
+    public String resourceType() {
+      return "Condition";
+    }
+  }
+
+  /**
+   * An Observation.
+   *
+   * @param focus the first focus
+   */
+  record Observation(String id, String subject, List<Coding> code, String focus,
+                     String effectiveDateTime, List<Coding> valueCodeableConcept,
+                     List<Coding> bodySite, List<String> hasMember, List<Component> components)
+      implements LeanResource {
+
+    @Override
+    public String resourceType() {
+      return "Observation";
+    }
+  }
+
+  /**
+   * A Procedure.
+   */
+  record Procedure(String id, String subject, List<Coding> category,
+                   List<String> reasonReferences, List<Coding> outcome, String performedStart,
+                   String performedEnd) implements LeanResource {
+
+    @Override
+    public String resourceType() {
+      return "Procedure";
+    }
+  }
+
+  /**
+   * A Specimen.
+   */
+  record Specimen(String id, String subject, List<Coding> type, String collectedDateTime)
+      implements LeanResource {
+
+    @Override
+    public String resourceType() {
+      return "Specimen";
+    }
+  }
+
+  /**
+   * A ClinicalImpression.
+   */
+  record ClinicalImpression(String id, String subject, List<String> problems,
+                            String effectiveDateTime, List<String> findingItemReferences)
+      implements LeanResource {
+
+    @Override
+    public String resourceType() {
+      return "ClinicalImpression";
+    }
+  }
+}
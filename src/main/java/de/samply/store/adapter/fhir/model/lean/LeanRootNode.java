@@ -0,0 +1,47 @@
+package de.samply.store.adapter.fhir.model.lean;
+
+import de.samply.store.adapter.fhir.model.lean.LeanResource.ClinicalImpression;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Condition;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Observation;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Patient;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Procedure;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Specimen;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The root node of the tree of {@link LeanResource lean resources} modeled after the hierarchy of
+ * the MDS data set.
+ *
+ * <p>The tree has the same shape and order as the one of a {@link
+ * de.samply.store.adapter.fhir.model.RootNode RootNode} built from the same page.
+ */
+public record LeanRootNode(List<PatientNode> patients, Map<String, LeanResource> resources) {
+
+  /**
+   * Partitions the resources in {@code bundle} by patient.
+   *
+   * @param bundle the bundle to partition
+   * @return the root node
+   */
+  public static LeanRootNode fromBundle(LeanBundle bundle) {
+    return LeanRootNodeBuilder.fromBundle(bundle);
+  }
+
+  /**
+   * The patient node.
+   */
+  public record PatientNode(Patient patient, Optional<Observation> vitalState,
+                            List<ConditionNode> conditions, List<Specimen> specimens) {
+
+  }
+
+  /**
+   * The condition node.
+   */
+  public record ConditionNode(Patient patient, Condition condition, List<Procedure> procedures,
+                              List<ClinicalImpression> clinicalImpressions) {
+
+  }
+}
@@ -0,0 +1,189 @@
+package de.samply.store.adapter.fhir.model.lean;
+
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Coding;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.ClinicalImpression;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Condition;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Observation;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Patient;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Procedure;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Specimen;
+import de.samply.store.adapter.fhir.model.lean.LeanRootNode.ConditionNode;
+import de.samply.store.adapter.fhir.model.lean.LeanRootNode.PatientNode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * A builder for {@link LeanRootNode}.
+ *
+ * <p>Follows the {@link de.samply.store.adapter.fhir.model.RootNodeBuilder RootNodeBuilder}
+ * step by step, including the order in which node builders are created, so that patients and
+ * their conditions end up in the same order.
+ */
+final class LeanRootNodeBuilder {
+
+  private static final String LOINC = "http://loinc.org";
+
+  private final Map<String, PatientNodeBuilder> patientNodeBuilders = new HashMap<>();
+  private final Map<PatientNodeBuilder, Map<String, ConditionNodeBuilder>> conditionNodeBuilders =
+      new IdentityHashMap<>();
+  private final Map<ConditionNodeBuilder, Map<String, ClinicalImpression[]>> clinicalImpressions =
+      new IdentityHashMap<>();
+  private final Map<String, LeanResource> resources;
+
+  private LeanRootNodeBuilder(int numResources) {
+    resources = new HashMap<>((int) (numResources / 0.75f) + 1);
+  }
+
+  static LeanRootNode fromBundle(LeanBundle bundle) {
+    var builder = new LeanRootNodeBuilder(bundle.resources().size());
+    for (var resource : bundle.resources()) {
+      var reference = resource.reference();
+      if (resource instanceof Patient patient) {
+        builder.getPatientNodeBuilder(reference).patient = patient;
+      } else if (resource instanceof Condition condition) {
+        builder.getConditionNodeBuilder(builder.getPatientNodeBuilder(condition.subject()),
+            reference).condition = condition;
+      } else if (resource instanceof Observation observation) {
+        builder.addObservation(observation);
+      } else if (resource instanceof Procedure procedure) {
+        builder.addProcedure(procedure);
+      } else if (resource instanceof Specimen specimen) {
+        builder.getPatientNodeBuilder(specimen.subject()).specimens.add(specimen);
+      } else if (resource instanceof ClinicalImpression clinicalImpression) {
+        builder.addClinicalImpression(reference, clinicalImpression);
+      }
+      builder.resources.put(reference, resource);
+    }
+    return builder.build();
+  }
+
+  private void addObservation(Observation observation) {
+    observation.code().stream()
+        .filter(coding -> LOINC.equals(coding.system()))
+        .findFirst()
+        .map(Coding::code)
+        .ifPresent(code -> {
+          switch (code) {
+            case "75186-7" -> getPatientNodeBuilder(observation.subject()).vitalState =
+                observation;
+            case "59847-4" -> {
+              if (observation.focus() != null) {
+                getConditionNodeBuilder(getPatientNodeBuilder(observation.subject()),
+                    observation.focus());
+              }
+            }
+            default -> {
+              // other observations are only resolved by reference
+            }
+          }
+        });
+  }
+
+  private void addProcedure(Procedure procedure) {
+    if (!procedure.reasonReferences().isEmpty()) {
+      getConditionNodeBuilder(getPatientNodeBuilder(procedure.subject()),
+          procedure.reasonReferences().get(0)).procedures.add(procedure);
+    }
+  }
+
+  private void addClinicalImpression(String reference, ClinicalImpression clinicalImpression) {
+    if (!clinicalImpression.problems().isEmpty()) {
+      var conditionNodeBuilder = getConditionNodeBuilder(
+          getPatientNodeBuilder(clinicalImpression.subject()),
+          clinicalImpression.problems().get(0));
+      getChild(clinicalImpressions, conditionNodeBuilder, reference,
+          ConditionNodeBuilder::addClinicalImpressionSlot)[0] = clinicalImpression;
+    }
+  }
+
+  private LeanRootNode build() {
+    return new LeanRootNode(
+        patientNodeBuilders.values().stream().flatMap(PatientNodeBuilder::build).toList(),
+        Collections.unmodifiableMap(resources));
+  }
+
+  private PatientNodeBuilder getPatientNodeBuilder(String reference) {
+    return patientNodeBuilders.computeIfAbsent(reference, k -> new PatientNodeBuilder());
+  }
+
+  private ConditionNodeBuilder getConditionNodeBuilder(PatientNodeBuilder patientNodeBuilder,
+      String reference) {
+    return getChild(conditionNodeBuilders, patientNodeBuilder, reference,
+        PatientNodeBuilder::addConditionNodeBuilder);
+  }
+
+  /**
+   * Returns the child of {@code parent} with {@code reference}, which is added with {@code add} on
+   * first use. Like in the {@code RootNodeBuilder}, lookups don't allocate.
+   */
+  private static <P, C> C getChild(Map<P, Map<String, C>> children, P parent, String reference,
+      Function<P, C> add) {
+    var byReference = children.get(parent);
+    if (byReference == null) {
+      byReference = new HashMap<>();
+      children.put(parent, byReference);
+    }
+    var child = byReference.get(Objects.requireNonNull(reference));
+    if (child == null) {
+      child = add.apply(parent);
+      byReference.put(reference, child);
+    }
+    return child;
+  }
+
+  private static final class PatientNodeBuilder {
+
+    private Patient patient;
+    private Observation vitalState;
+    private final List<ConditionNodeBuilder> conditionNodeBuilders = new ArrayList<>();
+    private final List<Specimen> specimens = new ArrayList<>();
+
+    private ConditionNodeBuilder addConditionNodeBuilder() {
+      var conditionNodeBuilder = new ConditionNodeBuilder(this);
+      conditionNodeBuilders.add(conditionNodeBuilder);
+      return conditionNodeBuilder;
+    }
+
+    private Stream<PatientNode> build() {
+      return Stream.ofNullable(patient).map(p -> new PatientNode(p,
+          Optional.ofNullable(vitalState),
+          conditionNodeBuilders.stream().flatMap(ConditionNodeBuilder::build).toList(),
+          List.copyOf(specimens)));
+    }
+  }
+
+  private static final class ConditionNodeBuilder {
+
+    private final PatientNodeBuilder patientNodeBuilder;
+    private Condition condition;
+    private final List<Procedure> procedures = new ArrayList<>();
+    private final List<ClinicalImpression[]> clinicalImpressions = new ArrayList<>();
+
+    private ConditionNodeBuilder(PatientNodeBuilder patientNodeBuilder) {
+      this.patientNodeBuilder = patientNodeBuilder;
+    }
+
+    private ClinicalImpression[] addClinicalImpressionSlot() {
+      var slot = new ClinicalImpression[1];
+      clinicalImpressions.add(slot);
+      return slot;
+    }
+
+    private Stream<ConditionNode> build() {
+      var patient = patientNodeBuilder.patient;
+      if (patient == null || condition == null) {
+        return Stream.empty();
+      }
+      return Stream.of(new ConditionNode(patient, condition, List.copyOf(procedures),
+          clinicalImpressions.stream().map(slot -> slot[0]).toList()));
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package de.samply.store.adapter.fhir.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.samply.store.adapter.fhir.model.RootNode;
+import de.samply.store.adapter.fhir.util.Anomaly;
+import de.samply.store.adapter.fhir.util.Either;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A bounded in-memory buffer of batches fetched from the FHIR server.
+ *
+ * <p>If the batch size of a result is larger than its page size, one batch is served as several
+ * pages. The batch is buffered between the requests of its pages, so that it is only fetched and
+ * parsed once. Batches are evicted if the buffer is full or if they weren't accessed for some
+ * time.
+ */
+@Component
+public class BatchBuffer {
+
+  private final Cache<Key, RootNode> batches;
+
+  /**
+   * Creates a new {@code BatchBuffer}.
+   *
+   * @param maxBatches        the maximum number of batches buffered
+   * @param expireAfterAccess the time after which a batch not accessed is evicted
+   */
+  public BatchBuffer(@Value("${app.store.batch-buffer.max-batches}") int maxBatches,
+      @Value("${app.store.batch-buffer.expire-after-access}") Duration expireAfterAccess) {
+    batches = Caffeine.newBuilder()
+        .maximumSize(maxBatches)
+        .expireAfterAccess(expireAfterAccess)
+        .build();
+  }
+
+  /**
+   * Returns the batch with {@code batchNum} of the result with {@code resultId} and loads it with
+   * {@code loader} if it isn't buffered.
+   *
+   * <p>Each batch is loaded only once: concurrent requests for the same missing batch wait for the
+   * load of the first one instead of fetching and mapping the batch themselves. Failed loads aren't
+   * buffered, so that the next request tries again.
+   *
+   * @param resultId the ID of the result
+   * @param batchNum the number of the batch
+   * @param loader   fetches the batch from the FHIR server
+   * @return either the batch or the anomaly of the load
+   */
+  public Either<Anomaly, RootNode> get(String resultId, int batchNum,
+      Supplier<Either<Anomaly, RootNode>> loader) {
+    var failure = new AtomicReference<Anomaly>();
+    var batch = batches.get(new Key(resultId, batchNum), key -> loader.get()
+        .orElseGet(anomaly -> {
+          failure.set(anomaly);
+          return null;
+        }));
+    return batch == null ? Either.left(failure.get()) : Either.right(batch);
+  }
+
+  private record Key(String resultId, int batchNum) {
+
+  }
+}
@@ -5,25 +5,57 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.store.adapter.fhir.client.AsyncFhirClient;
+import de.samply.store.adapter.fhir.client.HedgingPageFetcher;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Stage;
 import de.samply.store.adapter.fhir.util.Anomaly;
 import de.samply.store.adapter.fhir.util.Anomaly.Fault;
 import de.samply.store.adapter.fhir.util.Either;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.util.UriComponentsBuilder;
 
 /**
  * The FHIR backend.
  *
- * <p>It can {@link #runQuery() run queries} and {@link #fetchPage(String) fetch individual pages}.
+ * <p>It can {@link #runQuery(int) run queries} and {@link #fetchPage(String) fetch individual
+ * pages}.
+ *
+ * <p>With a fan-out greater than one or the {@link FetchStrategy#RESOURCE_TYPE resource type}
+ * fetch strategy, a page is fetched in two steps. First only the patients of the page are fetched.
+ * After that, the patients are split into fan-out many groups. The resources referencing the
+ * patients of each group are fetched by concurrent searches according to the fetch strategy. The
+ * results of that searches are merged into one bundle of the page. Instead of sending the
+ * searches concurrently, they can also be sent in one batch bundle, saving round trips to remote
+ * FHIR servers.
+ *
+ * <p>Optionally, pages are fetched with hedged requests and retries by the {@link
+ * HedgingPageFetcher} to cut the tail latency of slow FHIR server responses.
+ *
+ * <p>If the non-blocking client is enabled, the measure is evaluated and the first and all further
+ * pages are fetched by the {@link AsyncFhirClient} instead of the HAPI FHIR client.
+ *
+ * <p>The duration of every stage and the size of every page fetched are recorded in the {@link
+ * PipelineMetrics}.
+ *
+ * <p>Elements of fetched resources which are never mapped are removed by the {@link
+ * ResourceStripper} before the pages are passed on.
  */
 @Service
 public class FhirDownloadService {
@@ -35,42 +67,102 @@ public class FhirDownloadService {
   private final FhirContext fhirContext;
   private final FhirService fhirService;
   private final IGenericClient client;
-  private final int pageSize;
+  private final AsyncFhirClient asyncClient;
+  private final int fanOut;
+  private final FetchStrategy fetchStrategy;
+  private final boolean batchBundle;
+  private final HedgingPageFetcher pageFetcher;
+  private final boolean hedging;
+  private final boolean asyncEnabled;
+  private final PipelineMetrics metrics;
+  private final ResourceStripper stripper;
 
   /**
    * Creates a new {@code FhirDownloadService}.
    *
-   * @param fhirContext the HAPI FHIR context
-   * @param fhirService the FHIR service
-   * @param client      the HAPI FHIR client
-   * @param pageSize    the number of patients per page
+   * @param fhirContext   the HAPI FHIR context
+   * @param fhirService   the FHIR service
+   * @param client        the HAPI FHIR client
+   * @param asyncClient   the non-blocking FHIR client used for concurrent searches
+   * @param fanOut        the number of patient groups a page is split into
+   * @param fetchStrategy how the resources referencing the patients of a group are fetched
+   * @param batchBundle   whether the searches of a page are sent in one batch bundle
+   * @param pageFetcher   the fetcher of pages with hedged requests and retries
+   * @param hedging       whether pages are fetched by the {@code pageFetcher}
+   * @param asyncEnabled  whether the measure is evaluated and pages are fetched by the {@code
+   *                      asyncClient}
+   * @param metrics       the metrics of the request pipeline
+   * @param stripper      the stripper of elements which are never mapped
    */
   public FhirDownloadService(FhirContext fhirContext, FhirService fhirService,
-      IGenericClient client, @Value("${app.store.page-size}") int pageSize) {
+      IGenericClient client, AsyncFhirClient asyncClient,
+      @Value("${app.store.fan-out}") int fanOut,
+      @Value("${app.store.fetch-strategy}") FetchStrategy fetchStrategy,
+      @Value("${app.store.batch-bundle.enabled}") boolean batchBundle,
+      HedgingPageFetcher pageFetcher,
+      @Value("${app.store.hedging.enabled}") boolean hedging,
+      @Value("${app.store.async.enabled}") boolean asyncEnabled,
+      PipelineMetrics metrics, ResourceStripper stripper) {
     this.fhirContext = fhirContext;
     this.fhirService = fhirService;
     this.client = Objects.requireNonNull(client);
-    this.pageSize = pageSize;
+    this.asyncClient = Objects.requireNonNull(asyncClient);
+    this.fanOut = fanOut;
+    this.fetchStrategy = Objects.requireNonNull(fetchStrategy);
+    this.batchBundle = batchBundle;
+    this.pageFetcher = Objects.requireNonNull(pageFetcher);
+    this.hedging = hedging;
+    this.asyncEnabled = asyncEnabled;
+    this.metrics = Objects.requireNonNull(metrics);
+    this.stripper = Objects.requireNonNull(stripper);
   }
 
   /**
-   * Runs a query that selects all patients and returns the corresponding {@link Bundle}.
+   * Runs a query that selects all patients and returns the first page as {@link Bundle}.
    *
+   * @param pageSize the number of patients per page
    * @return a Right with the bundle or a Left in case of an error
    */
-  public Either<String, Bundle> runQuery() {
+  public Either<String, Bundle> runQuery(int pageSize) {
     logger.debug("Run query");
-    return initResources()
-        .flatMap(foo -> fhirService.evaluateMeasure(MEASURE_URI))
+    return metrics.time(Stage.INIT_RESOURCES, this::initResources)
+        .flatMap(foo -> metrics.time(Stage.EVALUATE_MEASURE, this::evaluateMeasure))
         .map(measureReport -> measureReport.getGroupFirstRep().getPopulationFirstRep())
         .map(population -> population.getSubjectResults().getReferenceElement().getIdPart())
-        .flatMap(listId -> fhirService.fetchFirstPage(listId, pageSize)
+        .flatMap(listId -> metrics.time(Stage.FETCH_FIRST_PAGE,
+                () -> fetchFirstPage(listId, pageSize))
+            .map(bundle -> {
+              metrics.recordPage(bundle);
+              return stripper.strip(bundle);
+            })
             .flatMap(bundle -> bundle.hasTotalElement()
                 ? Either.right(bundle)
-                : fhirService.fetchTotalBundle(listId).map(b -> bundle.setTotal(b.getTotal())))
+                : metrics.time(Stage.FETCH_TOTAL_BUNDLE, () -> fetchTotalBundle(listId))
+                    .map(b -> bundle.setTotal(b.getTotal())))
         );
   }
 
+  private Either<String, MeasureReport> evaluateMeasure() {
+    if (asyncEnabled) {
+      return asyncClient.evaluateMeasure(MEASURE_URI).join().mapLeft(Anomaly::msg);
+    }
+    return fhirService.evaluateMeasure(MEASURE_URI);
+  }
+
+  private Either<String, Bundle> fetchFirstPage(String listId, int pageSize) {
+    if (asyncEnabled) {
+      return asyncClient.fetchFirstPage(listId, pageSize).join().mapLeft(Anomaly::msg);
+    }
+    return fhirService.fetchFirstPage(listId, pageSize);
+  }
+
+  private Either<String, Bundle> fetchTotalBundle(String listId) {
+    if (asyncEnabled) {
+      return asyncClient.fetchTotalBundle(listId).join().mapLeft(Anomaly::msg);
+    }
+    return fhirService.fetchTotalBundle(listId);
+  }
+
   /**
    * Tries to create Library and Measure resources if not present on the FHIR server.
    *
@@ -143,7 +235,114 @@ public class FhirDownloadService {
    */
   public Either<Anomaly, Bundle> fetchPage(String pageUrl) {
     logger.debug("fetch page pageUrl={}", pageUrl);
-    return Either.tryGet(() -> client.fetchResourceFromUrl(Bundle.class, pageUrl))
+    return metrics.time(Stage.FETCH_PAGE, () -> fetchPage1(pageUrl))
+        .map(bundle -> {
+          metrics.recordPage(bundle);
+          return stripper.strip(bundle);
+        });
+  }
+
+  private Either<Anomaly, Bundle> fetchPage1(String pageUrl) {
+    if (fanOut > 1 || fetchStrategy == FetchStrategy.RESOURCE_TYPE) {
+      return Either.tryGet(() -> withoutRevIncludes(pageUrl))
+          .<Anomaly>mapLeft(e -> new Fault(e.getMessage()))
+          .flatMap(this::fetchBundle)
+          .flatMap(this::fetchPatients);
+    }
+    return fetchBundle(pageUrl);
+  }
+
+  private Either<Anomaly, Bundle> fetchBundle(String url) {
+    if (hedging) {
+      return pageFetcher.fetchPage(url).join();
+    }
+    if (asyncEnabled) {
+      return asyncClient.fetchPage(url).join();
+    }
+    return Either.tryGet(() -> client.fetchResourceFromUrl(Bundle.class, url))
         .mapLeft(e -> new Fault(e.getMessage()));
   }
+
+  private static String withoutRevIncludes(String pageUrl) {
+    return UriComponentsBuilder.fromHttpUrl(pageUrl).replaceQueryParam("_revinclude")
+        .build(true).toUriString();
+  }
+
+  /**
+   * Fetches the patients of {@code patientPage} together with all resources referencing them by
+   * concurrent searches and merges the results into one bundle with the links of {@code
+   * patientPage}.
+   */
+  private Either<Anomaly, Bundle> fetchPatients(Bundle patientPage) {
+    var ids = patientPage.getEntry().stream()
+        .map(BundleEntryComponent::getResource)
+        .filter(Patient.class::isInstance)
+        .map(patient -> patient.getIdElement().getIdPart())
+        .toList();
+    var groups = MappingService.partition(ids, Math.max(1, fanOut));
+    var futures = batchBundle ? searchInBatch(groups) : searchConcurrently(groups);
+
+    var page = new Bundle().setType(BundleType.SEARCHSET)
+        .setTotalElement(patientPage.getTotalElement())
+        .setLink(patientPage.getLink());
+    if (fetchStrategy == FetchStrategy.RESOURCE_TYPE) {
+      page.getEntry().addAll(patientPage.getEntry());
+    }
+    Either<Anomaly, Bundle> result = Either.right(page);
+    for (var future : futures) {
+      result = result.flatMap(p -> future.join().map(subPage -> {
+        p.getEntry().addAll(subPage.getEntry());
+        return p;
+      }));
+    }
+    return result.mapLeft(anomaly -> new Fault(anomaly.msg()));
+  }
+
+  private List<CompletableFuture<Either<Anomaly, Bundle>>> searchConcurrently(
+      List<List<String>> groups) {
+    return switch (fetchStrategy) {
+      case REVINCLUDE -> groups.stream().map(asyncClient::fetchPatients).toList();
+      case RESOURCE_TYPE -> groups.stream()
+          .flatMap(group -> FhirService.PATIENT_REV_INCLUDES.stream()
+              .map(revInclude -> asyncClient.fetchReferencing(revInclude, group)))
+          .toList();
+    };
+  }
+
+  /**
+   * Sends the first page of all searches in one batch bundle. Remaining pages of resource type
+   * searches are fetched separately.
+   */
+  private List<CompletableFuture<Either<Anomaly, Bundle>>> searchInBatch(
+      List<List<String>> groups) {
+    var queries = switch (fetchStrategy) {
+      case REVINCLUDE -> groups.stream().map(AsyncFhirClient::patientsQuery).toList();
+      case RESOURCE_TYPE -> groups.stream()
+          .flatMap(group -> FhirService.PATIENT_REV_INCLUDES.stream()
+              .map(revInclude -> AsyncFhirClient.referencingQuery(revInclude, group)))
+          .toList();
+    };
+    var results = asyncClient.batch(queries);
+    return IntStream.range(0, queries.size())
+        .mapToObj(i -> results.thenCompose(r -> fetchStrategy == FetchStrategy.RESOURCE_TYPE
+            ? asyncClient.fetchRemainingPages(r.get(i))
+            : CompletableFuture.completedFuture(r.get(i))))
+        .toList();
+  }
+
+  /**
+   * The strategy of fetching the resources referencing the patients of a page.
+   */
+  public enum FetchStrategy {
+
+    /**
+     * One search of patients with all referencing resources reverse included.
+     */
+    REVINCLUDE,
+
+    /**
+     * One search per type of referencing resources like {@code Condition?patient=0,1}.
+     */
+    RESOURCE_TYPE
+  }
 }
@@ -10,6 +10,7 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
 import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
 import org.hl7.fhir.r4.utils.FHIRPathEngine;
 import org.hl7.fhir.r4.utils.FHIRPathEngine.IEvaluationContext;
 
@@ -32,7 +33,6 @@ public class FhirPathR4 implements IFhirPath {
     myEngine.setHostServices(evaluationContext);
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public <T extends IBase> List<T> evaluate(IBase theInput, String thePath,
       Class<T> theReturnType) {
@@ -42,12 +42,37 @@ public class FhirPathR4 implements IFhirPath {
     } catch (FHIRException e) {
       throw new FhirPathExecutionException(e);
     }
+    return checkTypes(result, thePath, theReturnType);
+  }
+
+  /**
+   * Evaluates the already parsed {@code expression} like {@link #evaluate(IBase, String, Class)}.
+   *
+   * @param input      the input to evaluate the expression on
+   * @param expression the expression parsed by {@link #compile(String)} of any engine
+   * @param returnType the class of the type of the values returned
+   * @param <T>        the type of the values returned
+   * @return the values returned by the expression
+   */
+  public <T extends IBase> List<T> evaluate(IBase input, ExpressionNode expression,
+      Class<T> returnType) {
+    List<Base> result;
+    try {
+      result = myEngine.evaluate((Base) input, expression);
+    } catch (FHIRException e) {
+      throw new FhirPathExecutionException(e);
+    }
+    return checkTypes(result, expression, returnType);
+  }
 
+  @SuppressWarnings("unchecked")
+  private static <T extends IBase> List<T> checkTypes(List<Base> result, Object path,
+      Class<T> returnType) {
     for (Base next : result) {
-      if (!theReturnType.isAssignableFrom(next.getClass())) {
+      if (!returnType.isAssignableFrom(next.getClass())) {
         throw new FhirPathExecutionException(
-            "FluentPath expression \"" + thePath + "\" returned unexpected type " + next.getClass()
-                .getSimpleName() + " - Expected " + theReturnType.getName());
+            "FluentPath expression \"" + path + "\" returned unexpected type " + next.getClass()
+                .getSimpleName() + " - Expected " + returnType.getName());
       }
     }
 
@@ -65,5 +90,19 @@ public class FhirPathR4 implements IFhirPath {
     myEngine.parse(theExpression);
   }
 
-
+  /**
+   * Parses {@code expression} into a tree which can be evaluated many times by this and other
+   * engines.
+   *
+   * @param expression the FHIRPath expression
+   * @return the parsed expression
+   * @throws FhirPathExecutionException if {@code expression} is invalid
+   */
+  public ExpressionNode compile(String expression) {
+    try {
+      return myEngine.parse(expression);
+    } catch (FHIRException e) {
+      throw new FhirPathExecutionException(e);
+    }
+  }
 }
@@ -8,6 +8,7 @@ import ca.uhn.fhir.rest.gclient.IOperationUntypedWithInput;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.UriClientParam;
 import de.samply.store.adapter.fhir.util.Either;
+import java.util.List;
 import java.util.Objects;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
@@ -29,6 +30,13 @@ public class FhirService {
 
   private static final Logger logger = LoggerFactory.getLogger(FhirService.class);
 
+  /**
+   * The resources included together with each Patient of a page.
+   */
+  public static final List<String> PATIENT_REV_INCLUDES = List.of("Observation:patient",
+      "Condition:patient", "Specimen:patient", "Procedure:patient",
+      "MedicationStatement:patient", "ClinicalImpression:patient");
+
   private final IGenericClient client;
 
   /**
@@ -94,16 +102,11 @@ public class FhirService {
   }
 
   private IQuery<Bundle> firstPageQuery(String listId, int pageSize) {
-    return client.search()
-        .byUrl("Patient?_list=" + Objects.requireNonNull(listId))
-        .revInclude(new Include("Observation:patient"))
-        .revInclude(new Include("Condition:patient"))
-        .revInclude(new Include("Specimen:patient"))
-        .revInclude(new Include("Procedure:patient"))
-        .revInclude(new Include("MedicationStatement:patient"))
-        .revInclude(new Include("ClinicalImpression:patient"))
-        .count(pageSize)
-        .returnBundle(Bundle.class);
+    var query = client.search().byUrl("Patient?_list=" + Objects.requireNonNull(listId));
+    for (String revInclude : PATIENT_REV_INCLUDES) {
+      query = query.revInclude(new Include(revInclude));
+    }
+    return query.count(pageSize).returnBundle(Bundle.class);
   }
 
   /**
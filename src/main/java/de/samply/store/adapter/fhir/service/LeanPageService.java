@@ -0,0 +1,121 @@
+package de.samply.store.adapter.fhir.service;
+
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.client.AsyncFhirClient;
+import de.samply.store.adapter.fhir.model.lean.LeanBundle;
+import de.samply.store.adapter.fhir.model.lean.LeanRootNode;
+import de.samply.store.adapter.fhir.service.FhirDownloadService.FetchStrategy;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Stage;
+import de.samply.store.adapter.fhir.service.mapping.LeanQueryResultMapping;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan;
+import de.samply.store.adapter.fhir.util.Anomaly;
+import de.samply.store.adapter.fhir.util.Either;
+import java.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * The lean pipeline of fetching and mapping result pages.
+ *
+ * <p>Pages are decoded directly from JSON into {@link LeanBundle lean bundles} and mapped by the
+ * {@link LeanQueryResultMapping} without the HAPI object model and without FHIRPath. That saves
+ * most of the parse time and of the memory of a page.
+ *
+ * <p>The lean pipeline only covers pages which are fetched by one search and served as one page,
+ * so it is only used with a fan-out of one, the {@link FetchStrategy#REVINCLUDE revinclude} fetch
+ * strategy, without hedging and without batches. In all other cases or if it isn't enabled, pages
+ * are fetched by the {@link FhirDownloadService} and mapped by the {@link MappingService}.
+ *
+ * <p>The lean mapping implements the mapping definitions shipped with the adapter in code. So it
+ * can't be enabled together with other {@link MappingPlan mapping definitions}, because both
+ * pipelines would map the same page differently.
+ *
+ * <p>The durations of fetching, building and mapping pages and the size of every page fetched are
+ * recorded in the {@link PipelineMetrics} like in the HAPI pipeline.
+ */
+@Service
+public class LeanPageService {
+
+  private static final Logger logger = LoggerFactory.getLogger(LeanPageService.class);
+
+  private final AsyncFhirClient client;
+  private final LeanQueryResultMapping mapping;
+  private final PipelineMetrics metrics;
+  private final boolean enabled;
+
+  /**
+   * Creates a new {@code LeanPageService}.
+   *
+   * @param client        the non-blocking FHIR client used to fetch pages
+   * @param mapping       the mapping of lean resources
+   * @param mappingPlan   the mapping definitions of the HAPI pipeline
+   * @param metrics       the metrics of the request pipeline
+   * @param enabled       whether the lean pipeline should be used
+   * @param fanOut        the number of patient groups a page is split into
+   * @param fetchStrategy how the resources referencing the patients of a group are fetched
+   * @param hedging       whether pages are fetched with hedged requests
+   * @param batchSize     the minimum number of patients fetched at once, batching is disabled
+   *                      with a batch size of at most one
+   * @throws IllegalStateException if the lean pipeline is enabled with mapping definitions other
+   *                               than the ones shipped with the adapter
+   */
+  public LeanPageService(AsyncFhirClient client, LeanQueryResultMapping mapping,
+      MappingPlan mappingPlan, PipelineMetrics metrics,
+      @Value("${app.mapping.lean.enabled}") boolean enabled,
+      @Value("${app.store.fan-out}") int fanOut,
+      @Value("${app.store.fetch-strategy}") FetchStrategy fetchStrategy,
+      @Value("${app.store.hedging.enabled}") boolean hedging,
+      @Value("${app.store.batch-size}") int batchSize) {
+    if (enabled && !mappingPlan.isStandard()) {
+      throw new IllegalStateException("The lean mapping only implements the mapping definitions "
+          + "shipped with the adapter. Disable it by setting app.mapping.lean.enabled to false.");
+    }
+    this.client = Objects.requireNonNull(client);
+    this.mapping = Objects.requireNonNull(mapping);
+    this.metrics = Objects.requireNonNull(metrics);
+    this.enabled = enabled && fanOut <= 1 && fetchStrategy == FetchStrategy.REVINCLUDE
+        && !hedging && batchSize <= 1;
+    if (enabled && !this.enabled) {
+      logger.warn("The lean mapping is disabled, because it needs a fan-out of one, the revinclude"
+          + " fetch strategy, no hedging and a batch size of zero.");
+    }
+  }
+
+  /**
+   * Returns whether pages should be fetched and mapped by this service.
+   *
+   * @return whether the lean pipeline is enabled
+   */
+  public boolean enabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the lean bundle of a page with {@code pageUrl}.
+   *
+   * @param pageUrl the URL of the page to fetch
+   * @return a Right with the lean bundle or a Left in case of an error
+   */
+  public Either<Anomaly, LeanBundle> fetchPage(String pageUrl) {
+    logger.debug("fetch lean page pageUrl={}", pageUrl);
+    return metrics.time(Stage.FETCH_PAGE, () -> client.fetchPage(pageUrl, LeanBundle::parse)
+            .join())
+        .map(bundle -> {
+          metrics.recordPage(bundle.numEntries(), bundle.numPatients());
+          return bundle;
+        });
+  }
+
+  /**
+   * Maps the patients of {@code bundle} to a {@code QueryResult}.
+   *
+   * @param bundle the lean bundle of a page
+   * @return the mapped {@code QueryResult}
+   */
+  public QueryResult map(LeanBundle bundle) {
+    var rootNode = metrics.time(Stage.BUILD_ROOT_NODE, () -> LeanRootNode.fromBundle(bundle));
+    return metrics.time(Stage.MAP, () -> mapping.map(rootNode));
+  }
+}
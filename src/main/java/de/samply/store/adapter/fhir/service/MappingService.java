@@ -1,24 +1,59 @@
 package de.samply.store.adapter.fhir.service;
 
 import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.model.PatientNode;
+import de.samply.store.adapter.fhir.model.RootNode;
 import de.samply.store.adapter.fhir.model.RootNodeBuilder;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Stage;
 import de.samply.store.adapter.fhir.service.mapping.QueryResultMapping;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /**
  * A service for the mapping of FHIR resources to {@link QueryResult QueryResults}.
+ *
+ * <p>If the parallelism is greater than one, the patients of a page are split into contiguous
+ * partitions which are mapped concurrently on the mapping executor. Because the FHIRPath engine is
+ * not thread-safe, every partition gets its own {@link QueryResultMapping} with its own engine.
+ * The order of the patients is preserved.
+ *
+ * <p>The durations of building root nodes and of mapping are recorded in the {@link
+ * PipelineMetrics}.
  */
 @Service
 public class MappingService {
 
   private final Function<Map<String, Resource>, QueryResultMapping> mappingServiceFactory;
+  private final Executor mappingExecutor;
+  private final int parallelism;
+  private final PipelineMetrics metrics;
 
-  public MappingService(Function<Map<String, Resource>, QueryResultMapping> mappingServiceFactory) {
-    this.mappingServiceFactory = mappingServiceFactory;
+  /**
+   * Creates a new {@code MappingService}.
+   *
+   * @param mappingServiceFactory a function creating a {@code QueryResultMapping} from the
+   *                              resources of a page
+   * @param mappingExecutor       the executor used to map partitions of a page concurrently
+   * @param parallelism           the maximum number of partitions a page is split into
+   * @param metrics               the metrics of the request pipeline
+   */
+  public MappingService(Function<Map<String, Resource>, QueryResultMapping> mappingServiceFactory,
+      @Qualifier("mappingExecutor") Executor mappingExecutor,
+      @Value("${app.mapping.parallelism}") int parallelism, PipelineMetrics metrics) {
+    this.mappingServiceFactory = Objects.requireNonNull(mappingServiceFactory);
+    this.mappingExecutor = Objects.requireNonNull(mappingExecutor);
+    this.parallelism = parallelism;
+    this.metrics = Objects.requireNonNull(metrics);
   }
 
   /**
@@ -28,7 +63,53 @@ public class MappingService {
    * @return the mapped {@code QueryResult}
    */
   public QueryResult map(Bundle bundle) {
-    var rootNode = RootNodeBuilder.fromBundle(bundle);
-    return mappingServiceFactory.apply(rootNode.resources()).map(rootNode.patients());
+    return map(buildRootNode(bundle));
+  }
+
+  /**
+   * Map's the patients of {@code rootNode} to a {@code QueryResult}.
+   *
+   * @param rootNode the root node to map
+   * @return the mapped {@code QueryResult}
+   */
+  public QueryResult map(RootNode rootNode) {
+    return metrics.time(Stage.MAP, () -> map(rootNode.resources(), rootNode.patients()));
+  }
+
+  private QueryResult map(Map<String, Resource> resources, List<PatientNode> patients) {
+    if (parallelism <= 1 || patients.size() <= 1) {
+      return mappingServiceFactory.apply(resources).map(patients);
+    }
+
+    var futures = partition(patients, parallelism).stream()
+        .map(partition -> CompletableFuture.supplyAsync(
+            () -> mappingServiceFactory.apply(resources).map(partition), mappingExecutor))
+        .toList();
+    var result = new QueryResult();
+    futures.forEach(future -> result.getPatient().addAll(future.join().getPatient()));
+    return result;
+  }
+
+  /**
+   * Builds the root node of the resources of {@code bundle}.
+   *
+   * @param bundle the bundle of a result page
+   * @return the root node
+   */
+  public RootNode buildRootNode(Bundle bundle) {
+    return metrics.time(Stage.BUILD_ROOT_NODE, () -> RootNodeBuilder.fromBundle(bundle));
+  }
+
+  /**
+   * Splits {@code elements} into at most {@code n} contiguous partitions of nearly equal size.
+   */
+  static <T> List<List<T>> partition(List<T> elements, int n) {
+    var numPartitions = Math.min(n, elements.size());
+    var partitions = new ArrayList<List<T>>(numPartitions);
+    for (int i = 0; i < numPartitions; i++) {
+      partitions.add(elements.subList(i * elements.size() / numPartitions,
+          (i + 1) * elements.size() / numPartitions));
+    }
+    return partitions;
   }
 }
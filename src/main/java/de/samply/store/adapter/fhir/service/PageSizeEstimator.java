@@ -0,0 +1,100 @@
+package de.samply.store.adapter.fhir.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Estimates the number of patients per page, so that a page stays within a budget of resources.
+ *
+ * <p>Because all resources referencing a patient are included, the number of resources of a page
+ * can vary widely with the same number of patients. This estimator observes the number of
+ * resources per patient of fetched pages as exponentially weighted moving average and derives
+ * the page size from it.
+ *
+ * <p>The page size of a result is fixed at its creation, so that the number of pages reported in
+ * its statistics stays consistent. Observations only affect the page size of new results.
+ */
+@Component
+public class PageSizeEstimator {
+
+  private static final Logger logger = LoggerFactory.getLogger(PageSizeEstimator.class);
+
+  /**
+   * The weight of a new observation in the moving average.
+   */
+  private static final double ALPHA = 0.3;
+
+  private final int resourceBudget;
+  private final int minPageSize;
+  private final int maxPageSize;
+  private double resourcesPerPatient;
+
+  /**
+   * Creates a new {@code PageSizeEstimator}.
+   *
+   * @param resourceBudget the target number of resources per page or zero to always use the
+   *                       maximum page size
+   * @param minPageSize    the minimum number of patients per page
+   * @param maxPageSize    the maximum number of patients per page
+   */
+  public PageSizeEstimator(@Value("${app.store.paging.resource-budget}") int resourceBudget,
+      @Value("${app.store.paging.min-page-size}") int minPageSize,
+      @Value("${app.store.page-size}") int maxPageSize) {
+    if (minPageSize < 1 || maxPageSize < minPageSize) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid page size bounds min=%d, max=%d.", minPageSize, maxPageSize));
+    }
+    this.resourceBudget = resourceBudget;
+    this.minPageSize = minPageSize;
+    this.maxPageSize = maxPageSize;
+  }
+
+  /**
+   * Returns the number of patients a page of a new result should have.
+   *
+   * @return the page size
+   */
+  public synchronized int pageSize() {
+    if (resourceBudget <= 0 || resourcesPerPatient == 0) {
+      return maxPageSize;
+    }
+    var pageSize = (int) (resourceBudget / resourcesPerPatient);
+    return Math.max(minPageSize, Math.min(maxPageSize, pageSize));
+  }
+
+  /**
+   * Observes the number of resources per patient of {@code bundle}.
+   *
+   * <p>Bundles without patients, like the last empty page, are ignored.
+   *
+   * @param bundle the bundle of a fetched page
+   */
+  public void observe(Bundle bundle) {
+    observe(bundle.getEntry().size(), (int) bundle.getEntry().stream()
+        .filter(e -> e.getResource() instanceof Patient)
+        .count());
+  }
+
+  /**
+   * Observes the number of resources per patient of a page which wasn't parsed into a bundle.
+   *
+   * @param numResources the number of resources of the page
+   * @param numPatients  the number of patients of the page
+   * @see #observe(Bundle)
+   */
+  public void observe(int numResources, int numPatients) {
+    if (numPatients > 0) {
+      observe((double) numResources / numPatients);
+    }
+  }
+
+  private synchronized void observe(double value) {
+    resourcesPerPatient = resourcesPerPatient == 0 ? value
+        : ALPHA * value + (1 - ALPHA) * resourcesPerPatient;
+    logger.debug("observed {} resources per patient, estimate is {}", value, resourcesPerPatient);
+  }
+}
@@ -3,20 +3,12 @@ package de.samply.store.adapter.fhir.service;
 import de.samply.share.model.ccp.ObjectFactory;
 import de.samply.share.model.ccp.Patient;
 import de.samply.store.adapter.fhir.service.mapping.AbstractBuilder;
-import org.hl7.fhir.r4.model.StringType;
 
 /**
  * A builder for MDS Patients.
  */
 public class PatientBuilder extends AbstractBuilder<Patient> {
 
-  private static final String PSEUDONYM_ART_CS =
-      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/PseudonymArtCS";
-  private static final String LOCAL_ID_PATH =
-      "Patient.identifier.where(type.coding.where(system= \"" + PSEUDONYM_ART_CS
-          + "\" and code=\"Lokal\").exists()).value";
-
-
   /**
    * Creates a new Patient builder.
    *
@@ -25,7 +17,14 @@ public class PatientBuilder extends AbstractBuilder<Patient> {
    */
   public PatientBuilder(FhirPathR4 fhirPathEngine, org.hl7.fhir.r4.model.Patient patient) {
     super(fhirPathEngine, new ObjectFactory().createPatient(), patient);
-    fhirPathEngine.evaluateFirst(patient, LOCAL_ID_PATH, StringType.class)
-        .ifPresent(id -> entity.setId(id.getValue()));
+  }
+
+  /**
+   * Sets the ID of the MDS Patient.
+   *
+   * @param id the local pseudonym of the patient
+   */
+  public void setId(String id) {
+    entity.setId(id);
   }
 }
@@ -0,0 +1,207 @@
+package de.samply.store.adapter.fhir.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.springframework.stereotype.Component;
+
+/**
+ * Records the duration of each stage of the request pipeline and the size of the pages flowing
+ * through it.
+ *
+ * <p>The durations are recorded in the timer {@value #STAGE_METRIC} tagged with the {@link Stage
+ * stage}. The number of resources and patients of every page fetched from the FHIR server are
+ * recorded in the distribution summaries {@value #PAGE_RESOURCES_METRIC} and {@value
+ * #PAGE_PATIENTS_METRIC} and the number of bytes of every serialized result in {@value
+ * #RESPONSE_SIZE_METRIC}.
+ *
+ * <p>The metrics are not tagged with the result identifier, because the number of results is
+ * unbounded and every tag value creates a new time series. Instead, the stages running on one
+ * thread can be {@link #trace(List, Supplier) traced} as {@link Span spans} which are attributed
+ * to a result by the caller.
+ */
+@Component
+public class PipelineMetrics {
+
+  static final String STAGE_METRIC = "store.pipeline.stage";
+  static final String PAGE_RESOURCES_METRIC = "store.page.resources";
+  static final String PAGE_PATIENTS_METRIC = "store.page.patients";
+  static final String RESPONSE_SIZE_METRIC = "api.response.size";
+
+  private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+  private final DistributionSummary pageResources;
+  private final DistributionSummary pagePatients;
+  private final DistributionSummary responseSize;
+  private final ThreadLocal<List<Span>> spans = new ThreadLocal<>();
+
+  /**
+   * Creates a new {@code PipelineMetrics}.
+   *
+   * @param meterRegistry the registry to record the metrics in
+   */
+  public PipelineMetrics(MeterRegistry meterRegistry) {
+    Objects.requireNonNull(meterRegistry);
+    for (var stage : Stage.values()) {
+      timers.put(stage, Timer.builder(STAGE_METRIC)
+          .tag("stage", stage.tagValue)
+          .publishPercentileHistogram()
+          .register(meterRegistry));
+    }
+    pageResources = DistributionSummary.builder(PAGE_RESOURCES_METRIC)
+        .baseUnit("resources")
+        .publishPercentileHistogram()
+        .register(meterRegistry);
+    pagePatients = DistributionSummary.builder(PAGE_PATIENTS_METRIC)
+        .baseUnit("patients")
+        .publishPercentileHistogram()
+        .register(meterRegistry);
+    responseSize = DistributionSummary.builder(RESPONSE_SIZE_METRIC)
+        .baseUnit("bytes")
+        .publishPercentileHistogram()
+        .register(meterRegistry);
+  }
+
+  /**
+   * Runs {@code supplier} and records its duration as {@code stage}.
+   *
+   * @param stage    the stage the supplier implements
+   * @param supplier the supplier to run
+   * @param <T>      the type of the value of the supplier
+   * @return the value of the supplier
+   */
+  public <T> T time(Stage stage, Supplier<T> supplier) {
+    var startTime = Instant.now();
+    var start = System.nanoTime();
+    try {
+      return supplier.get();
+    } finally {
+      record(stage, startTime, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Records {@code nanos} as duration of {@code stage} which started at {@code start}.
+   *
+   * @param stage the stage
+   * @param start the start of the stage
+   * @param nanos the duration in nanoseconds
+   */
+  public void record(Stage stage, Instant start, long nanos) {
+    timers.get(stage).record(nanos, TimeUnit.NANOSECONDS);
+    var sink = spans.get();
+    if (sink != null) {
+      sink.add(new Span(stage, start, nanos, 0));
+    }
+  }
+
+  /**
+   * Runs {@code supplier} and adds a span of every stage recorded on the current thread meanwhile
+   * to {@code sink}.
+   *
+   * @param sink     the list to add the spans to
+   * @param supplier the supplier to run
+   * @param <T>      the type of the value of the supplier
+   * @return the value of the supplier
+   */
+  public <T> T trace(List<Span> sink, Supplier<T> supplier) {
+    var outer = spans.get();
+    spans.set(sink);
+    try {
+      return supplier.get();
+    } finally {
+      if (outer == null) {
+        spans.remove();
+      } else {
+        spans.set(outer);
+      }
+    }
+  }
+
+  /**
+   * Records the number of resources and patients of {@code bundle}.
+   *
+   * <p>If traced, the number of resources is set as size of the last span, which is the fetch of
+   * {@code bundle}.
+   *
+   * @param bundle the bundle of a page fetched from the FHIR server
+   */
+  public void recordPage(Bundle bundle) {
+    recordPage(bundle.getEntry().size(), (int) bundle.getEntry().stream()
+        .filter(e -> e.getResource() instanceof Patient)
+        .count());
+  }
+
+  /**
+   * Records the number of resources and patients of a page which wasn't parsed into a bundle.
+   *
+   * @param numResources the number of resources of the page
+   * @param numPatients  the number of patients of the page
+   * @see #recordPage(Bundle)
+   */
+  public void recordPage(int numResources, int numPatients) {
+    pageResources.record(numResources);
+    pagePatients.record(numPatients);
+    var sink = spans.get();
+    if (sink != null && !sink.isEmpty()) {
+      var last = sink.size() - 1;
+      sink.set(last, sink.get(last).withSize(numResources));
+    }
+  }
+
+  /**
+   * Records the number of bytes of a serialized result.
+   *
+   * @param bytes the number of bytes
+   */
+  public void recordResponseSize(long bytes) {
+    responseSize.record(bytes);
+  }
+
+  /**
+   * A stage of the request pipeline.
+   */
+  public enum Stage {
+    INIT_RESOURCES("initResources"),
+    EVALUATE_MEASURE("evaluateMeasure"),
+    FETCH_FIRST_PAGE("fetchFirstPage"),
+    FETCH_TOTAL_BUNDLE("fetchTotalBundle"),
+    FETCH_PAGE("fetchPage"),
+    BUILD_ROOT_NODE("RootNodeBuilder.fromBundle"),
+    MAP("QueryResultMapping.map"),
+    SERIALIZE("serialize");
+
+    private final String tagValue;
+
+    Stage(String tagValue) {
+      this.tagValue = tagValue;
+    }
+
+    public String tagValue() {
+      return tagValue;
+    }
+  }
+
+  /**
+   * The execution of a stage.
+   *
+   * @param stage the stage executed
+   * @param start the start of the execution
+   * @param nanos the duration of the execution in nanoseconds
+   * @param size  the number of resources fetched or bytes serialized or zero
+   */
+  public record Span(Stage stage, Instant start, long nanos, long size) {
+
+    Span withSize(long size) {
+      return new Span(stage, start, nanos, size);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package de.samply.store.adapter.fhir.service;
+
+import java.util.Objects;
+import java.util.Set;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Strips elements which are never mapped from the resources of fetched pages.
+ *
+ * <p>The narrative {@code text} and the {@code meta} of every resource are removed together with
+ * all resource level extensions which are not kept. Modifier extensions, contained resources and
+ * extensions of nested elements are never removed.
+ *
+ * <p>HAPI can't skip elements while parsing, so the resources are stripped right after parsing.
+ * That doesn't save allocations, but pages are held in the batch buffer and during mapping with
+ * considerably less retained heap.
+ */
+@Component
+public class ResourceStripper {
+
+  private final boolean enabled;
+  private final Set<String> keptExtensions;
+
+  /**
+   * Creates a new {@code ResourceStripper}.
+   *
+   * @param enabled        whether resources are stripped at all
+   * @param keptExtensions the URLs of the resource level extensions used by the mappings
+   */
+  public ResourceStripper(@Value("${app.store.strip.enabled}") boolean enabled,
+      @Value("${app.store.strip.kept-extensions}") Set<String> keptExtensions) {
+    this.enabled = enabled;
+    this.keptExtensions = Set.copyOf(Objects.requireNonNull(keptExtensions));
+  }
+
+  /**
+   * Strips all resources of {@code bundle} in place.
+   *
+   * @param bundle the bundle of a page
+   * @return the same bundle
+   */
+  public Bundle strip(Bundle bundle) {
+    if (enabled) {
+      for (var entry : bundle.getEntry()) {
+        strip(entry.getResource());
+      }
+    }
+    return bundle;
+  }
+
+  private void strip(Resource resource) {
+    if (resource == null) {
+      return;
+    }
+    resource.setMeta(null);
+    if (resource instanceof DomainResource domainResource) {
+      domainResource.setText(null);
+      if (domainResource.hasExtension()) {
+        domainResource.getExtension().removeIf(e -> !keptExtensions.contains(e.getUrl()));
+      }
+    }
+  }
+}
@@ -19,6 +19,9 @@ import org.springframework.stereotype.Component;
  *
  * <p>Currently, it is sufficient to store results in-memory because they are only needed during
  * one run of pages.
+ *
+ * <p>The page URLs stored are the URLs of the pages of the FHIR server. Their size is the batch
+ * size of the result.
  */
 @Component
 public class ResultStore {
@@ -44,17 +47,20 @@ public class ResultStore {
   /**
    * Creates a {@code Result}.
    *
-   * @param bundle the bundle to extract the total, self and optional next link URL's.
+   * @param bundle    the bundle to extract the total, self and optional next link URL's.
+   * @param pageSize  the number of patients per page served
+   * @param batchSize the number of patients per page of the FHIR server the bundle was fetched
+   *                  with
    * @return either the result or an error if the bundle has no self link URL
    */
-  public Either<String, Result> create(Bundle bundle) {
+  public Either<String, Result> create(Bundle bundle, int pageSize, int batchSize) {
     var id = resultIdSupplier.get();
     logger.debug("create result id={}", id);
     var selfUrl = bundle.getLinkOrCreate("self").getUrl();
     if (selfUrl == null) {
       return Either.left("the bundle has not self link URL");
     } else {
-      var result = new Result(id, bundle.getTotal());
+      var result = new Result(id, bundle.getTotal(), pageSize, batchSize);
       results.put(id, InternalResult.create(result, bundle));
       return Either.right(result);
     }
@@ -0,0 +1,102 @@
+package de.samply.store.adapter.fhir.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Span;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A bounded in-memory store of the timelines of results.
+ *
+ * <p>The timeline of a result consists of the {@link Event events} of creating it, like the
+ * measure evaluation, and of fetching, building, mapping and serializing its pages. It is meant to
+ * diagnose why the export of one result was slow.
+ *
+ * <p>Only the timelines of the most recent results are kept and every timeline is a ring buffer
+ * which only keeps its most recent events.
+ */
+@Component
+public class ResultTimeline {
+
+  private final Cache<String, Timeline> timelines;
+  private final int maxEvents;
+
+  /**
+   * Creates a new {@code ResultTimeline}.
+   *
+   * @param maxResults the maximum number of results whose timelines are kept
+   * @param maxEvents  the maximum number of events kept per result
+   */
+  public ResultTimeline(@Value("${app.timeline.max-results}") int maxResults,
+      @Value("${app.timeline.max-events}") int maxEvents) {
+    timelines = Caffeine.newBuilder().maximumSize(maxResults).build();
+    this.maxEvents = Math.max(1, maxEvents);
+  }
+
+  /**
+   * Appends an event for every span in {@code spans} to the timeline of the result with {@code
+   * resultId}, creating the timeline if necessary.
+   *
+   * @param resultId the identifier of the result
+   * @param page     the number of the page the spans belong to or {@code null} if they belong to
+   *                 the creation of the result
+   * @param spans    the spans to append
+   */
+  public void record(String resultId, Integer page, Collection<Span> spans) {
+    var timeline = timelines.get(resultId, id -> new Timeline(maxEvents));
+    spans.forEach(span -> timeline.add(new Event(span.stage().tagValue(), page, span.start(),
+        span.nanos() / 1e6, span.size())));
+  }
+
+  /**
+   * Returns the events of the timeline of the result with {@code resultId} in the order they were
+   * recorded.
+   *
+   * @param resultId the identifier of the result
+   * @return the events or {@link Optional#empty() empty} if the timeline of the result isn't kept
+   */
+  public Optional<List<Event>> get(String resultId) {
+    return Optional.ofNullable(timelines.getIfPresent(resultId)).map(Timeline::events);
+  }
+
+  /**
+   * An event in the timeline of a result.
+   *
+   * @param stage      the stage of the request pipeline
+   * @param page       the number of the page or {@code null} for the creation of the result
+   * @param start      the start of the stage
+   * @param durationMs the duration of the stage in milliseconds
+   * @param size       the number of resources fetched or bytes serialized or zero
+   */
+  public record Event(String stage, Integer page, Instant start, double durationMs, long size) {
+
+  }
+
+  private static class Timeline {
+
+    private final ArrayDeque<Event> events;
+    private final int capacity;
+
+    private Timeline(int capacity) {
+      events = new ArrayDeque<>(capacity);
+      this.capacity = capacity;
+    }
+
+    private synchronized void add(Event event) {
+      if (events.size() == capacity) {
+        events.removeFirst();
+      }
+      events.addLast(event);
+    }
+
+    private synchronized List<Event> events() {
+      return List.copyOf(events);
+    }
+  }
+}
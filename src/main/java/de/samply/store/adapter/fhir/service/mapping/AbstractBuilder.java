@@ -45,6 +45,26 @@ public class AbstractBuilder<T extends Entity> {
     addAttributeOptional(resource, path, type, mdrKey, v -> Optional.ofNullable(toString.apply(v)));
   }
 
+  /**
+   * Adds an attribute to the entity managed by this builder if {@code field} has a value and the
+   * {@code toString} function returns a value.
+   *
+   * @param values   the values of a {@link FusedExtractor}
+   * @param field    the name of the field
+   * @param type     the class of the type of the field value
+   * @param mdrKey   the MDR key to use for the attribute
+   * @param toString a function from the field value to a string that will be the value of the
+   *                 attribute
+   * @param <S>      the type of the field value
+   */
+  public <S extends IBase> void addAttribute(FusedExtractor.Values values, String field,
+      Class<S> type, String mdrKey, Function<? super S, String> toString) {
+    values.get(field, type)
+        .map(toString)
+        .map(v -> Util.createAttribute(mdrKey, v))
+        .ifPresent(a -> entity.getAttribute().add(a));
+  }
+
   public void addAttribute(String mdrKey, String value) {
     entity.getAttribute().add(Util.createAttribute(mdrKey, value));
   }
@@ -74,6 +94,15 @@ public class AbstractBuilder<T extends Entity> {
         .ifPresent(a -> entity.getAttribute().add(a));
   }
 
+  /**
+   * Adds the attributes of {@code plan} evaluated on the resource of this builder.
+   *
+   * @param plan the compiled plan of the entity managed by this builder
+   */
+  public void addAttributes(MappingPlan.EntityPlan plan) {
+    plan.apply(fhirPathEngine, resource, entity);
+  }
+
   public <S extends IBase> void addAttribute2(String pathA, String pathB, Class<S> type,
       String mdrKey, BiFunction<? super S, Optional<? extends S>, String> toString) {
     addAttribute2(resource, pathA, pathB, type, mdrKey, toString);
@@ -88,7 +88,7 @@ public class DiagnosisMapping {
     return builder.build();
   }
 
-  private static String calcAgeValue(LocalDate birthDate, LocalDate firstConditionOnset) {
+  static String calcAgeValue(LocalDate birthDate, LocalDate firstConditionOnset) {
     return Integer.toString(birthDate.until(firstConditionOnset).getYears());
   }
 }
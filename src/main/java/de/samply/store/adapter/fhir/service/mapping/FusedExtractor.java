@@ -0,0 +1,217 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import de.samply.store.adapter.fhir.service.EvaluationContext;
+import de.samply.store.adapter.fhir.service.FhirPathR4;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+
+/**
+ * Extracts many values out of the items of one collection of a resource in a single pass.
+ *
+ * <p>Mappings often select items of the same collection by a code, like the components of a TNM
+ * Observation or the identifiers of a Patient, and evaluate one path per attribute of the form
+ * {@code collection.where(key = 'code').value}. That walks the whole collection and evaluates the
+ * key of every item once per attribute. A fused extractor declares all fields up front, walks the
+ * collection once, evaluates the key of each item once and evaluates only the paths of the fields
+ * with that key on the item.
+ *
+ * <p>Like the equality in {@code where(key = 'code')}, an item only has a key if its key path
+ * returns exactly one value. Items with no or many keys, like components with two codings, match
+ * no field.
+ *
+ * <p>A field has the first value of its path on the first item with its key. Extractors are
+ * immutable and can be used by all FHIRPath engines concurrently.
+ */
+public final class FusedExtractor {
+
+  private final ExpressionNode collection;
+  private final ExpressionNode key;
+  private final Map<String, List<Field>> fieldsByKey;
+  private final Map<String, Integer> indices;
+
+  private FusedExtractor(ExpressionNode collection, ExpressionNode key,
+      Map<String, List<Field>> fieldsByKey, Map<String, Integer> indices) {
+    this.collection = collection;
+    this.key = key;
+    this.fieldsByKey = fieldsByKey;
+    this.indices = indices;
+  }
+
+  /**
+   * Starts the definition of an extractor over the items of {@code collectionPath}.
+   *
+   * @param collectionPath the FHIRPath of the collection like {@code Observation.component}
+   * @param keyPath        the FHIRPath of the key of an item like {@code code.coding.code}
+   * @return a new definition without fields
+   */
+  public static Definition over(String collectionPath, String keyPath) {
+    return new Definition(Objects.requireNonNull(collectionPath), Objects.requireNonNull(keyPath),
+        new LinkedHashMap<>());
+  }
+
+  /**
+   * Extracts the values of all fields from {@code input}.
+   *
+   * @param fhirPathEngine the FHIRPath engine
+   * @param input          the resource to extract the values from
+   * @return the extracted values
+   */
+  public Values extract(FhirPathR4 fhirPathEngine, IBase input) {
+    var values = new Base[indices.size()];
+    for (Base item : fhirPathEngine.evaluate(input, collection, Base.class)) {
+      var itemKeys = fhirPathEngine.evaluate(item, key, Base.class);
+      if (itemKeys.size() != 1) {
+        continue;
+      }
+      var fields = fieldsByKey.get(itemKeys.get(0).primitiveValue());
+      if (fields == null) {
+        continue;
+      }
+      for (Field field : fields) {
+        if (values[field.index] == null) {
+          var value = fhirPathEngine.evaluate(item, field.path, Base.class);
+          if (!value.isEmpty()) {
+            values[field.index] = value.get(0);
+          }
+        }
+      }
+    }
+    return new Values(values);
+  }
+
+  /**
+   * A field to extract.
+   *
+   * @param index the index of the value of the field
+   * @param path  the parsed path evaluated on the items with the key of the field
+   */
+  private record Field(int index, ExpressionNode path) {
+
+  }
+
+  /**
+   * The definition of an extractor which has to be compiled before use.
+   *
+   * <p>Definitions are typically compiled once into constants by {@link #compile()}.
+   */
+  public static final class Definition {
+
+    private final String collectionPath;
+    private final String keyPath;
+    private final Map<String, String[]> fields;
+
+    private Definition(String collectionPath, String keyPath, Map<String, String[]> fields) {
+      this.collectionPath = collectionPath;
+      this.keyPath = keyPath;
+      this.fields = fields;
+    }
+
+    /**
+     * Returns a new definition with an additional field.
+     *
+     * @param name the name of the field used to get its value
+     * @param key  the key of the items the field is extracted from
+     * @param path the FHIRPath evaluated on an item like {@code value.coding.code}
+     * @return a new definition with the field
+     * @throws IllegalArgumentException if there is already a field with {@code name}
+     */
+    public Definition field(String name, String key, String path) {
+      var fields = new LinkedHashMap<>(this.fields);
+      if (fields.putIfAbsent(name, new String[]{Objects.requireNonNull(key),
+          Objects.requireNonNull(path)}) != null) {
+        throw new IllegalArgumentException("Duplicate field `" + name + "`.");
+      }
+      return new Definition(collectionPath, keyPath, fields);
+    }
+
+    /**
+     * Parses all paths of this definition with a parser shared by all definitions.
+     *
+     * <p>Parsing doesn't depend on the resources of a page, so the compiled extractor can be held
+     * in a constant and used by the FHIRPath engines of all pages.
+     *
+     * @return the compiled extractor
+     */
+    public FusedExtractor compile() {
+      return compile(SharedParser.INSTANCE);
+    }
+
+    /**
+     * Parses all paths of this definition.
+     *
+     * @param parser the FHIRPath engine used to parse the paths
+     * @return the compiled extractor
+     */
+    public FusedExtractor compile(FhirPathR4 parser) {
+      var fieldsByKey = new HashMap<String, List<Field>>();
+      var indices = new HashMap<String, Integer>();
+      fields.forEach((name, field) -> {
+        var index = indices.size();
+        indices.put(name, index);
+        fieldsByKey.computeIfAbsent(field[0], k -> new ArrayList<>())
+            .add(new Field(index, parser.compile(field[1])));
+      });
+      var frozen = new HashMap<String, List<Field>>();
+      fieldsByKey.forEach((k, v) -> frozen.put(k, List.copyOf(v)));
+      return new FusedExtractor(parser.compile(collectionPath), parser.compile(keyPath),
+          Map.copyOf(frozen), Map.copyOf(indices));
+    }
+  }
+
+  /**
+   * Holds the parser of {@link Definition#compile()}, which is only created on first use.
+   */
+  private static final class SharedParser {
+
+    private static final FhirPathR4 INSTANCE = new FhirPathR4(FhirContext.forR4Cached(),
+        new EvaluationContext());
+  }
+
+  /**
+   * The values extracted from one resource.
+   */
+  public final class Values {
+
+    private final Base[] values;
+
+    private Values(Base[] values) {
+      this.values = values;
+    }
+
+    /**
+     * Returns the value of the field with {@code name}.
+     *
+     * @param name the name of the field
+     * @param type the class of the type of the value
+     * @param <T>  the type of the value
+     * @return the value or {@link Optional#empty() empty} if no item had a value
+     * @throws IllegalArgumentException   if there is no field with {@code name}
+     * @throws FhirPathExecutionException if the value isn't of {@code type}
+     */
+    public <T extends IBase> Optional<T> get(String name, Class<T> type) {
+      var index = indices.get(name);
+      if (index == null) {
+        throw new IllegalArgumentException("Unknown field `" + name + "`.");
+      }
+      var value = values[index];
+      if (value == null) {
+        return Optional.empty();
+      }
+      if (!type.isInstance(value)) {
+        throw new FhirPathExecutionException("Field \"" + name + "\" has unexpected type "
+            + value.getClass().getSimpleName() + " - Expected " + type.getName());
+      }
+      return Optional.of(type.cast(value));
+    }
+  }
+}
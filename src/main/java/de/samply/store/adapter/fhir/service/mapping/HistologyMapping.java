@@ -2,31 +2,31 @@ package de.samply.store.adapter.fhir.service.mapping;
 
 import de.samply.share.model.ccp.Container;
 import de.samply.store.adapter.fhir.service.FhirPathR4;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan.EntityPlan;
 import java.util.Objects;
-import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.PrimitiveType;
-import org.hl7.fhir.r4.model.StringType;
 import org.springframework.stereotype.Component;
 
 /**
  * Mapping of FHIR Observation to MDS Histology.
+ *
+ * <p>The attributes are defined in the {@link MappingPlan mapping plan}.
  */
 @Component
 public class HistologyMapping {
 
-  private static final String ICD_O_3 = "urn:oid:2.16.840.1.113883.6.43.1";
-  private static final String GRADING = "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/GradingCS";
-
   private final FhirPathR4 fhirPathEngine;
+  private final EntityPlan plan;
 
   /**
    * Creates a new HistologyMapping.
    *
    * @param fhirPathEngine the FHIRPath engine
+   * @param mappingPlan    the mapping plan
    */
-  public HistologyMapping(FhirPathR4 fhirPathEngine) {
+  public HistologyMapping(FhirPathR4 fhirPathEngine, MappingPlan mappingPlan) {
     this.fhirPathEngine = Objects.requireNonNull(fhirPathEngine);
+    this.plan = mappingPlan.entity("Histology");
   }
 
   /**
@@ -37,17 +37,7 @@ public class HistologyMapping {
    */
   public Container map(Observation histology) {
     var builder = new ContainerBuilder(fhirPathEngine, histology, "Histology");
-
-    builder.addAttribute("Observation.value.coding.where(system = '" + ICD_O_3 + "').code",
-        CodeType.class, "urn:dktk:dataelement:7:2", PrimitiveType::getValue);
-
-    builder.addAttribute("Observation.value.coding.where(system = '" + ICD_O_3 + "').version",
-        StringType.class, "urn:dktk:dataelement:8:2", PrimitiveType::getValue);
-
-    builder.addAttribute(
-        "Observation.hasMember.resolve().value.coding.where(system = '" + GRADING + "').code",
-        CodeType.class, "urn:dktk:dataelement:9:2", PrimitiveType::getValue);
-
+    builder.addAttributes(plan);
     return builder.build();
   }
 }
@@ -0,0 +1,472 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import static de.samply.store.adapter.fhir.service.mapping.Util.DATE_STRING_FROM_STRING;
+import static de.samply.store.adapter.fhir.service.mapping.Util.LOCAL_DATE_FROM_STRING;
+import static de.samply.store.adapter.fhir.service.mapping.Util.lift2;
+
+import de.samply.share.model.ccp.Container;
+import de.samply.share.model.ccp.Entity;
+import de.samply.share.model.ccp.ObjectFactory;
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.model.lean.LeanElements;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Coding;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Extension;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Identifier;
+import de.samply.store.adapter.fhir.model.lean.LeanResource;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.ClinicalImpression;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Observation;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Patient;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Procedure;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Specimen;
+import de.samply.store.adapter.fhir.model.lean.LeanRootNode;
+import de.samply.store.adapter.fhir.model.lean.LeanRootNode.ConditionNode;
+import de.samply.store.adapter.fhir.model.lean.LeanRootNode.PatientNode;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.springframework.stereotype.Component;
+
+/**
+ * Mapping of a {@link LeanRootNode} to a query result.
+ *
+ * <p>Implements the same mappings as the {@link QueryResultMapping} and the mappings it uses, but
+ * on {@link LeanResource lean resources} and without FHIRPath. Every method corresponds to one of
+ * the FHIRPath based mappings and adds the same attributes and containers in the same order, so
+ * that both produce the same query result for the same page.
+ *
+ * <p>The navigation of FHIRPath is followed closely. Like {@code coding.code}, absent codes are
+ * skipped and like {@code where(code.coding.code = 'X')}, a code only matches if it is the only
+ * one. References are resolved from the resources of the page.
+ *
+ * <p>The mapping is stateless and thread-safe.
+ */
+@Component
+public class LeanQueryResultMapping {
+
+  private static final ObjectFactory OBJECT_FACTORY = new ObjectFactory();
+
+  private static final String PSEUDONYM_ART_CS =
+      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/PseudonymArtCS";
+  private static final String VITAL_STATE_CS =
+      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/VitalstatusCS";
+  private static final String ICD_10_GM = DiagnosisMapping.ICD_10_GM;
+  private static final String ICD_O_3 = DiagnosisMapping.ICD_O_3;
+  private static final String ADT_SITE =
+      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/SeitenlokalisationCS";
+  private static final String EXTENSION_FERNMETASTASEN =
+      "http://dktk.dkfz.de/fhir/StructureDefinition/onco-core-Extension-Fernmetastasen";
+  private static final String GRADING = "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/GradingCS";
+  private static final String RESIDUAL_LOCAL =
+      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/LokaleBeurteilungResidualstatusCS";
+  private static final String RESIDUAL_GLOBAL =
+      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/GesamtbeurteilungResidualstatusCS";
+  private static final String CPU_PRAEFIX_URL =
+      "http://dktk.dkfz.de/fhir/StructureDefinition/onco-core-Extension-TNMcpuPraefix";
+  private static final String SAMPLE_MATERIAL_TYPE =
+      "https://fhir.bbmri.de/CodeSystem/SampleMaterialType";
+  private static final String LOINC = "http://loinc.org";
+
+  private static final String TNM_C = "21908-9";
+  private static final String TNM_P = "21902-2";
+  private static final String HISTOLOGY = "59847-4";
+  private static final String VITAL_STATE = "75186-7";
+  private static final String CANCER_OUTCOME_STATE = "21976-6";
+
+  /**
+   * Maps the patients of {@code rootNode} to a query result.
+   *
+   * @param rootNode the root node of a page
+   * @return the query result
+   */
+  public QueryResult map(LeanRootNode rootNode) {
+    var result = new QueryResult();
+    for (var patientNode : rootNode.patients()) {
+      result.getPatient().add(mapPatient(patientNode, rootNode.resources()));
+    }
+    return result;
+  }
+
+  /**
+   * Mirrors the {@link PatientMapping}.
+   */
+  private static de.samply.share.model.ccp.Patient mapPatient(PatientNode node,
+      Map<String, LeanResource> resources) {
+    var patient = node.patient();
+    var entity = OBJECT_FACTORY.createPatient();
+    identifierValue(patient, "Lokal").ifPresent(entity::setId);
+
+    addAttribute(entity, "urn:dktk:dataelement:54:1", identifierValue(patient, "Global"));
+    addAttribute(entity, "urn:dktk:dataelement:1:3",
+        Optional.ofNullable(patient.gender()).map(PatientMapping::mapGenderValue));
+    addAttribute(entity, "urn:dktk:dataelement:26:4",
+        DATE_STRING_FROM_STRING.apply(patient.birthDate()));
+
+    node.vitalState().ifPresent(vital -> {
+      addAttribute(entity, "urn:dktk:dataelement:53:3",
+          code(vital.valueCodeableConcept(), VITAL_STATE_CS));
+      addAttribute(entity, "urn:dktk:dataelement:48:3",
+          DATE_STRING_FROM_STRING.apply(vital.effectiveDateTime()));
+    });
+
+    for (var conditionNode : node.conditions()) {
+      entity.getContainer().add(mapDiagnosis(conditionNode, resources));
+    }
+    for (var specimen : node.specimens()) {
+      entity.getContainer().add(mapSample(specimen));
+    }
+    return entity;
+  }
+
+  private static Optional<String> identifierValue(Patient patient, String type) {
+    return patient.identifiers().stream()
+        .filter(identifier -> identifier.type().stream().anyMatch(coding ->
+            PSEUDONYM_ART_CS.equals(coding.system()) && type.equals(coding.code())))
+        .map(Identifier::value)
+        .filter(Objects::nonNull)
+        .findFirst();
+  }
+
+  /**
+   * Mirrors the {@link DiagnosisMapping}.
+   */
+  private static Container mapDiagnosis(ConditionNode node, Map<String, LeanResource> resources) {
+    var condition = node.condition();
+    var container = container(condition, "Diagnosis");
+
+    addAttribute(container, "urn:dktk:dataelement:29:2", code(condition.code(), ICD_10_GM));
+
+    if (condition.onsetAge() != null) {
+      addAttribute(container, "urn:dktk:dataelement:28:1", Optional.of(condition.onsetAge()));
+    }
+
+    if (condition.recordedDate() != null) {
+      addAttribute(container, "urn:dktk:dataelement:83:3",
+          DATE_STRING_FROM_STRING.apply(condition.recordedDate()));
+    }
+
+    if (condition.onsetDateTime() != null) {
+      addAttribute(container, "urn:dktk:dataelement:83:3",
+          DATE_STRING_FROM_STRING.apply(condition.onsetDateTime()));
+      addAttribute(container, "urn:dktk:dataelement:28:1",
+          lift2(DiagnosisMapping::calcAgeValue)
+              .apply(LOCAL_DATE_FROM_STRING.apply(node.patient().birthDate()),
+                  LOCAL_DATE_FROM_STRING.apply(condition.onsetDateTime())));
+    }
+
+    addAttribute(container, "urn:dktk:dataelement:3:2",
+        version(condition.bodySite(), ICD_O_3).map(s -> "10 " + s + " GM"));
+
+    container.getContainer().add(mapTumor(node, resources));
+    return container;
+  }
+
+  /**
+   * Mirrors the {@link TumorMapping}.
+   */
+  private static Container mapTumor(ConditionNode node, Map<String, LeanResource> resources) {
+    var condition = node.condition();
+    var container = container(condition, "Tumor");
+
+    addAttribute(container, "urn:dktk:dataelement:4:2", code(condition.bodySite(), ICD_O_3));
+    addAttribute(container, "urn:dktk:dataelement:5:2", version(condition.bodySite(), ICD_O_3));
+    addAttribute(container, "urn:dktk:dataelement:6:2", code(condition.bodySite(), ADT_SITE));
+
+    resolve(condition.evidenceDetails(), resources)
+        .forEach(histology -> container.getContainer().add(mapHistology(histology, resources)));
+
+    resolve(condition.stageAssessments(), resources)
+        .forEach(metastasis -> container.getContainer().add(mapMetastasis(metastasis)));
+
+    resolve(condition.extensions().stream()
+        .filter(extension -> EXTENSION_FERNMETASTASEN.equals(extension.url()))
+        .map(Extension::valueReference)
+        .filter(Objects::nonNull)
+        .toList(), resources)
+        .forEach(tnm -> container.getContainer().add(mapTnm(tnm)));
+
+    for (var procedure : node.procedures()) {
+      if ("OP".equals(firstCategoryCode(procedure))) {
+        var progress = mapProcedure(procedure, "Surgery", mapSurgery(procedure));
+        progress.getAttribute().add(Util.createAttribute("urn:dktk:dataelement:33:2", "true"));
+        container.getContainer().add(progress);
+      }
+    }
+
+    for (var procedure : node.procedures()) {
+      if ("ST".equals(firstCategoryCode(procedure))) {
+        container.getContainer().add(mapProcedure(procedure, "RadiationTherapy",
+            mapRadiationTherapy(procedure)));
+      }
+    }
+
+    for (var clinicalImpression : node.clinicalImpressions()) {
+      container.getContainer().add(mapProgress(clinicalImpression, resources));
+    }
+    return container;
+  }
+
+  private static String firstCategoryCode(Procedure procedure) {
+    return procedure.category().isEmpty() ? null : procedure.category().get(0).code();
+  }
+
+  private static Container mapProcedure(Procedure procedure, String type, Container therapy) {
+    var progress = OBJECT_FACTORY.createContainer();
+    progress.setId("Progress-" + type + "-" + procedure.id());
+    progress.setDesignation("Progress");
+    progress.getContainer().add(therapy);
+    return progress;
+  }
+
+  /**
+   * Mirrors the {@link HistologyMapping}.
+   */
+  private static Container mapHistology(Observation histology,
+      Map<String, LeanResource> resources) {
+    var container = container(histology, "Histology");
+
+    addAttribute(container, "urn:dktk:dataelement:7:2",
+        code(histology.valueCodeableConcept(), ICD_O_3));
+    addAttribute(container, "urn:dktk:dataelement:8:2",
+        version(histology.valueCodeableConcept(), ICD_O_3));
+    addAttribute(container, "urn:dktk:dataelement:9:2",
+        first(resolve(histology.hasMember(), resources),
+            member -> code(member.valueCodeableConcept(), GRADING)));
+
+    return container;
+  }
+
+  /**
+   * Mirrors the {@link MetastasisMapping}.
+   */
+  private static Container mapMetastasis(Observation metastasis) {
+    var container = container(metastasis, "Metastasis");
+
+    addAttribute(container, "urn:dktk:dataelement:77:1",
+        firstCode(metastasis.valueCodeableConcept()));
+    addAttribute(container, "urn:dktk:dataelement:98:1", firstCode(metastasis.bodySite()));
+    addAttribute(container, "urn:dktk:dataelement:21:3",
+        DATE_STRING_FROM_STRING.apply(metastasis.effectiveDateTime()));
+
+    return container;
+  }
+
+  /**
+   * Mirrors the {@link TnmMapping}.
+   */
+  private static Container mapTnm(Observation tnm) {
+    var container = container(tnm, "TNM");
+
+    addAttribute(container, "urn:dktk:dataelement:2:3",
+        DATE_STRING_FROM_STRING.apply(tnm.effectiveDateTime()));
+    addAttribute(container, "urn:dktk:dataelement:18:2",
+        first(tnm.valueCodeableConcept(), coding -> Optional.ofNullable(coding.version())));
+    addAttribute(container, "urn:dktk:dataelement:89:1", firstCode(tnm.valueCodeableConcept()));
+
+    var tnmCode = code(tnm.code(), LOINC).orElse(TNM_C);
+
+    // TNM-T
+    var codeT = TNM_P.equals(tnmCode) ? "21899-0" : "21905-5";
+    addAttribute(container, "urn:dktk:dataelement:78:1", componentCpuPraefix(tnm, codeT));
+    addAttribute(container, "urn:dktk:dataelement:100:1", componentValue(tnm, codeT));
+
+    // TNM-N
+    var codeN = TNM_P.equals(tnmCode) ? "21900-6" : "21906-3";
+    addAttribute(container, "urn:dktk:dataelement:79:1", componentCpuPraefix(tnm, codeN));
+    addAttribute(container, "urn:dktk:dataelement:101:1", componentValue(tnm, codeN));
+
+    // TNM-M
+    var codeM = TNM_P.equals(tnmCode) ? "21901-4" : "21907-1";
+    addAttribute(container, "urn:dktk:dataelement:80:1", componentCpuPraefix(tnm, codeM));
+    addAttribute(container, "urn:dktk:dataelement:99:1", componentValue(tnm, codeM));
+
+    // TNM-y-Symbol
+    addAttribute(container, "urn:dktk:dataelement:82:1", componentValue(tnm, "59479-6"));
+
+    // TNM-r-Symbol
+    addAttribute(container, "urn:dktk:dataelement:81:1", componentValue(tnm, "21983-2"));
+
+    // TNM-m-Symbol
+    addAttribute(container, "urn:dktk:dataelement:10:2", componentValue(tnm, "42030-7"));
+
+    return container;
+  }
+
+  private static Optional<String> componentValue(Observation tnm, String code) {
+    return first(components(tnm, code), component -> firstCode(component.valueCodeableConcept()));
+  }
+
+  private static Optional<String> componentCpuPraefix(Observation tnm, String code) {
+    return first(components(tnm, code), component -> first(component.extensions(),
+        extension -> CPU_PRAEFIX_URL.equals(extension.url())
+            ? firstCode(extension.valueCodeableConcept()) : Optional.empty()));
+  }
+
+  private static List<LeanElements.Component> components(Observation tnm, String code) {
+    return tnm.components().stream()
+        .filter(component -> hasOnlyCode(component.code(), code))
+        .toList();
+  }
+
+  /**
+   * Mirrors the {@link SurgeryMapping}.
+   */
+  private static Container mapSurgery(Procedure procedure) {
+    var container = container(procedure, "Surgery");
+
+    addAttribute(container, "urn:dktk:dataelement:19:2", code(procedure.outcome(), RESIDUAL_LOCAL));
+    addAttribute(container, "urn:dktk:dataelement:20:3",
+        code(procedure.outcome(), RESIDUAL_GLOBAL));
+    container.getAttribute().add(Util.createAttribute("urn:dktk:dataelement:23:3", "X"));
+
+    return container;
+  }
+
+  /**
+   * Mirrors the {@link RadiationTherapyMapping}.
+   */
+  private static Container mapRadiationTherapy(Procedure therapy) {
+    var container = container(therapy, "RadiationTherapy");
+
+    container.getAttribute().add(Util.createAttribute("urn:dktk:dataelement:34:2", "true"));
+    addAttribute(container, "urn:dktk:dataelement:77:1",
+        DATE_STRING_FROM_STRING.apply(therapy.performedStart()));
+    addAttribute(container, "urn:dktk:dataelement:78:1",
+        DATE_STRING_FROM_STRING.apply(therapy.performedEnd()));
+
+    return container;
+  }
+
+  /**
+   * Mirrors the {@link ProgressMapping}.
+   */
+  private static Container mapProgress(ClinicalImpression clinicalImpression,
+      Map<String, LeanResource> resources) {
+    var container = container(clinicalImpression, "Progress");
+    var effective = DATE_STRING_FROM_STRING.apply(clinicalImpression.effectiveDateTime());
+
+    addAttribute(container, "urn:dktk:dataelement:25:4", effective);
+    addAttribute(container, "urn:dktk:dataelement:43:3", effective);
+    addAttribute(container, "urn:dktk:dataelement:45:3", effective);
+
+    var items = resolve(clinicalImpression.findingItemReferences(), resources);
+    addAttribute(container, "urn:dktk:dataelement:53:3", itemValue(items, VITAL_STATE));
+    addAttribute(container, "urn:dktk:dataelement:7:2", itemValue(items, HISTOLOGY));
+    addAttribute(container, "urn:dktk:dataelement:24:3", itemValue(items, CANCER_OUTCOME_STATE));
+    addAttribute(container, "urn:dktk:dataelement:72:2", itemValue(items, "LA4583-6"));
+    addAttribute(container, "urn:dktk:dataelement:73:2", itemValue(items, "LA4370-8"));
+    addAttribute(container, "urn:dktk:dataelement:74:2", itemValue(items, "LA4226-2"));
+
+    items(items, TNM_C).forEach(tnm -> container.getContainer().add(mapTnm(tnm)));
+    items(items, TNM_P).forEach(tnm -> container.getContainer().add(mapTnm(tnm)));
+
+    return container;
+  }
+
+  private static Optional<String> itemValue(List<Observation> items, String code) {
+    return first(items(items, code), item -> firstCode(item.valueCodeableConcept()));
+  }
+
+  private static List<Observation> items(List<Observation> items, String code) {
+    return items.stream().filter(item -> hasOnlyCode(item.code(), code)).toList();
+  }
+
+  /**
+   * Mirrors the {@link SampleMapping}.
+   */
+  private static Container mapSample(Specimen specimen) {
+    var container = container(specimen, "Sample");
+    var bbmriType = code(specimen.type(), SAMPLE_MATERIAL_TYPE);
+    var cxxCode = code(specimen.type(), "urn:centraxx");
+
+    addAttribute(container, "urn:dktk:dataelement:97:1",
+        bbmriType.map(type -> SampleMapping.mapProbenart(type, cxxCode)));
+    container.getAttribute().add(Util.createAttribute("urn:dktk:dataelement:50:2",
+        Boolean.toString(bbmriType.isPresent())));
+    addAttribute(container, "urn:dktk:dataelement:95:2",
+        bbmriType.flatMap(SampleMapping::mapProbentyp));
+    addAttribute(container, "urn:dktk:dataelement:90:1",
+        bbmriType.flatMap(SampleMapping::mapFixierungsart));
+    addAttribute(container, "urn:dktk:dataelement:49:4",
+        DATE_STRING_FROM_STRING.apply(specimen.collectedDateTime()));
+
+    return container;
+  }
+
+  private static Container container(LeanResource resource, String designation) {
+    var container = OBJECT_FACTORY.createContainer();
+    container.setId(resource.resourceType() + "-" + resource.id());
+    container.setDesignation(designation);
+    return container;
+  }
+
+  private static void addAttribute(Entity entity, String mdrKey, Optional<String> value) {
+    value.ifPresent(v -> entity.getAttribute().add(Util.createAttribute(mdrKey, v)));
+  }
+
+  /**
+   * Resolves the Observations with {@code references} in the order of the references. References
+   * which can't be resolved are skipped.
+   */
+  private static List<Observation> resolve(List<String> references,
+      Map<String, LeanResource> resources) {
+    return references.stream()
+        .map(resources::get)
+        .flatMap(resource -> resource instanceof Observation observation
+            ? Stream.of(observation) : Stream.empty())
+        .toList();
+  }
+
+  /**
+   * Returns the code of the first coding with {@code system} which has a code.
+   */
+  private static Optional<String> code(List<Coding> codings, String system) {
+    return first(codings, coding -> system.equals(coding.system())
+        ? Optional.ofNullable(coding.code()) : Optional.empty());
+  }
+
+  /**
+   * Returns the version of the first coding with {@code system} which has a version.
+   */
+  private static Optional<String> version(List<Coding> codings, String system) {
+    return first(codings, coding -> system.equals(coding.system())
+        ? Optional.ofNullable(coding.version()) : Optional.empty());
+  }
+
+  private static Optional<String> firstCode(List<Coding> codings) {
+    return first(codings, coding -> Optional.ofNullable(coding.code()));
+  }
+
+  /**
+   * Returns whether {@code code} is the only code of {@code codings}, which is the semantics of
+   * the FHIRPath expression {@code coding.code = 'code'}.
+   */
+  private static boolean hasOnlyCode(List<Coding> codings, String code) {
+    String found = null;
+    for (var coding : codings) {
+      if (coding.code() != null) {
+        if (found != null) {
+          return false;
+        }
+        found = coding.code();
+      }
+    }
+    return code.equals(found);
+  }
+
+  /**
+   * Returns the first present value of {@code f} applied to {@code elements}.
+   */
+  private static <T> Optional<String> first(List<T> elements,
+      Function<? super T, Optional<String>> f) {
+    for (var element : elements) {
+      var value = f.apply(element);
+      if (value.isPresent()) {
+        return value;
+      }
+    }
+    return Optional.empty();
+  }
+}
@@ -0,0 +1,178 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+/**
+ * Declarative definitions of the attributes of MDS entities, loaded from YAML.
+ *
+ * <p>The YAML document has the following structure:
+ *
+ * <pre>
+ * constants:
+ *   ICD_O_3: urn:oid:2.16.840.1.113883.6.43.1
+ * entities:
+ *   Histology:
+ *     shared:
+ *       members: Observation.hasMember.resolve()
+ *     attributes:
+ *       - mdrKey: urn:dktk:dataelement:7:2
+ *         path: Observation.value.coding.where(system = '${ICD_O_3}').code
+ *         type: code
+ *       - mdrKey: urn:dktk:dataelement:9:2
+ *         from: members
+ *         path: value.coding.code
+ *         type: code
+ *       - mdrKey: urn:dktk:dataelement:23:3
+ *         value: X
+ * </pre>
+ *
+ * <p>Constants are substituted into paths with {@code ${NAME}}. An attribute either has a FHIRPath
+ * {@code path} and a {@code type} or a constant {@code value}. A path with {@code from} is
+ * evaluated on each value of the shared expression with that name, so it must not aggregate over
+ * its input like {@code first()} or {@code count()} do.
+ *
+ * @param entities the definitions of the entities by designation
+ */
+public record MappingDefinitions(Map<String, EntityDefinition> entities) {
+
+  /**
+   * The location of the mapping definitions of the MDS shipped with the adapter.
+   */
+  public static final String STANDARD_LOCATION = "/mapping.yml";
+
+  private static final Pattern CONSTANT = Pattern.compile("\\$\\{([^}]+)}");
+
+  /**
+   * Loads the mapping definitions of the MDS shipped with the adapter.
+   *
+   * @return the mapping definitions
+   */
+  public static MappingDefinitions standard() {
+    try (var in = MappingDefinitions.class.getResourceAsStream(STANDARD_LOCATION)) {
+      return load(Objects.requireNonNull(in, "missing " + STANDARD_LOCATION));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Loads mapping definitions from YAML.
+   *
+   * @param in the YAML document
+   * @return the mapping definitions
+   * @throws IllegalArgumentException if the document doesn't follow the structure described above
+   */
+  public static MappingDefinitions load(InputStream in) {
+    Object document = new Yaml(new SafeConstructor()).load(in);
+    var root = map(document, "document");
+    var constants = new LinkedHashMap<String, String>();
+    map(root.get("constants"), "constants").forEach((name, value) ->
+        constants.put(name, string(value, "constant " + name)));
+    var entities = new LinkedHashMap<String, EntityDefinition>();
+    map(root.get("entities"), "entities").forEach((designation, entity) ->
+        entities.put(designation, entity(designation, map(entity, designation), constants)));
+    return new MappingDefinitions(Collections.unmodifiableMap(entities));
+  }
+
+  private static EntityDefinition entity(String designation, Map<String, Object> entity,
+      Map<String, String> constants) {
+    var shared = new LinkedHashMap<String, String>();
+    map(entity.get("shared"), designation + ".shared").forEach((name, path) ->
+        shared.put(name, substitute(string(path, designation + ".shared." + name), constants)));
+    var attributes = new ArrayList<AttributeDefinition>();
+    for (var attribute : list(entity.get("attributes"), designation + ".attributes")) {
+      var fields = map(attribute, designation + ".attributes");
+      // interned to share the key with the constants of the hand-written mappings
+      var mdrKey = string(fields.get("mdrKey"), designation + " attribute mdrKey").intern();
+      var context = designation + " attribute " + mdrKey;
+      var path = fields.get("path") == null ? null
+          : substitute(string(fields.get("path"), context + " path"), constants);
+      attributes.add(new AttributeDefinition(mdrKey,
+          fields.get("from") == null ? null : string(fields.get("from"), context + " from"),
+          path,
+          fields.get("type") == null ? null : string(fields.get("type"), context + " type"),
+          fields.get("value") == null ? null : string(fields.get("value"), context + " value")));
+    }
+    return new EntityDefinition(Collections.unmodifiableMap(shared), List.copyOf(attributes));
+  }
+
+  private static String substitute(String path, Map<String, String> constants) {
+    Matcher matcher = CONSTANT.matcher(path);
+    var result = new StringBuilder();
+    while (matcher.find()) {
+      var value = constants.get(matcher.group(1));
+      if (value == null) {
+        throw new IllegalArgumentException("Unknown constant `" + matcher.group(1) + "` in path `"
+            + path + "`.");
+      }
+      matcher.appendReplacement(result, Matcher.quoteReplacement(value));
+    }
+    return matcher.appendTail(result).toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> map(Object value, String name) {
+    if (value == null) {
+      return Map.of();
+    }
+    if (value instanceof Map<?, ?> map) {
+      return (Map<String, Object>) map;
+    }
+    throw new IllegalArgumentException("Expected `" + name + "` to be a mapping.");
+  }
+
+  private static List<?> list(Object value, String name) {
+    if (value == null) {
+      return List.of();
+    }
+    if (value instanceof List<?> list) {
+      return list;
+    }
+    throw new IllegalArgumentException("Expected `" + name + "` to be a list.");
+  }
+
+  private static String string(Object value, String name) {
+    if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+      return value.toString();
+    }
+    throw new IllegalArgumentException("Expected `" + name + "` to be a scalar.");
+  }
+
+  /**
+   * The definition of the attributes of one entity.
+   *
+   * @param shared     FHIRPath expressions by name which are evaluated once per resource
+   * @param attributes the attributes in the order they are added to the entity
+   */
+  public record EntityDefinition(Map<String, String> shared,
+                                 List<AttributeDefinition> attributes) {
+
+  }
+
+  /**
+   * The definition of one attribute.
+   *
+   * @param mdrKey the MDR key of the attribute
+   * @param from   the name of the shared expression the path is evaluated on or {@code null} if
+   *               the path is evaluated on the resource
+   * @param path   the FHIRPath of the value or {@code null} for constant attributes
+   * @param type   the type of the value of the path like {@code code}
+   * @param value  the constant value or {@code null}
+   */
+  public record AttributeDefinition(String mdrKey, String from, String path, String type,
+                                    String value) {
+
+  }
+}
@@ -0,0 +1,296 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import static de.samply.store.adapter.fhir.service.mapping.Util.DATE_STRING;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import de.samply.share.model.ccp.Entity;
+import de.samply.store.adapter.fhir.service.EvaluationContext;
+import de.samply.store.adapter.fhir.service.FhirPathR4;
+import de.samply.store.adapter.fhir.service.mapping.MappingDefinitions.AttributeDefinition;
+import de.samply.store.adapter.fhir.service.mapping.MappingDefinitions.EntityDefinition;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+
+/**
+ * The {@link MappingDefinitions mapping definitions} compiled into an execution plan.
+ *
+ * <p>All FHIRPath expressions are parsed once at compile time instead of on every evaluation.
+ * Attributes with the same path share one evaluation per resource and shared expressions, like
+ * resolving the members of an Observation, are evaluated only once per resource for all
+ * attributes using them.
+ *
+ * <p>A plan is immutable and can be used by all FHIRPath engines concurrently.
+ */
+public final class MappingPlan {
+
+  /**
+   * The designations of all entities the mappings of the adapter take from a plan.
+   */
+  public static final List<String> REQUIRED_ENTITIES = List.of("Histology", "Metastasis",
+      "Surgery", "RadiationTherapy", "Progress");
+
+  private final MappingDefinitions definitions;
+  private final Map<String, EntityPlan> entities;
+
+  private MappingPlan(MappingDefinitions definitions, Map<String, EntityPlan> entities) {
+    this.definitions = definitions;
+    this.entities = entities;
+  }
+
+  /**
+   * Compiles {@code definitions} into a plan.
+   *
+   * @param context     the FHIR context used to parse the FHIRPath expressions
+   * @param definitions the mapping definitions
+   * @return the compiled plan
+   * @throws IllegalArgumentException if a definition is invalid
+   */
+  public static MappingPlan compile(FhirContext context, MappingDefinitions definitions) {
+    var parser = new FhirPathR4(context, new EvaluationContext());
+    var entities = new HashMap<String, EntityPlan>();
+    definitions.entities().forEach((designation, entity) ->
+        entities.put(designation, EntityPlan.compile(parser, designation, entity)));
+    return new MappingPlan(definitions, Map.copyOf(entities));
+  }
+
+  /**
+   * Compiles the mapping definitions of the MDS shipped with the adapter.
+   *
+   * @param context the FHIR context used to parse the FHIRPath expressions
+   * @return the compiled plan
+   */
+  public static MappingPlan standard(FhirContext context) {
+    return compile(context, MappingDefinitions.standard());
+  }
+
+  /**
+   * Checks that this plan has the definitions of all entities with {@code designations}.
+   *
+   * <p>The mappings take the plans of their entities for every page, so a missing definition
+   * should rather fail the start of the adapter than the first request.
+   *
+   * @param designations the designations of the entities like {@link #REQUIRED_ENTITIES}
+   * @return this plan
+   * @throws IllegalArgumentException if the definition of one of the entities is missing
+   */
+  public MappingPlan requireEntities(List<String> designations) {
+    var missing = designations.stream().filter(d -> !entities.containsKey(d)).toList();
+    if (!missing.isEmpty()) {
+      throw new IllegalArgumentException("Missing mapping definitions of the entities `"
+          + String.join("`, `", missing) + "`.");
+    }
+    return this;
+  }
+
+  /**
+   * Returns whether this plan was compiled from the same definitions as shipped with the adapter.
+   *
+   * @return whether the definitions of this plan are the standard ones
+   */
+  public boolean isStandard() {
+    return definitions.equals(MappingDefinitions.standard());
+  }
+
+  /**
+   * Returns the plan of the entity with {@code designation}.
+   *
+   * @param designation the designation of the entity like {@code Histology}
+   * @return the plan of the entity
+   * @throws IllegalArgumentException if there is no definition of the entity
+   */
+  public EntityPlan entity(String designation) {
+    var entity = entities.get(designation);
+    if (entity == null) {
+      throw new IllegalArgumentException("Missing mapping definition of the entity `"
+          + designation + "`.");
+    }
+    return entity;
+  }
+
+  /**
+   * The types of attribute values.
+   */
+  private enum ValueType {
+    CODE(CodeType.class, v -> Optional.ofNullable(v.getValueAsString())),
+    STRING(StringType.class, v -> Optional.ofNullable(v.getValueAsString())),
+    DATE_TIME(DateTimeType.class, DATE_STRING);
+
+    private final Class<? extends PrimitiveType<?>> type;
+    private final Function<PrimitiveType<?>, Optional<String>> toString;
+
+    ValueType(Class<? extends PrimitiveType<?>> type,
+        Function<PrimitiveType<?>, Optional<String>> toString) {
+      this.type = type;
+      this.toString = toString;
+    }
+
+    private static ValueType of(String name, String context) {
+      return switch (name) {
+        case "code" -> CODE;
+        case "string" -> STRING;
+        case "dateTime" -> DATE_TIME;
+        default -> throw new IllegalArgumentException("Unknown type `" + name + "` of " + context
+            + ".");
+      };
+    }
+
+    private Optional<String> convert(Base value, ExpressionNode path) {
+      if (!type.isInstance(value)) {
+        throw new FhirPathExecutionException("FluentPath expression \"" + path
+            + "\" returned unexpected type " + value.getClass().getSimpleName() + " - Expected "
+            + type.getName());
+      }
+      return toString.apply((PrimitiveType<?>) value);
+    }
+  }
+
+  /**
+   * An evaluation of a parsed path on the resource or on the values of a shared expression.
+   *
+   * @param from the index of the shared expression or -1 for the resource
+   * @param path the parsed path
+   */
+  private record Evaluation(int from, ExpressionNode path) {
+
+  }
+
+  /**
+   * A compiled attribute.
+   *
+   * @param mdrKey     the MDR key of the attribute
+   * @param evaluation the index of the evaluation of the value or -1 for constant attributes
+   * @param type       the type of the value or {@code null} for constant attributes
+   * @param value      the constant value or {@code null}
+   */
+  private record Attribute(String mdrKey, int evaluation, ValueType type, String value) {
+
+  }
+
+  /**
+   * The compiled plan of one entity.
+   */
+  public static final class EntityPlan {
+
+    private final List<ExpressionNode> shared;
+    private final List<Evaluation> evaluations;
+    private final List<Attribute> attributes;
+
+    private EntityPlan(List<ExpressionNode> shared, List<Evaluation> evaluations,
+        List<Attribute> attributes) {
+      this.shared = shared;
+      this.evaluations = evaluations;
+      this.attributes = attributes;
+    }
+
+    private static EntityPlan compile(FhirPathR4 parser, String designation,
+        EntityDefinition definition) {
+      var sharedIndices = new HashMap<String, Integer>();
+      var shared = new ArrayList<ExpressionNode>();
+      definition.shared().forEach((name, path) -> {
+        sharedIndices.put(name, shared.size());
+        shared.add(parse(parser, path, designation + " shared expression " + name));
+      });
+
+      var evaluationIndices = new HashMap<String, Integer>();
+      var evaluations = new ArrayList<Evaluation>();
+      var attributes = new ArrayList<Attribute>();
+      for (AttributeDefinition attribute : definition.attributes()) {
+        var context = designation + " attribute " + attribute.mdrKey();
+        if ((attribute.path() == null) == (attribute.value() == null)) {
+          throw new IllegalArgumentException("Expected either a path or a value in " + context
+              + ".");
+        }
+        if (attribute.value() != null) {
+          attributes.add(new Attribute(attribute.mdrKey(), -1, null, attribute.value()));
+          continue;
+        }
+        if (attribute.type() == null) {
+          throw new IllegalArgumentException("Missing type in " + context + ".");
+        }
+        var from = attribute.from() == null ? -1 : sharedIndices.getOrDefault(attribute.from(), -2);
+        if (from == -2) {
+          throw new IllegalArgumentException("Unknown shared expression `" + attribute.from()
+              + "` in " + context + ".");
+        }
+        var evaluation = evaluationIndices.computeIfAbsent(from + ":" + attribute.path(), key -> {
+          evaluations.add(new Evaluation(from, parse(parser, attribute.path(), context)));
+          return evaluations.size() - 1;
+        });
+        attributes.add(new Attribute(attribute.mdrKey(), evaluation,
+            ValueType.of(attribute.type(), context), null));
+      }
+      return new EntityPlan(List.copyOf(shared), List.copyOf(evaluations),
+          List.copyOf(attributes));
+    }
+
+    private static ExpressionNode parse(FhirPathR4 parser, String path, String context) {
+      try {
+        return parser.compile(path);
+      } catch (FhirPathExecutionException e) {
+        throw new IllegalArgumentException("Invalid path `" + path + "` in " + context + ": "
+            + e.getMessage(), e);
+      }
+    }
+
+    /**
+     * Adds the attributes of this plan evaluated on {@code resource} to {@code entity}.
+     *
+     * @param fhirPathEngine the FHIRPath engine
+     * @param resource       the resource to evaluate the paths on
+     * @param entity         the entity to add the attributes to
+     */
+    @SuppressWarnings("unchecked")
+    public void apply(FhirPathR4 fhirPathEngine, Resource resource, Entity entity) {
+      var sharedValues = (List<Base>[]) new List<?>[shared.size()];
+      var values = (Optional<Base>[]) new Optional<?>[evaluations.size()];
+      for (Attribute attribute : attributes) {
+        if (attribute.value != null) {
+          entity.getAttribute().add(Util.createAttribute(attribute.mdrKey, attribute.value));
+          continue;
+        }
+        var evaluation = evaluations.get(attribute.evaluation);
+        if (values[attribute.evaluation] == null) {
+          values[attribute.evaluation] = evaluateFirst(fhirPathEngine, resource, sharedValues,
+              evaluation);
+        }
+        values[attribute.evaluation]
+            .flatMap(value -> attribute.type.convert(value, evaluation.path))
+            .ifPresent(v -> entity.getAttribute().add(Util.createAttribute(attribute.mdrKey, v)));
+      }
+    }
+
+    private Optional<Base> evaluateFirst(FhirPathR4 fhirPathEngine, Resource resource,
+        List<Base>[] sharedValues, Evaluation evaluation) {
+      if (evaluation.from < 0) {
+        return first(fhirPathEngine.evaluate(resource, evaluation.path, Base.class));
+      }
+      if (sharedValues[evaluation.from] == null) {
+        sharedValues[evaluation.from] = fhirPathEngine.evaluate(resource,
+            shared.get(evaluation.from), Base.class);
+      }
+      for (Base input : sharedValues[evaluation.from]) {
+        var value = first(fhirPathEngine.evaluate(input, evaluation.path, Base.class));
+        if (value.isPresent()) {
+          return value;
+        }
+      }
+      return Optional.empty();
+    }
+
+    private static Optional<Base> first(List<Base> values) {
+      return values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+    }
+  }
+}
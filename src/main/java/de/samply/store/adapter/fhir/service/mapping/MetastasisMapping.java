@@ -1,32 +1,32 @@
 package de.samply.store.adapter.fhir.service.mapping;
 
-import static de.samply.store.adapter.fhir.service.mapping.Util.DATE_STRING;
-
 import de.samply.share.model.ccp.Container;
 import de.samply.store.adapter.fhir.service.FhirPathR4;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan.EntityPlan;
 import java.util.Objects;
-import org.hl7.fhir.r4.model.CodeType;
-import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.PrimitiveType;
-import org.hl7.fhir.r4.model.StringType;
 import org.springframework.stereotype.Component;
 
 /**
  * Mapping of FHIR Observation to MDS Metastasis.
+ *
+ * <p>The attributes are defined in the {@link MappingPlan mapping plan}.
  */
 @Component
 public class MetastasisMapping {
 
   private final FhirPathR4 fhirPathEngine;
+  private final EntityPlan plan;
 
   /**
    * Creates a new MetastasisMapping.
    *
    * @param fhirPathEngine the FHIRPath engine
+   * @param mappingPlan    the mapping plan
    */
-  public MetastasisMapping(FhirPathR4 fhirPathEngine) {
+  public MetastasisMapping(FhirPathR4 fhirPathEngine, MappingPlan mappingPlan) {
     this.fhirPathEngine = Objects.requireNonNull(fhirPathEngine);
+    this.plan = mappingPlan.entity("Metastasis");
   }
 
   /**
@@ -37,16 +37,7 @@ public class MetastasisMapping {
    */
   public Container map(Observation metastasis) {
     var builder = new ContainerBuilder(fhirPathEngine, metastasis, "Metastasis");
-
-    builder.addAttribute("Observation.value.coding.code",
-        CodeType.class, "urn:dktk:dataelement:77:1", PrimitiveType::getValue);
-
-    builder.addAttribute("Observation.bodySite.coding.code",
-        StringType.class, "urn:dktk:dataelement:98:1", PrimitiveType::getValue);
-
-    builder.addAttributeOptional("Observation.effective",
-        DateTimeType.class, "urn:dktk:dataelement:21:3", DATE_STRING);
-
+    builder.addAttributes(plan);
     return builder.build();
   }
 }
@@ -17,15 +17,22 @@ import org.springframework.stereotype.Component;
 
 /**
  * Mapping of a FHIR Patient and other resources to MDS Patient.
+ *
+ * <p>The local and global pseudonyms are extracted in one pass over the identifiers by a {@link
+ * FusedExtractor}. Its paths are parsed once for all pages.
  */
 @Component
 public class PatientMapping {
 
   private static final String PSEUDONYM_ART_CS =
       "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/PseudonymArtCS";
-  private static final String GLOBAL_ID_PATH =
-      "Patient.identifier.where(type.coding.where(system= \"" + PSEUDONYM_ART_CS
-          + "\" and code=\"Global\").exists()).value";
+  private static final String LOCAL = "Lokal";
+  private static final String GLOBAL = "Global";
+  private static final FusedExtractor IDENTIFIERS = FusedExtractor
+      .over("Patient.identifier", "type.coding.where(system = '" + PSEUDONYM_ART_CS + "').code")
+      .field(LOCAL, LOCAL, "value")
+      .field(GLOBAL, GLOBAL, "value")
+      .compile();
   private static final String VITAL_STATE_CS =
       "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/VitalstatusCS";
 
@@ -58,7 +65,9 @@ public class PatientMapping {
     var patient = patientNode.patient();
     var patientBuilder = new PatientBuilder(fhirPathEngine, patient);
 
-    patientBuilder.addAttribute(GLOBAL_ID_PATH, StringType.class, "urn:dktk:dataelement:54:1",
+    var ids = IDENTIFIERS.extract(fhirPathEngine, patient);
+    ids.get(LOCAL, StringType.class).ifPresent(id -> patientBuilder.setId(id.getValue()));
+    patientBuilder.addAttribute(ids, GLOBAL, StringType.class, "urn:dktk:dataelement:54:1",
         PrimitiveType::getValue);
 
     patientBuilder.addAttribute("Patient.gender", Enumeration.class, "urn:dktk:dataelement:1:3",
@@ -86,8 +95,7 @@ public class PatientMapping {
     return patientBuilder.build();
   }
 
-
-  private String mapGenderValue(String gender) {
+  static String mapGenderValue(String gender) {
     return switch (gender) {
       case "male" -> "M";
       case "female" -> "W";
@@ -95,5 +103,4 @@ public class PatientMapping {
       default -> "U";
     };
   }
-
 }
@@ -1,42 +1,41 @@
 package de.samply.store.adapter.fhir.service.mapping;
 
-import static de.samply.store.adapter.fhir.service.mapping.Util.DATE_STRING;
-
 import de.samply.share.model.ccp.Container;
 import de.samply.store.adapter.fhir.model.ClinicalImpressionNode;
 import de.samply.store.adapter.fhir.service.FhirPathR4;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan.EntityPlan;
 import java.util.Objects;
-import org.hl7.fhir.r4.model.CodeType;
-import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.PrimitiveType;
 import org.springframework.stereotype.Component;
 
 /**
  * Mapping of FHIR ClinicalImpression to MDS Progress.
+ *
+ * <p>The attributes are defined in the {@link MappingPlan mapping plan}. Only the TNM containers
+ * are mapped here.
  */
 @Component
 public class ProgressMapping {
 
   private static final String TNM_C = "21908-9";
   private static final String TNM_P = "21902-2";
-  private static final String HISTOLOGY = "59847-4";
-  private static final String VITAL_STATE = "75186-7";
-  private static final String CANCER_OUTCOME_STATE = "21976-6";
-  private static final String EFFECTIVE_PATH = "ClinicalImpression.effective";
 
   private final FhirPathR4 fhirPathEngine;
   private final TnmMapping tnmMapping;
+  private final EntityPlan plan;
 
   /**
    * Creates a new ProgressMapping.
    *
    * @param fhirPathEngine the FHIRPath engine
    * @param tnmMapping     the TNM mapping
+   * @param mappingPlan    the mapping plan
    */
-  public ProgressMapping(FhirPathR4 fhirPathEngine, TnmMapping tnmMapping) {
+  public ProgressMapping(FhirPathR4 fhirPathEngine, TnmMapping tnmMapping,
+      MappingPlan mappingPlan) {
     this.fhirPathEngine = Objects.requireNonNull(fhirPathEngine);
     this.tnmMapping = Objects.requireNonNull(tnmMapping);
+    this.plan = mappingPlan.entity("Progress");
   }
 
   /**
@@ -48,32 +47,7 @@ public class ProgressMapping {
   public Container map(ClinicalImpressionNode node) {
     var builder = new ContainerBuilder(fhirPathEngine, node.clinicalImpression(), "Progress");
 
-    builder.addAttributeOptional(EFFECTIVE_PATH, DateTimeType.class,
-        "urn:dktk:dataelement:25:4", DATE_STRING);
-
-    builder.addAttributeOptional(EFFECTIVE_PATH, DateTimeType.class,
-        "urn:dktk:dataelement:43:3", DATE_STRING);
-
-    builder.addAttributeOptional(EFFECTIVE_PATH, DateTimeType.class,
-        "urn:dktk:dataelement:45:3", DATE_STRING);
-
-    builder.addAttribute(itemValuePath(VITAL_STATE), CodeType.class,
-        "urn:dktk:dataelement:53:3", PrimitiveType::getValue);
-
-    builder.addAttribute(itemValuePath(HISTOLOGY), CodeType.class,
-        "urn:dktk:dataelement:7:2", PrimitiveType::getValue);
-
-    builder.addAttribute(itemValuePath(CANCER_OUTCOME_STATE), CodeType.class,
-        "urn:dktk:dataelement:24:3", PrimitiveType::getValue);
-
-    builder.addAttribute(itemValuePath("LA4583-6"), CodeType.class,
-        "urn:dktk:dataelement:72:2", PrimitiveType::getValue);
-
-    builder.addAttribute(itemValuePath("LA4370-8"), CodeType.class,
-        "urn:dktk:dataelement:73:2", PrimitiveType::getValue);
-
-    builder.addAttribute(itemValuePath("LA4226-2"), CodeType.class,
-        "urn:dktk:dataelement:74:2", PrimitiveType::getValue);
+    builder.addAttributes(plan);
 
     builder.addContainer(itemPath(TNM_C), Observation.class, tnmMapping::map);
     builder.addContainer(itemPath(TNM_P), Observation.class, tnmMapping::map);
@@ -81,10 +55,6 @@ public class ProgressMapping {
     return builder.build();
   }
 
-  private static String itemValuePath(String code) {
-    return itemPath(code) + ".value.coding.code";
-  }
-
   private static String itemPath(String code) {
     return "ClinicalImpression.finding.itemReference.resolve().where(code.coding.code = '" + code
         + "')";
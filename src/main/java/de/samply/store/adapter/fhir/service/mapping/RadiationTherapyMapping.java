@@ -1,29 +1,32 @@
 package de.samply.store.adapter.fhir.service.mapping;
 
-import static de.samply.store.adapter.fhir.service.mapping.Util.DATE_STRING;
-
 import de.samply.share.model.ccp.Container;
 import de.samply.store.adapter.fhir.service.FhirPathR4;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan.EntityPlan;
 import java.util.Objects;
-import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Procedure;
 import org.springframework.stereotype.Component;
 
 /**
  * Mapping of FHIR Procedure to MDS RadiationTherapy.
+ *
+ * <p>The attributes are defined in the {@link MappingPlan mapping plan}.
  */
 @Component
 public class RadiationTherapyMapping implements ProcedureMapping {
 
   private final FhirPathR4 fhirPathEngine;
+  private final EntityPlan plan;
 
   /**
    * Creates a new RadiationTherapyMapping.
    *
    * @param fhirPathEngine the FHIRPath engine
+   * @param mappingPlan    the mapping plan
    */
-  public RadiationTherapyMapping(FhirPathR4 fhirPathEngine) {
+  public RadiationTherapyMapping(FhirPathR4 fhirPathEngine, MappingPlan mappingPlan) {
     this.fhirPathEngine = Objects.requireNonNull(fhirPathEngine);
+    this.plan = mappingPlan.entity("RadiationTherapy");
   }
 
   /**
@@ -34,13 +37,7 @@ public class RadiationTherapyMapping implements ProcedureMapping {
    */
   public Container map(Procedure therapy) {
     var builder = new ContainerBuilder(fhirPathEngine, therapy, "RadiationTherapy");
-
-    builder.addAttribute("urn:dktk:dataelement:34:2", "true");
-    builder.addAttributeOptional("Procedure.performed.start", DateTimeType.class,
-        "urn:dktk:dataelement:77:1", DATE_STRING);
-    builder.addAttributeOptional("Procedure.performed.end", DateTimeType.class,
-        "urn:dktk:dataelement:78:1", DATE_STRING);
-
+    builder.addAttributes(plan);
     return builder.build();
   }
 }
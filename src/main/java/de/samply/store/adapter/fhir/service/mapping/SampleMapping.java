@@ -65,7 +65,7 @@ public class SampleMapping {
     return "Specimen.type.coding.where(system = '" + system + "').code";
   }
 
-  private static String mapProbenart(String bbmriType, Optional<String> cxxCode) {
+  static String mapProbenart(String bbmriType, Optional<String> cxxCode) {
     return switch (bbmriType) {
       case "whole-blood" -> "Vollblut";
       case "bone-marrow" -> "Knochenmark";
@@ -92,7 +92,7 @@ public class SampleMapping {
     };
   }
 
-  private static Optional<String> mapProbentyp(String code) {
+  static Optional<String> mapProbentyp(String code) {
     return switch (code) {
       case "tumor-tissue-ffpe", "normal-tissue-ffpe", "other-tissue-ffpe", "tissue-ffpe",
           "tissue-frozen", "tumor-tissue-frozen", "normal-tissue-frozen", "other-tissue-frozen",
@@ -104,7 +104,7 @@ public class SampleMapping {
     };
   }
 
-  private static Optional<String> mapFixierungsart(String code) {
+  static Optional<String> mapFixierungsart(String code) {
     if (code.contains("ffpe")) {
       return Optional.of("Paraffin (FFPE)");
     } else if (code.contains("frozen")) {
@@ -2,32 +2,31 @@ package de.samply.store.adapter.fhir.service.mapping;
 
 import de.samply.share.model.ccp.Container;
 import de.samply.store.adapter.fhir.service.FhirPathR4;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan.EntityPlan;
 import java.util.Objects;
-import org.hl7.fhir.r4.model.CodeType;
-import org.hl7.fhir.r4.model.PrimitiveType;
 import org.hl7.fhir.r4.model.Procedure;
 import org.springframework.stereotype.Component;
 
 /**
  * Mapping of FHIR Procedure to MDS Surgery.
+ *
+ * <p>The attributes are defined in the {@link MappingPlan mapping plan}.
  */
 @Component
 public class SurgeryMapping implements ProcedureMapping {
 
-  private static final String SYSTEM_LOCAL =
-      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/LokaleBeurteilungResidualstatusCS";
-  private static final String SYSTEM_GLOBAL =
-      "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/GesamtbeurteilungResidualstatusCS";
-
   private final FhirPathR4 fhirPathEngine;
+  private final EntityPlan plan;
 
   /**
    * Creates a new SurgeryMapping.
    *
    * @param fhirPathEngine the FHIRPath engine
+   * @param mappingPlan    the mapping plan
    */
-  public SurgeryMapping(FhirPathR4 fhirPathEngine) {
+  public SurgeryMapping(FhirPathR4 fhirPathEngine, MappingPlan mappingPlan) {
     this.fhirPathEngine = Objects.requireNonNull(fhirPathEngine);
+    this.plan = mappingPlan.entity("Surgery");
   }
 
   /**
@@ -38,17 +37,7 @@ public class SurgeryMapping implements ProcedureMapping {
    */
   public Container map(Procedure procedure) {
     var builder = new ContainerBuilder(fhirPathEngine, procedure, "Surgery");
-
-    builder.addAttribute(outcomePath(SYSTEM_LOCAL), CodeType.class,
-        "urn:dktk:dataelement:19:2", PrimitiveType::getValue);
-    builder.addAttribute(outcomePath(SYSTEM_GLOBAL), CodeType.class,
-        "urn:dktk:dataelement:20:3", PrimitiveType::getValue);
-    builder.addAttribute("urn:dktk:dataelement:23:3", "X");
-
+    builder.addAttributes(plan);
     return builder.build();
   }
-
-  private static String outcomePath(String system) {
-    return "Procedure.outcome.coding.where(system = '" + system + "').code";
-  }
 }
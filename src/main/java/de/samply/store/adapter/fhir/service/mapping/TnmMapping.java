@@ -4,6 +4,9 @@ import static de.samply.store.adapter.fhir.service.mapping.Util.DATE_STRING;
 
 import de.samply.share.model.ccp.Container;
 import de.samply.store.adapter.fhir.service.FhirPathR4;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import org.hl7.fhir.r4.model.CodeType;
@@ -15,6 +18,15 @@ import org.springframework.stereotype.Component;
 
 /**
  * Mapping of FHIR Observation to MDS TNM container.
+ *
+ * <p>The values of all components are extracted in one pass over the components by a {@link
+ * FusedExtractor}, which is compiled only once and shared by the mappings of all pages.
+ *
+ * <p>The same TNM Observation can be reached from the Fernmetastasen extension of its Condition and
+ * from every ClinicalImpression referencing it. Because a TnmMapping is created for each page by
+ * the mapping service factory, it maps every Observation of a page only once and returns the same
+ * container for all further references. Containers are never modified after mapping, so sharing
+ * one instance between parents is marshalled like distinct copies.
  */
 @Component
 public class TnmMapping {
@@ -38,7 +50,13 @@ public class TnmMapping {
   private static final String TNM_R_S = "21983-2";
   private static final String TNM_M_S = "42030-7";
 
+  private static final String VALUE = "value.coding.code";
+  private static final String CPU_VALUE = "extension('" + CPU_PRAEFIX_URL + "').value.coding.code";
+
+  private static final FusedExtractor COMPONENTS = componentsDefinition().compile();
+
   private final FhirPathR4 fhirPathEngine;
+  private final Map<Observation, Container> containers = new IdentityHashMap<>();
 
   /**
    * Creates a new TnmMapping.
@@ -49,13 +67,29 @@ public class TnmMapping {
     this.fhirPathEngine = Objects.requireNonNull(fhirPathEngine);
   }
 
+  private static FusedExtractor.Definition componentsDefinition() {
+    var definition = FusedExtractor.over("Observation.component", "code.coding.code");
+    for (var code : List.of(TNM_T_C, TNM_T_P, TNM_N_C, TNM_N_P, TNM_M_C, TNM_M_P)) {
+      definition = definition.field(cpuField(code), code, CPU_VALUE);
+    }
+    for (var code : List.of(TNM_T_C, TNM_T_P, TNM_N_C, TNM_N_P, TNM_M_C, TNM_M_P, TNM_Y_S,
+        TNM_R_S, TNM_M_S)) {
+      definition = definition.field(code, code, VALUE);
+    }
+    return definition;
+  }
+
   /**
    * Maps FHIR TNM Observation to MDS TNM container.
    *
    * @param tnm the FHIR TNM Observation
-   * @return the MDS TNM container
+   * @return the MDS TNM container which is the same for the same Observation
    */
   public Container map(Observation tnm) {
+    return containers.computeIfAbsent(tnm, this::mapObservation);
+  }
+
+  private Container mapObservation(Observation tnm) {
     var builder = new ContainerBuilder(fhirPathEngine, tnm, "TNM");
 
     builder.addAttributeOptional("Observation.effective", DateTimeType.class,
@@ -67,38 +101,40 @@ public class TnmMapping {
     builder.addAttribute("Observation.value.coding.code", CodeType.class,
         "urn:dktk:dataelement:89:1", PrimitiveType::getValue);
 
+    var values = COMPONENTS.extract(fhirPathEngine, tnm);
+
     // TNM-T
     var codeT = getTnmCode(tnm, TNM_T_C, TNM_T_P);
-    builder.addAttribute(componentCpuExtensionValuePath(codeT), CodeType.class,
-        "urn:dktk:dataelement:78:1", PrimitiveType::getValue);
-    builder.addAttribute(componentValuePath(codeT), CodeType.class,
-        "urn:dktk:dataelement:100:1", PrimitiveType::getValue);
+    builder.addAttribute(values, cpuField(codeT), CodeType.class, "urn:dktk:dataelement:78:1",
+        PrimitiveType::getValue);
+    builder.addAttribute(values, codeT, CodeType.class, "urn:dktk:dataelement:100:1",
+        PrimitiveType::getValue);
 
     // TNM-N
     var codeN = getTnmCode(tnm, TNM_N_C, TNM_N_P);
-    builder.addAttribute(componentCpuExtensionValuePath(codeN), CodeType.class,
-        "urn:dktk:dataelement:79:1", PrimitiveType::getValue);
-    builder.addAttribute(componentValuePath(codeN), CodeType.class,
-        "urn:dktk:dataelement:101:1", PrimitiveType::getValue);
+    builder.addAttribute(values, cpuField(codeN), CodeType.class, "urn:dktk:dataelement:79:1",
+        PrimitiveType::getValue);
+    builder.addAttribute(values, codeN, CodeType.class, "urn:dktk:dataelement:101:1",
+        PrimitiveType::getValue);
 
     // TNM-M
     var codeM = getTnmCode(tnm, TNM_M_C, TNM_M_P);
-    builder.addAttribute(componentCpuExtensionValuePath(codeM), CodeType.class,
-        "urn:dktk:dataelement:80:1", PrimitiveType::getValue);
-    builder.addAttribute(componentValuePath(codeM), CodeType.class,
-        "urn:dktk:dataelement:99:1", PrimitiveType::getValue);
+    builder.addAttribute(values, cpuField(codeM), CodeType.class, "urn:dktk:dataelement:80:1",
+        PrimitiveType::getValue);
+    builder.addAttribute(values, codeM, CodeType.class, "urn:dktk:dataelement:99:1",
+        PrimitiveType::getValue);
 
     // TNM-y-Symbol
-    builder.addAttribute(componentValuePath(TNM_Y_S), CodeType.class,
-        "urn:dktk:dataelement:82:1", PrimitiveType::getValue);
+    builder.addAttribute(values, TNM_Y_S, CodeType.class, "urn:dktk:dataelement:82:1",
+        PrimitiveType::getValue);
 
     // TNM-r-Symbol
-    builder.addAttribute(componentValuePath(TNM_R_S), CodeType.class,
-        "urn:dktk:dataelement:81:1", PrimitiveType::getValue);
+    builder.addAttribute(values, TNM_R_S, CodeType.class, "urn:dktk:dataelement:81:1",
+        PrimitiveType::getValue);
 
     // TNM-m-Symbol
-    builder.addAttribute(componentValuePath(TNM_M_S), CodeType.class,
-        "urn:dktk:dataelement:10:2", PrimitiveType::getValue);
+    builder.addAttribute(values, TNM_M_S, CodeType.class, "urn:dktk:dataelement:10:2",
+        PrimitiveType::getValue);
 
     return builder.build();
   }
@@ -117,15 +153,7 @@ public class TnmMapping {
         .map(CodeType::getCode);
   }
 
-  private static String componentValuePath(String code) {
-    return componentPath(code) + ".value.coding.code";
-  }
-
-  private static String componentCpuExtensionValuePath(String code) {
-    return componentPath(code) + ".extension('" + CPU_PRAEFIX_URL + "').value.coding.code";
-  }
-
-  private static String componentPath(String code) {
-    return "Observation.component.where(code.coding.code = '" + code + "')";
+  private static String cpuField(String code) {
+    return code + ":cpu";
   }
 }
@@ -16,6 +16,7 @@ import org.hl7.fhir.r4.model.PrimitiveType;
 public class Util {
 
   private static final ObjectFactory objectFactory = new ObjectFactory();
+  private static final ValueInterner values = new ValueInterner(4096, 64);
 
   private Util() {
   }
@@ -23,6 +24,9 @@ public class Util {
   /**
    * Creates an attribute.
    *
+   * <p>The MDR key is used as is and should be a constant. The value string is shared with other
+   * attributes of the same short value.
+   *
    * @param mdrKey the MDR URN
    * @param value  the value
    * @return the attribute
@@ -30,7 +34,7 @@ public class Util {
   public static Attribute createAttribute(String mdrKey, String value) {
     var attribute = objectFactory.createAttribute();
     attribute.setMdrKey(mdrKey);
-    attribute.setValue(objectFactory.createValue(value));
+    attribute.setValue(objectFactory.createValue(values.intern(value)));
     return attribute;
   }
 
@@ -47,10 +51,15 @@ public class Util {
     }
   };
 
+  /**
+   * Parses the date part of a FHIR date or dateTime given as string. Returns {@link
+   * Optional#empty() empty} if the string is {@code null} or has no complete date.
+   */
+  public static final Function<String, Optional<LocalDate>> LOCAL_DATE_FROM_STRING = s ->
+      s == null || s.length() < 10 ? Optional.empty() : PARSE_LOCAL_DATE.apply(s.substring(0, 10));
+
   public static final Function<PrimitiveType<?>, Optional<LocalDate>> LOCAL_DATE = dateTime ->
-      dateTime.getValueAsString() == null || dateTime.getValueAsString().length() < 10
-          ? Optional.empty()
-          : PARSE_LOCAL_DATE.apply(dateTime.getValueAsString().substring(0, 10));
+      LOCAL_DATE_FROM_STRING.apply(dateTime.getValueAsString());
 
   /**
    * Lifts {@code f} into the Optional monad.
@@ -72,4 +81,7 @@ public class Util {
 
   public static final Function<PrimitiveType<?>, Optional<String>> DATE_STRING =
       lift(FORMAT_LOCAL_DATE).compose(LOCAL_DATE);
+
+  public static final Function<String, Optional<String>> DATE_STRING_FROM_STRING =
+      lift(FORMAT_LOCAL_DATE).compose(LOCAL_DATE_FROM_STRING);
 }
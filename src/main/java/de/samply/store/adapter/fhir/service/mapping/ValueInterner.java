@@ -0,0 +1,56 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded table of attribute value strings shared between all attributes with the same value.
+ *
+ * <p>Most attribute values of a page repeat, like {@code true}, gender codes, ICD-O versions and
+ * dates. Instead of holding its own string per attribute, attributes with the same value get the
+ * same string. That matters most for results which are kept in memory. Only the immutable strings
+ * are shared, every attribute still gets its own value element.
+ *
+ * <p>The table is direct-mapped: every value has exactly one slot, and a different value hashing
+ * to the same slot replaces it. That keeps the table bounded and lookups lock-free, while values
+ * occurring often stay in their slot. Values longer than {@code maxLength} are rarely shared and
+ * aren't interned.
+ */
+final class ValueInterner {
+
+  private final AtomicReferenceArray<String> table;
+  private final int mask;
+  private final int maxLength;
+
+  /**
+   * Creates a new {@code ValueInterner}.
+   *
+   * @param capacity  the number of slots, rounded up to a power of two
+   * @param maxLength the maximum length of values to intern
+   */
+  ValueInterner(int capacity, int maxLength) {
+    var size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.table = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Returns a string equal to {@code value}, which is shared with other callers for short values.
+   *
+   * @param value the value
+   * @return a string equal to {@code value}
+   */
+  String intern(String value) {
+    if (value == null || value.length() > maxLength) {
+      return value;
+    }
+    var hash = value.hashCode();
+    var slot = (hash ^ (hash >>> 16)) & mask;
+    var interned = table.get(slot);
+    if (value.equals(interned)) {
+      return interned;
+    }
+    table.set(slot, value);
+    return value;
+  }
+}
@@ -0,0 +1,83 @@
+package de.samply.store.adapter.fhir.api;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import de.samply.share.model.ccp.Container;
+import de.samply.share.model.ccp.Patient;
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.share.model.common.QueryResultStatistic;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
+import de.samply.store.adapter.fhir.service.mapping.Util;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+class MeteredJsonMessageConverterTest {
+
+  @Test
+  void canWrite() {
+    var converter = new MeteredJsonMessageConverter(
+        new PipelineMetrics(new SimpleMeterRegistry()), new ResultTimeline(10, 10));
+
+    assertTrue(converter.canWrite(QueryResult.class, APPLICATION_JSON));
+    assertTrue(converter.canWrite(QueryResultStatistic.class, APPLICATION_JSON));
+    assertFalse(converter.canWrite(String.class, APPLICATION_JSON));
+    assertFalse(converter.canRead(QueryResult.class, APPLICATION_JSON));
+  }
+
+  @Test
+  void write_statistic() throws Exception {
+    var meterRegistry = new SimpleMeterRegistry();
+    var converter = new MeteredJsonMessageConverter(new PipelineMetrics(meterRegistry),
+        new ResultTimeline(10, 10));
+    var stats = new QueryResultStatistic();
+    stats.setRequestId("id-133911");
+    stats.setTotalSize(42);
+    stats.setNumberOfPages(3);
+    var message = new MockHttpOutputMessage();
+
+    converter.write(stats, APPLICATION_JSON, message);
+
+    assertEquals("{\"requestId\":\"id-133911\",\"totalSize\":42,\"numberOfPages\":3}",
+        message.getBodyAsString(UTF_8));
+    assertEquals(1, meterRegistry.get("store.pipeline.stage").tag("stage", "serialize").timer()
+        .count());
+    assertEquals(message.getBodyAsBytes().length,
+        meterRegistry.get("api.response.size").summary().totalAmount());
+  }
+
+  @Test
+  void write_queryResult() throws Exception {
+    var timeline = new ResultTimeline(10, 10);
+    var converter = new MeteredJsonMessageConverter(
+        new PipelineMetrics(new SimpleMeterRegistry()), timeline);
+    var container = new Container();
+    container.setId("Condition-0");
+    container.setDesignation("Diagnosis");
+    container.getAttribute().add(Util.createAttribute("urn:dktk:dataelement:29:2", "C61"));
+    var patient = new Patient();
+    patient.setId("0");
+    patient.getAttribute().add(Util.createAttribute("urn:dktk:dataelement:1:3", "M\""));
+    patient.getContainer().add(container);
+    var queryResult = new QueryResult();
+    queryResult.setId("id-140512");
+    queryResult.getPatient().add(patient);
+    var message = new MockHttpOutputMessage();
+
+    converter.write(queryResult, APPLICATION_JSON, message);
+
+    assertEquals("{\"id\":\"id-140512\",\"patient\":[{\"id\":\"0\",\"attribute\":[{\"mdrKey\":"
+            + "\"urn:dktk:dataelement:1:3\",\"value\":\"M\\\"\"}],\"container\":[{\"id\":"
+            + "\"Condition-0\",\"designation\":\"Diagnosis\",\"attribute\":[{\"mdrKey\":"
+            + "\"urn:dktk:dataelement:29:2\",\"value\":\"C61\"}]}]}]}",
+        message.getBodyAsString(UTF_8));
+    var events = timeline.get("id-140512").orElseThrow();
+    assertEquals("serialize", events.get(0).stage());
+    assertEquals(message.getBodyAsBytes().length, events.get(0).size());
+  }
+}
@@ -0,0 +1,51 @@
+package de.samply.store.adapter.fhir.api;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.http.MediaType.APPLICATION_XML;
+
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.share.model.common.QueryResultStatistic;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+class MeteredXmlMessageConverterTest {
+
+  @Test
+  void write() throws Exception {
+    var meterRegistry = new SimpleMeterRegistry();
+    var converter = new MeteredXmlMessageConverter(new PipelineMetrics(meterRegistry),
+        new ResultTimeline(10, 10));
+    var stats = new QueryResultStatistic();
+    stats.setRequestId("id-133911");
+    var message = new MockHttpOutputMessage();
+
+    converter.write(stats, APPLICATION_XML, message);
+
+    assertTrue(message.getBodyAsString(UTF_8).contains("id-133911"));
+    assertEquals(1, meterRegistry.get("store.pipeline.stage").tag("stage", "serialize").timer()
+        .count());
+    assertEquals(message.getBodyAsBytes().length,
+        meterRegistry.get("api.response.size").summary().totalAmount());
+  }
+
+  @Test
+  void write_queryResultIsRecordedInTimeline() throws Exception {
+    var timeline = new ResultTimeline(10, 10);
+    var converter = new MeteredXmlMessageConverter(new PipelineMetrics(new SimpleMeterRegistry()),
+        timeline);
+    var queryResult = new QueryResult();
+    queryResult.setId("id-140512");
+    var message = new MockHttpOutputMessage();
+
+    converter.write(queryResult, APPLICATION_XML, message);
+
+    var events = timeline.get("id-140512").orElseThrow();
+    assertEquals("serialize", events.get(0).stage());
+    assertEquals(message.getBodyAsBytes().length, events.get(0).size());
+  }
+}
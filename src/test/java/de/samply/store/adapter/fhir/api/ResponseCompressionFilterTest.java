@@ -0,0 +1,168 @@
+package de.samply.store.adapter.fhir.api;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.DispatcherType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+class ResponseCompressionFilterTest {
+
+  private static final String RESULT_URI = "/rest/teiler/requests/id-113125/result";
+  private static final byte[] BODY = "<QueryResult></QueryResult>".repeat(100).getBytes(UTF_8);
+
+  private SimpleMeterRegistry meterRegistry;
+  private ResponseCompressionFilter filter;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    filter = new ResponseCompressionFilter(meterRegistry, true);
+  }
+
+  @Test
+  void negotiateEncoding() {
+    assertEquals(Optional.empty(), filter.negotiateEncoding(null));
+    assertEquals(Optional.empty(), filter.negotiateEncoding("identity"));
+    assertEquals(Optional.of("gzip"), filter.negotiateEncoding("gzip"));
+    assertEquals(Optional.of("gzip"), filter.negotiateEncoding("deflate, gzip;q=0.5"));
+    assertEquals(Optional.of("deflate"), filter.negotiateEncoding("deflate, gzip;q=0"));
+    assertEquals(Optional.of("gzip"), filter.negotiateEncoding("*"));
+  }
+
+  @Test
+  void negotiateEncoding_deflateDisabled() {
+    filter = new ResponseCompressionFilter(meterRegistry, false);
+
+    assertEquals(Optional.empty(), filter.negotiateEncoding("deflate"));
+  }
+
+  @Test
+  void doFilter_gzip() throws Exception {
+    var request = new MockHttpServletRequest("GET", RESULT_URI);
+    request.addHeader("Accept-Encoding", "gzip");
+    var response = new MockHttpServletResponse();
+
+    filter.doFilter(request, response, new MockFilterChain(new BodyServlet()));
+
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+    var body = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))
+        .readAllBytes();
+    assertArrayEquals(BODY, body);
+    assertEquals(BODY.length, meterRegistry.get(ResponseCompressionFilter.UNCOMPRESSED_METRIC)
+        .tag("encoding", "gzip").summary().totalAmount());
+    assertEquals(response.getContentAsByteArray().length,
+        meterRegistry.get(ResponseCompressionFilter.COMPRESSED_METRIC)
+            .tag("encoding", "gzip").summary().totalAmount());
+  }
+
+  @Test
+  void doFilter_deflate() throws Exception {
+    var request = new MockHttpServletRequest("GET", RESULT_URI);
+    request.addHeader("Accept-Encoding", "deflate");
+    var response = new MockHttpServletResponse();
+
+    filter.doFilter(request, response, new MockFilterChain(new BodyServlet()));
+
+    assertEquals("deflate", response.getHeader("Content-Encoding"));
+    var body = new InflaterInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))
+        .readAllBytes();
+    assertArrayEquals(BODY, body);
+  }
+
+  @Test
+  void doFilter_gzipAsync() throws Exception {
+    var request = new MockHttpServletRequest("GET", RESULT_URI);
+    request.setAsyncSupported(true);
+    request.addHeader("Accept-Encoding", "gzip");
+    var response = new MockHttpServletResponse();
+
+    filter.doFilter(request, response, new MockFilterChain(new AsyncServlet()));
+    assertEquals(0, response.getContentAsByteArray().length);
+
+    var asyncContext = (MockAsyncContext) request.getAsyncContext();
+    request.setAsyncStarted(false);
+    request.setDispatcherType(DispatcherType.ASYNC);
+    filter.doFilter(request, asyncContext.getResponse(), new MockFilterChain(new BodyServlet()));
+
+    var body = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))
+        .readAllBytes();
+    assertArrayEquals(BODY, body);
+  }
+
+  @Test
+  void doFilter_notAccepted() throws Exception {
+    var request = new MockHttpServletRequest("GET", RESULT_URI);
+    var response = new MockHttpServletResponse();
+
+    filter.doFilter(request, response, new MockFilterChain(new BodyServlet()));
+
+    assertNull(response.getHeader("Content-Encoding"));
+    assertArrayEquals(BODY, response.getContentAsByteArray());
+  }
+
+  @Test
+  void doFilter_exportIsCompressedAsFlushed() throws Exception {
+    var request = new MockHttpServletRequest("GET", "/rest/teiler/requests/id-113125/export");
+    request.addHeader("Accept-Encoding", "gzip");
+    var response = new MockHttpServletResponse();
+    var flushed = new byte[1][];
+
+    filter.doFilter(request, response, new MockFilterChain(new javax.servlet.http.HttpServlet() {
+      @Override
+      protected void service(javax.servlet.http.HttpServletRequest req,
+          javax.servlet.http.HttpServletResponse resp) throws java.io.IOException {
+        resp.getOutputStream().write(BODY);
+        resp.getOutputStream().flush();
+        flushed[0] = response.getContentAsByteArray();
+      }
+    }));
+
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+    var body = new GZIPInputStream(new ByteArrayInputStream(flushed[0])).readNBytes(BODY.length);
+    assertArrayEquals(BODY, body);
+  }
+
+  @Test
+  void doFilter_otherPath() throws Exception {
+    var request = new MockHttpServletRequest("GET", "/rest/teiler/requests/id-113125/stats");
+    request.addHeader("Accept-Encoding", "gzip");
+    var response = new MockHttpServletResponse();
+
+    filter.doFilter(request, response, new MockFilterChain(new BodyServlet()));
+
+    assertNull(response.getHeader("Content-Encoding"));
+    assertArrayEquals(BODY, response.getContentAsByteArray());
+  }
+
+  private static class AsyncServlet extends javax.servlet.http.HttpServlet {
+
+    @Override
+    protected void service(javax.servlet.http.HttpServletRequest req,
+        javax.servlet.http.HttpServletResponse resp) {
+      req.startAsync(req, resp);
+    }
+  }
+
+  private static class BodyServlet extends javax.servlet.http.HttpServlet {
+
+    @Override
+    protected void service(javax.servlet.http.HttpServletRequest req,
+        javax.servlet.http.HttpServletResponse resp) throws java.io.IOException {
+      resp.setContentLength(BODY.length);
+      resp.getOutputStream().write(BODY);
+    }
+  }
+}
@@ -1,25 +1,49 @@
 package de.samply.store.adapter.fhir.api;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.CREATED;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 
 import de.samply.share.model.ccp.QueryResult;
 import de.samply.store.adapter.fhir.model.Result;
+import de.samply.store.adapter.fhir.model.RootNode;
+import de.samply.store.adapter.fhir.model.RootNodeBuilder;
+import de.samply.store.adapter.fhir.model.lean.LeanBundle;
+import de.samply.store.adapter.fhir.service.BatchBuffer;
 import de.samply.store.adapter.fhir.service.FhirDownloadService;
+import de.samply.store.adapter.fhir.service.LeanPageService;
 import de.samply.store.adapter.fhir.service.MappingService;
+import de.samply.store.adapter.fhir.service.PageSizeEstimator;
+import de.samply.store.adapter.fhir.service.PipelineMetrics;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Stage;
 import de.samply.store.adapter.fhir.service.ResultStore;
+import de.samply.store.adapter.fhir.service.ResultTimeline;
 import de.samply.store.adapter.fhir.util.Either;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.server.ResponseStatusException;
 
 @ExtendWith(MockitoExtension.class)
@@ -28,11 +52,14 @@ class StoreRestControllerTest {
   public static final String RESULT_ID = "id-142731";
   public static final int TOTAL = 143513;
   public static final int PAGE_SIZE = 50;
+  public static final Result RESULT = new Result(RESULT_ID, TOTAL, PAGE_SIZE, PAGE_SIZE);
+  public static final int MAX_PAGE_SIZE = 200;
   public static final String VERSION = "0.1.0";
   public static final String BASE_URL = "http://localhost:8080";
   public static final String PAGE_0_URL = "url-143738";
   public static final String PAGE_1_URL = "url-181450";
   public static final String PAGE_2_URL = "url-085531";
+  public static final Duration TIMEOUT = Duration.ofSeconds(10);
 
   @Mock
   private FhirDownloadService downloadService;
@@ -40,15 +67,22 @@ class StoreRestControllerTest {
   @Mock
   private MappingService mappingService;
 
+  @Mock
+  private LeanPageService leanPageService;
+
   @Mock
   private ResultStore resultStore;
 
+  private final BatchBuffer batchBuffer = new BatchBuffer(4, Duration.ofMinutes(5));
+  private final PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+  private final ResultTimeline timeline = new ResultTimeline(10, 10);
   private StoreRestController controller;
 
   @BeforeEach
   void setUp() {
-    controller = new StoreRestController(downloadService, mappingService, resultStore, PAGE_SIZE,
-        VERSION, BASE_URL);
+    controller = new StoreRestController(downloadService, mappingService, leanPageService,
+        resultStore, new PageSizeEstimator(0, 1, PAGE_SIZE), batchBuffer, metrics, timeline, 0,
+        MAX_PAGE_SIZE, VERSION, BASE_URL, Runnable::run, TIMEOUT, TIMEOUT, 1);
   }
 
   @Test
@@ -61,18 +95,67 @@ class StoreRestControllerTest {
   @Test
   void createRequest() {
     var page0 = new Bundle();
-    when(downloadService.runQuery()).thenReturn(Either.right(page0));
-    when(resultStore.create(page0)).thenReturn(Either.right(new Result(RESULT_ID, TOTAL)));
+    when(downloadService.runQuery(PAGE_SIZE)).thenReturn(Either.right(page0));
+    when(resultStore.create(page0, PAGE_SIZE, PAGE_SIZE)).thenReturn(Either.right(RESULT));
 
-    var responseEntity = controller.createRequest(true, "<foo></foo>");
+    var responseEntity = (ResponseEntity<?>) controller.createRequest(true, null, "<foo></foo>")
+        .getResult();
 
     assertEquals(BASE_URL + "/rest/teiler/requests/" + RESULT_ID,
         responseEntity.getHeaders().getFirst("location"));
   }
 
+  @Test
+  void createRequest_withPageSize() {
+    var page0 = new Bundle();
+    when(downloadService.runQuery(20)).thenReturn(Either.right(page0));
+    when(resultStore.create(page0, 20, 20)).thenReturn(Either.right(RESULT));
+
+    var responseEntity = (ResponseEntity<?>) controller.createRequest(true, 20, "<foo></foo>")
+        .getResult();
+
+    assertEquals(CREATED, responseEntity.getStatusCode());
+  }
+
+  @Test
+  void createRequest_withPageSizeAboveMax() {
+    var page0 = new Bundle();
+    when(downloadService.runQuery(MAX_PAGE_SIZE)).thenReturn(Either.right(page0));
+    when(resultStore.create(page0, MAX_PAGE_SIZE, MAX_PAGE_SIZE))
+        .thenReturn(Either.right(RESULT));
+
+    var responseEntity = (ResponseEntity<?>) controller.createRequest(true, 10000, "<foo></foo>")
+        .getResult();
+
+    assertEquals(CREATED, responseEntity.getStatusCode());
+  }
+
+  @Test
+  void createRequest_withInvalidPageSize() {
+    var exception = assertThrows(ResponseStatusException.class,
+        () -> controller.createRequest(true, 0, "<foo></foo>"));
+
+    assertEquals(BAD_REQUEST, exception.getStatus());
+  }
+
+  @Test
+  void createRequest_withBatchSize() {
+    controller = new StoreRestController(downloadService, mappingService, leanPageService,
+        resultStore, new PageSizeEstimator(0, 1, PAGE_SIZE), batchBuffer, metrics, timeline, 120,
+        MAX_PAGE_SIZE, VERSION, BASE_URL, Runnable::run, TIMEOUT, TIMEOUT, 1);
+    var page0 = new Bundle();
+    when(downloadService.runQuery(100)).thenReturn(Either.right(page0));
+    when(resultStore.create(page0, PAGE_SIZE, 100)).thenReturn(Either.right(RESULT));
+
+    var responseEntity = (ResponseEntity<?>) controller.createRequest(true, null, "<foo></foo>")
+        .getResult();
+
+    assertEquals(CREATED, responseEntity.getStatusCode());
+  }
+
   @Test
   void getStats() {
-    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, TOTAL)));
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
 
     var stats = controller.getStats(RESULT_ID);
 
@@ -80,6 +163,15 @@ class StoreRestControllerTest {
     assertEquals((int) Math.ceil((double) TOTAL / PAGE_SIZE), stats.getNumberOfPages());
   }
 
+  @Test
+  void getStats_usesPageSizeOfResult() {
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, 95, 10, 10)));
+
+    var stats = controller.getStats(RESULT_ID);
+
+    assertEquals(10, stats.getNumberOfPages());
+  }
+
   @Test
   void getStats_NotFound() {
     when(resultStore.get(RESULT_ID)).thenReturn(Optional.empty());
@@ -92,21 +184,63 @@ class StoreRestControllerTest {
 
   @Test
   void getResult_Page0IsReturned() {
-    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, TOTAL)));
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
     when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
     var page0 = new Bundle();
     when(downloadService.fetchPage(PAGE_0_URL)).thenReturn(Either.right(page0));
     var expectedResult = new QueryResult();
     when(mappingService.map(page0)).thenReturn(expectedResult);
 
-    var result = controller.getResult(RESULT_ID, 0);
+    var result = controller.getResult(RESULT_ID, 0).getResult();
 
     assertSame(expectedResult, result);
   }
 
+  @Test
+  void getResult_lean() {
+    when(leanPageService.enabled()).thenReturn(true);
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
+    when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
+    var page0 = new LeanBundle(TOTAL, PAGE_1_URL, 0, List.of());
+    when(leanPageService.fetchPage(PAGE_0_URL)).thenReturn(Either.right(page0));
+    var expectedResult = new QueryResult();
+    when(leanPageService.map(page0)).thenReturn(expectedResult);
+
+    var result = controller.getResult(RESULT_ID, 0).getResult();
+
+    assertSame(expectedResult, result);
+    verify(resultStore).savePageUrl(RESULT_ID, 1, PAGE_1_URL);
+  }
+
+  @Test
+  void getTimeline_containsStagesOfPage() {
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
+    when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
+    var page0 = new Bundle();
+    page0.addEntry().setResource(new Patient());
+    when(downloadService.fetchPage(PAGE_0_URL)).thenAnswer(invocation ->
+        metrics.time(Stage.FETCH_PAGE, () -> Either.right(page0)));
+    when(mappingService.map(page0)).thenReturn(new QueryResult());
+
+    controller.getResult(RESULT_ID, 0);
+
+    var events = controller.getTimeline(RESULT_ID);
+    assertEquals(1, events.size());
+    assertEquals("fetchPage", events.get(0).stage());
+    assertEquals(0, events.get(0).page());
+  }
+
+  @Test
+  void getTimeline_NotFound() {
+    var exception = assertThrows(RequestNotFoundException.class,
+        () -> controller.getTimeline(RESULT_ID));
+
+    assertEquals(RESULT_ID, exception.getId());
+  }
+
   @Test
   void getResult_Page1UrlIsSaved() {
-    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, TOTAL)));
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
     when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
     var page0 = new Bundle();
     page0.getLinkOrCreate("next").setUrl(PAGE_1_URL);
@@ -120,21 +254,21 @@ class StoreRestControllerTest {
 
   @Test
   void getResult_Page1IsReturned() {
-    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, TOTAL)));
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
     when(resultStore.getPageUrl(RESULT_ID, 1)).thenReturn(Optional.of(PAGE_1_URL));
     var page1 = new Bundle();
     when(downloadService.fetchPage(PAGE_1_URL)).thenReturn(Either.right(page1));
     var expectedResult = new QueryResult();
     when(mappingService.map(page1)).thenReturn(expectedResult);
 
-    var result = controller.getResult(RESULT_ID, 1);
+    var result = controller.getResult(RESULT_ID, 1).getResult();
 
     assertSame(expectedResult, result);
   }
 
   @Test
   void getResult_Page2IsReturned() {
-    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, TOTAL)));
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
     //noinspection unchecked
     when(resultStore.getPageUrl(RESULT_ID, 2)).thenReturn(Optional.empty(),
         Optional.of(PAGE_2_URL));
@@ -148,33 +282,144 @@ class StoreRestControllerTest {
     var expectedResult = new QueryResult();
     when(mappingService.map(page2)).thenReturn(expectedResult);
 
-    var result = controller.getResult(RESULT_ID, 2);
+    var result = controller.getResult(RESULT_ID, 2).getResult();
 
     assertSame(expectedResult, result);
   }
 
+  @Test
+  void getResult_slicesBufferedBatch() {
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, 3, 2, 4)));
+    when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
+    var batch = new Bundle();
+    for (int i = 0; i < 3; i++) {
+      batch.addEntry().setResource(new Patient().setId("Patient/" + i));
+    }
+    when(downloadService.fetchPage(PAGE_0_URL)).thenReturn(Either.right(batch));
+    when(mappingService.buildRootNode(batch)).thenReturn(RootNodeBuilder.fromBundle(batch));
+    when(mappingService.map(any(RootNode.class))).thenReturn(new QueryResult());
+
+    controller.getResult(RESULT_ID, 0);
+    controller.getResult(RESULT_ID, 1);
+
+    verify(downloadService, times(1)).fetchPage(PAGE_0_URL);
+    var captor = ArgumentCaptor.forClass(RootNode.class);
+    verify(mappingService, times(2)).map(captor.capture());
+    assertEquals(2, captor.getAllValues().get(0).patients().size());
+    assertEquals(1, captor.getAllValues().get(1).patients().size());
+  }
+
+  @Test
+  void slice_beyondBatch() {
+    var batch = new RootNode(List.of(), Map.of());
+
+    assertEquals(List.of(), StoreRestController.slice(batch, 10, 1).patients());
+  }
+
   @Test
   void getResult_NotFound() {
     when(resultStore.get(RESULT_ID)).thenReturn(Optional.empty());
 
-    var exception = assertThrows(RequestNotFoundException.class,
-        () -> controller.getResult(RESULT_ID, 0));
+    var exception = (RequestNotFoundException) controller.getResult(RESULT_ID, 0).getResult();
 
     assertEquals(RESULT_ID, exception.getId());
   }
 
   @Test
   void getResult_MissingPageUrl() {
-    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, TOTAL)));
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
     when(resultStore.getPageUrl(RESULT_ID, 1)).thenReturn(Optional.empty());
     when(resultStore.getMaxPageNum(RESULT_ID)).thenReturn(Optional.of(0));
     when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
     when(downloadService.fetchPage(PAGE_0_URL)).thenReturn(Either.right(new Bundle()));
 
-    var exception = assertThrows(MissingPageUrlException.class,
-        () -> controller.getResult(RESULT_ID, 1));
+    var exception = (MissingPageUrlException) controller.getResult(RESULT_ID, 1).getResult();
 
     assertEquals(RESULT_ID, exception.getId());
     assertEquals(1, exception.getPageNum());
   }
+
+  @Test
+  void getResult_ioExecutorSaturated() {
+    controller = new StoreRestController(downloadService, mappingService, leanPageService,
+        resultStore, new PageSizeEstimator(0, 1, PAGE_SIZE), batchBuffer, metrics, timeline, 0,
+        MAX_PAGE_SIZE, VERSION, BASE_URL, command -> {
+          throw new RejectedExecutionException();
+        }, TIMEOUT, TIMEOUT, 1);
+
+    var exception = (ResponseStatusException) controller.getResult(RESULT_ID, 0).getResult();
+
+    assertEquals(SERVICE_UNAVAILABLE, exception.getStatus());
+  }
+
+  @Test
+  void export() throws Exception {
+    var result = new Result(RESULT_ID, 3, 2, 2);
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(result));
+    when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
+    when(resultStore.getPageUrl(RESULT_ID, 1)).thenReturn(Optional.of(PAGE_1_URL));
+    var page0 = new Bundle();
+    page0.addLink().setRelation("next").setUrl(PAGE_1_URL);
+    var page1 = new Bundle();
+    when(downloadService.fetchPage(PAGE_0_URL)).thenReturn(Either.right(page0));
+    when(downloadService.fetchPage(PAGE_1_URL)).thenReturn(Either.right(page1));
+    when(mappingService.map(page0)).thenReturn(queryResult("0", "1"));
+    when(mappingService.map(page1)).thenReturn(queryResult("2"));
+    var out = new ByteArrayOutputStream();
+
+    controller.export(RESULT_ID).getBody().writeTo(out);
+
+    assertEquals("{\"id\":\"0\"}\n{\"id\":\"1\"}\n{\"id\":\"2\"}\n", out.toString(UTF_8));
+    verify(resultStore).savePageUrl(RESULT_ID, 1, PAGE_1_URL);
+    assertEquals(List.of("serialize:0", "serialize:1"), controller.getTimeline(RESULT_ID).stream()
+        .map(event -> event.stage() + ":" + event.page()).toList());
+  }
+
+  @Test
+  void export_NotFound() {
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.empty());
+
+    assertThrows(RequestNotFoundException.class, () -> controller.export(RESULT_ID));
+  }
+
+  @Test
+  void export_missingPage() throws Exception {
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(new Result(RESULT_ID, 3, 2, 2)));
+    when(resultStore.getPageUrl(RESULT_ID, 0)).thenReturn(Optional.of(PAGE_0_URL));
+    when(downloadService.fetchPage(PAGE_0_URL)).thenReturn(Either.right(new Bundle()));
+    when(mappingService.map(any(Bundle.class))).thenReturn(queryResult("0", "1"));
+    var body = controller.export(RESULT_ID).getBody();
+    var out = new ByteArrayOutputStream();
+
+    var exception = assertThrows(MissingPageUrlException.class, () -> body.writeTo(out));
+
+    assertEquals(1, exception.getPageNum());
+    assertEquals("{\"id\":\"0\"}\n{\"id\":\"1\"}\n", out.toString(UTF_8));
+  }
+
+  @Test
+  void export_ioExecutorSaturated() {
+    controller = new StoreRestController(downloadService, mappingService, leanPageService,
+        resultStore, new PageSizeEstimator(0, 1, PAGE_SIZE), batchBuffer, metrics, timeline, 0,
+        MAX_PAGE_SIZE, VERSION, BASE_URL, command -> {
+          throw new RejectedExecutionException();
+        }, TIMEOUT, TIMEOUT, 1);
+    when(resultStore.get(RESULT_ID)).thenReturn(Optional.of(RESULT));
+    var body = controller.export(RESULT_ID).getBody();
+
+    var exception = assertThrows(ResponseStatusException.class,
+        () -> body.writeTo(new ByteArrayOutputStream()));
+
+    assertEquals(SERVICE_UNAVAILABLE, exception.getStatus());
+  }
+
+  private static QueryResult queryResult(String... patientIds) {
+    var queryResult = new QueryResult();
+    for (var id : patientIds) {
+      var patient = new de.samply.share.model.ccp.Patient();
+      patient.setId(id);
+      queryResult.getPatient().add(patient);
+    }
+    return queryResult;
+  }
 }
@@ -0,0 +1,47 @@
+package de.samply.store.adapter.fhir.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_XML;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+
+class XmlPreferringContentNegotiationStrategyTest {
+
+  private final XmlPreferringContentNegotiationStrategy strategy =
+      new XmlPreferringContentNegotiationStrategy();
+
+  @ParameterizedTest
+  @CsvSource(delimiter = '|', value = {
+      "application/json, application/xml|application/xml",
+      "application/xml, application/json|application/xml",
+      "application/json, text/xml|text/xml",
+      "application/json, application/xml;q=0.9|application/json",
+      "application/json, */*|application/json",
+      "application/json|application/json",
+  })
+  void resolveMediaTypes_first(String accept, String expected) throws Exception {
+    var request = new MockHttpServletRequest();
+    request.addHeader("Accept", accept);
+
+    var mediaTypes = strategy.resolveMediaTypes(new ServletWebRequest(request));
+
+    assertEquals(MediaType.valueOf(expected), mediaTypes.get(0).removeQualityValue());
+  }
+
+  @Test
+  void resolveMediaTypes_keepsOthers() throws Exception {
+    var request = new MockHttpServletRequest();
+    request.addHeader("Accept", "application/json, application/xml");
+
+    var mediaTypes = strategy.resolveMediaTypes(new ServletWebRequest(request));
+
+    assertEquals(List.of(APPLICATION_XML, APPLICATION_JSON), mediaTypes);
+  }
+}
@@ -0,0 +1,289 @@
+package de.samply.store.adapter.fhir.client;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.store.adapter.fhir.util.Anomaly.Fault;
+import de.samply.store.adapter.fhir.util.Anomaly.NotFound;
+import de.samply.store.adapter.fhir.util.Either;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AsyncFhirClientTest {
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  private final ExecutorService decodeExecutor = Executors.newCachedThreadPool();
+  private HttpServer server;
+  private AsyncFhirClient client;
+  private String baseUrl;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.start();
+    baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    client = new AsyncFhirClient(fhirContext, baseUrl, Duration.ofSeconds(5),
+        Duration.ofSeconds(5), true, decodeExecutor);
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+    decodeExecutor.shutdownNow();
+  }
+
+  @Test
+  void fetchPage() {
+    server.createContext("/fhir/page", exchange -> respond(exchange, 200,
+        new Bundle().setTotal(23), false));
+
+    var result = client.fetchPage(baseUrl + "/page").join();
+
+    assertEquals(23, ((Either.Right<?, Bundle>) result).val().getTotal());
+  }
+
+  @Test
+  void fetchPage_gzip() {
+    server.createContext("/fhir/page", exchange -> respond(exchange, 200,
+        new Bundle().setTotal(23), true));
+
+    var result = client.fetchPage(baseUrl + "/page").join();
+
+    assertEquals(23, ((Either.Right<?, Bundle>) result).val().getTotal());
+  }
+
+  @Test
+  void fetchPage_decodesWhileReceiving() {
+    var firstPartDecoded = new CountDownLatch(1);
+    server.createContext("/fhir/page", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      try (var out = exchange.getResponseBody()) {
+        out.write("first".getBytes(UTF_8));
+        out.flush();
+        // the rest of the body is only sent after the decoder has read the first part
+        if (firstPartDecoded.await(5, TimeUnit.SECONDS)) {
+          out.write("-second".getBytes(UTF_8));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    var result = client.fetchPage(baseUrl + "/page", in -> {
+      var first = new String(in.readNBytes(5), UTF_8);
+      firstPartDecoded.countDown();
+      return first + new String(in.readAllBytes(), UTF_8);
+    }).join();
+
+    assertEquals("first-second", ((Either.Right<?, String>) result).val());
+  }
+
+  @Test
+  void fetchPage_stalledBodyTimesOut() throws InterruptedException {
+    var released = new CountDownLatch(1);
+    var decoderDone = new CountDownLatch(1);
+    server.createContext("/fhir/page", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      try (var out = exchange.getResponseBody()) {
+        out.write("first".getBytes(UTF_8));
+        out.flush();
+        released.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    client = new AsyncFhirClient(fhirContext, baseUrl, Duration.ofSeconds(5),
+        Duration.ofMillis(500), true, decodeExecutor);
+
+    try {
+      var result = client.fetchPage(baseUrl + "/page", in -> {
+        try {
+          return new String(in.readAllBytes(), UTF_8);
+        } finally {
+          decoderDone.countDown();
+        }
+      }).join();
+
+      assertTrue(((Either.Left<?, ?>) result).val() instanceof Fault);
+      assertTrue(decoderDone.await(5, TimeUnit.SECONDS), "the stalled decoder is released");
+    } finally {
+      released.countDown();
+    }
+  }
+
+  @Test
+  void fetchPage_notFound() {
+    server.createContext("/fhir/page", exchange -> respond(exchange, 404, null, false));
+
+    var result = client.fetchPage(baseUrl + "/page").join();
+
+    assertTrue(((Either.Left<?, ?>) result).val() instanceof NotFound);
+  }
+
+  @Test
+  void fetchPage_serverError() {
+    server.createContext("/fhir/page", exchange -> respond(exchange, 500, null, false));
+
+    var result = client.fetchPage(baseUrl + "/page").join();
+
+    assertTrue(((Either.Left<?, ?>) result).val() instanceof Fault);
+  }
+
+  @Test
+  void fetchPage_connectionRefused() {
+    server.stop(0);
+
+    var result = client.fetchPage(baseUrl + "/page").join();
+
+    assertTrue(((Either.Left<?, ?>) result).val() instanceof Fault);
+  }
+
+  @Test
+  void fetchFirstPage() {
+    var query = new AtomicReference<String>();
+    server.createContext("/fhir/Patient", exchange -> {
+      query.set(exchange.getRequestURI().getQuery());
+      respond(exchange, 200, new Bundle(), false);
+    });
+
+    client.fetchFirstPage("0", 50).join();
+
+    assertTrue(query.get().startsWith("_list=0&_revinclude=Observation:patient"));
+    assertTrue(query.get().endsWith("&_count=50"));
+  }
+
+  @Test
+  void fetchPatients() {
+    var query = new AtomicReference<String>();
+    server.createContext("/fhir/Patient", exchange -> {
+      query.set(exchange.getRequestURI().getQuery());
+      respond(exchange, 200, new Bundle(), false);
+    });
+
+    client.fetchPatients(List.of("0", "1")).join();
+
+    assertTrue(query.get().startsWith("_id=0,1&_revinclude=Observation:patient"));
+    assertTrue(query.get().endsWith("&_count=2"));
+  }
+
+  @Test
+  void fetchReferencing_followsNextLinks() {
+    var query = new AtomicReference<String>();
+    server.createContext("/fhir/Condition", exchange -> {
+      query.set(exchange.getRequestURI().getQuery());
+      var page = new Bundle();
+      page.addEntry().setResource(new Condition().setId("0"));
+      page.getLinkOrCreate("next").setUrl(baseUrl + "/page-2");
+      respond(exchange, 200, page, false);
+    });
+    server.createContext("/fhir/page-2", exchange -> {
+      var page = new Bundle();
+      page.addEntry().setResource(new Condition().setId("1"));
+      respond(exchange, 200, page, false);
+    });
+
+    var result = client.fetchReferencing("Condition:patient", List.of("0", "1")).join();
+
+    assertEquals("patient=0,1&_count=1000", query.get());
+    assertEquals(2, ((Either.Right<?, Bundle>) result).val().getEntry().size());
+  }
+
+  @Test
+  void batch() {
+    var request = new AtomicReference<Bundle>();
+    server.createContext("/fhir", exchange -> {
+      request.set(fhirContext.newJsonParser().parseResource(Bundle.class,
+          new String(exchange.getRequestBody().readAllBytes(), UTF_8)));
+      var response = new Bundle().setType(BundleType.BATCHRESPONSE);
+      var found = new Bundle().setTotal(1);
+      response.addEntry().setResource(found).getResponse().setStatus("200 OK");
+      response.addEntry().getResponse().setStatus("404");
+      respond(exchange, 200, response, false);
+    });
+
+    var results = client.batch(List.of("Patient?_id=0", "Patient?_id=1")).join();
+
+    assertEquals(List.of("Patient?_id=0", "Patient?_id=1"),
+        request.get().getEntry().stream().map(e -> e.getRequest().getUrl()).toList());
+    assertEquals(1, ((Either.Right<?, Bundle>) results.get(0)).val().getTotal());
+    assertTrue(((Either.Left<?, ?>) results.get(1)).val() instanceof NotFound);
+  }
+
+  @Test
+  void batch_failed() {
+    server.createContext("/fhir", exchange -> respond(exchange, 500, null, false));
+
+    var results = client.batch(List.of("Patient?_id=0", "Patient?_id=1")).join();
+
+    assertEquals(2, results.size());
+    assertTrue(results.stream().allMatch(r -> ((Either.Left<?, ?>) r).val() instanceof Fault));
+  }
+
+  @Test
+  void batch_wrongNumberOfEntries() {
+    server.createContext("/fhir", exchange -> respond(exchange, 200,
+        new Bundle().setType(BundleType.BATCHRESPONSE), false));
+
+    var results = client.batch(List.of("Patient?_id=0")).join();
+
+    assertTrue(((Either.Left<?, ?>) results.get(0)).val() instanceof Fault);
+  }
+
+  @Test
+  void evaluateMeasure() {
+    var measure = new AtomicReference<String>();
+    server.createContext("/fhir/Measure/$evaluate-measure", exchange -> {
+      var parameters = fhirContext.newJsonParser().parseResource(Parameters.class,
+          new String(exchange.getRequestBody().readAllBytes(), UTF_8));
+      measure.set(((StringType) parameters.getParameter("measure")).getValue());
+      respond(exchange, 200, new MeasureReport(), false);
+    });
+
+    var result = client.evaluateMeasure("uri-094119").join();
+
+    assertTrue(result instanceof Either.Right);
+    assertEquals("uri-094119", measure.get());
+  }
+
+  private static void respond(HttpExchange exchange, int status,
+      org.hl7.fhir.r4.model.Resource resource, boolean gzip) throws IOException {
+    var body = resource == null ? new byte[0]
+        : fhirContext.newJsonParser().encodeResourceToString(resource).getBytes(UTF_8);
+    if (gzip) {
+      var out = new ByteArrayOutputStream();
+      try (var gzipOut = new GZIPOutputStream(out)) {
+        gzipOut.write(body);
+      }
+      body = out.toByteArray();
+      exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+    }
+    exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (var out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package de.samply.store.adapter.fhir.client;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CompressionInterceptorTest {
+
+  private static final byte[] BODY = "{\"resourceType\":\"Bundle\"}".repeat(100).getBytes(UTF_8);
+
+  private SimpleMeterRegistry meterRegistry;
+  private CompressionInterceptor interceptor;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    interceptor = new CompressionInterceptor(meterRegistry);
+  }
+
+  @Test
+  void process_request() {
+    var request = new BasicHttpRequest("GET", "/fhir/Patient");
+
+    interceptor.process(request, new BasicHttpContext());
+
+    assertEquals("gzip, deflate", request.getFirstHeader("Accept-Encoding").getValue());
+  }
+
+  @Test
+  void process_gzipResponse() throws Exception {
+    var compressed = gzip(BODY);
+    var response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    var entity = new ByteArrayEntity(compressed);
+    entity.setContentEncoding("gzip");
+    response.setEntity(entity);
+    response.addHeader("Content-Encoding", "gzip");
+
+    interceptor.process(response, new BasicHttpContext());
+
+    assertFalse(response.containsHeader("Content-Encoding"));
+    try (var in = response.getEntity().getContent()) {
+      assertArrayEquals(BODY, in.readAllBytes());
+    }
+    assertEquals(compressed.length, meterRegistry.get(CompressionInterceptor.COMPRESSED_METRIC)
+        .tag("encoding", "gzip").summary().totalAmount());
+    assertEquals(BODY.length, meterRegistry.get(CompressionInterceptor.UNCOMPRESSED_METRIC)
+        .tag("encoding", "gzip").summary().totalAmount());
+  }
+
+  @Test
+  void process_identityResponse() throws Exception {
+    var response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new ByteArrayEntity(BODY));
+
+    interceptor.process(response, new BasicHttpContext());
+
+    try (var in = response.getEntity().getContent()) {
+      assertArrayEquals(BODY, in.readAllBytes());
+    }
+    assertEquals(BODY.length, meterRegistry.get(CompressionInterceptor.COMPRESSED_METRIC)
+        .tag("encoding", "identity").summary().totalAmount());
+  }
+
+  private static byte[] gzip(byte[] bytes) throws Exception {
+    var out = new ByteArrayOutputStream();
+    try (var gzip = new GZIPOutputStream(out)) {
+      gzip.write(bytes);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,130 @@
+package de.samply.store.adapter.fhir.client;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.samply.store.adapter.fhir.util.Anomaly;
+import de.samply.store.adapter.fhir.util.Anomaly.Fault;
+import de.samply.store.adapter.fhir.util.Anomaly.NotFound;
+import de.samply.store.adapter.fhir.util.Either;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class HedgingPageFetcherTest {
+
+  private static final String PAGE_URL = "url-112810";
+
+  @Mock
+  private AsyncFhirClient client;
+
+  private SimpleMeterRegistry meterRegistry;
+  private HedgingPageFetcher fetcher;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    fetcher = new HedgingPageFetcher(client, meterRegistry, 0.95, Duration.ofMillis(10), 3,
+        Duration.ofMillis(1));
+  }
+
+  @Test
+  void fetchPage() {
+    var bundle = new Bundle();
+    when(client.fetchPage(PAGE_URL)).thenReturn(completedFuture(Either.right(bundle)));
+
+    var result = fetcher.fetchPage(PAGE_URL).join();
+
+    assertEquals(Either.right(bundle), result);
+    verify(client, times(1)).fetchPage(PAGE_URL);
+  }
+
+  @Test
+  void fetchPage_hedgeWins() {
+    var bundle = new Bundle();
+    when(client.fetchPage(PAGE_URL)).thenReturn(new CompletableFuture<>(),
+        completedFuture(Either.right(bundle)));
+
+    var result = fetcher.fetchPage(PAGE_URL).join();
+
+    assertEquals(Either.right(bundle), result);
+    assertEquals(1, meterRegistry.counter(HedgingPageFetcher.HEDGES_FIRED_METRIC).count());
+    assertEquals(1, meterRegistry.counter(HedgingPageFetcher.HEDGES_WON_METRIC).count());
+  }
+
+  @Test
+  void fetchPage_hedgeWinsAndRequestIsCancelled() {
+    var bundle = new Bundle();
+    var request = new CompletableFuture<Either<Anomaly, Bundle>>();
+    when(client.fetchPage(PAGE_URL)).thenReturn(request, completedFuture(Either.right(bundle)));
+
+    fetcher.fetchPage(PAGE_URL).join();
+
+    assertTrue(request.isCancelled());
+    assertEquals(1, meterRegistry.counter(HedgingPageFetcher.HEDGES_WON_METRIC).count());
+  }
+
+  @Test
+  void fetchPage_requestWinsAndHedgeIsCancelled() {
+    var bundle = new Bundle();
+    var request = new CompletableFuture<Either<Anomaly, Bundle>>();
+    var hedge = new CompletableFuture<Either<Anomaly, Bundle>>();
+    when(client.fetchPage(PAGE_URL)).thenReturn(request, hedge);
+
+    var result = fetcher.fetchPage(PAGE_URL);
+    verify(client, timeout(5000).times(2)).fetchPage(PAGE_URL);
+    request.complete(Either.right(bundle));
+
+    assertEquals(Either.right(bundle), result.join());
+    assertTrue(hedge.isCancelled());
+    assertEquals(1, meterRegistry.counter(HedgingPageFetcher.HEDGES_FIRED_METRIC).count());
+    assertEquals(0, meterRegistry.counter(HedgingPageFetcher.HEDGES_WON_METRIC).count());
+  }
+
+  @Test
+  void fetchPage_retriesFault() {
+    var bundle = new Bundle();
+    when(client.fetchPage(PAGE_URL)).thenReturn(
+        completedFuture(Either.left(new Fault("msg-113005"))),
+        completedFuture(Either.right(bundle)));
+
+    var result = fetcher.fetchPage(PAGE_URL).join();
+
+    assertEquals(Either.right(bundle), result);
+    assertEquals(1, meterRegistry.counter(HedgingPageFetcher.RETRIES_METRIC).count());
+  }
+
+  @Test
+  void fetchPage_givesUpAfterMaxAttempts() {
+    when(client.fetchPage(PAGE_URL)).thenReturn(
+        completedFuture(Either.left(new Fault("msg-113005"))));
+
+    var result = fetcher.fetchPage(PAGE_URL).join();
+
+    assertEquals(Either.<Anomaly, Bundle>left(new Fault("msg-113005")), result);
+    verify(client, times(3)).fetchPage(PAGE_URL);
+  }
+
+  @Test
+  void fetchPage_doesNotRetryNotFound() {
+    when(client.fetchPage(PAGE_URL)).thenReturn(
+        completedFuture(Either.left(new NotFound("msg-113005"))));
+
+    var result = fetcher.fetchPage(PAGE_URL).join();
+
+    assertEquals(Either.<Anomaly, Bundle>left(new NotFound("msg-113005")), result);
+    verify(client, times(1)).fetchPage(PAGE_URL);
+  }
+}
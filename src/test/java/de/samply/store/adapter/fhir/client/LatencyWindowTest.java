@@ -0,0 +1,36 @@
+package de.samply.store.adapter.fhir.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyWindowTest {
+
+  @Test
+  void percentile_empty() {
+    assertEquals(-1, new LatencyWindow(10).percentile(0.95));
+  }
+
+  @Test
+  void percentile() {
+    var window = new LatencyWindow(100);
+    for (int i = 100; i > 0; i--) {
+      window.record(i);
+    }
+
+    assertEquals(50, window.percentile(0.5));
+    assertEquals(95, window.percentile(0.95));
+    assertEquals(1, window.percentile(0));
+  }
+
+  @Test
+  void percentile_onlyRecentSamples() {
+    var window = new LatencyWindow(2);
+    window.record(1000);
+    window.record(1);
+    window.record(2);
+
+    assertEquals(2, window.size());
+    assertEquals(2, window.percentile(1));
+  }
+}
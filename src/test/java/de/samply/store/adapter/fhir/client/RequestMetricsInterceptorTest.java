@@ -0,0 +1,62 @@
+package de.samply.store.adapter.fhir.client;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RequestMetricsInterceptorTest {
+
+  private static final byte[] BODY = "{\"resourceType\":\"Bundle\"}".getBytes(UTF_8);
+
+  private SimpleMeterRegistry meterRegistry;
+  private RequestMetricsInterceptor interceptor;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    interceptor = new RequestMetricsInterceptor(meterRegistry);
+  }
+
+  @Test
+  void process() throws Exception {
+    var context = new BasicHttpContext();
+    var request = new BasicHttpRequest("GET", "/fhir/Patient");
+    context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+    var response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new ByteArrayEntity(BODY));
+
+    interceptor.process(request, context);
+    interceptor.process(response, context);
+    try (var in = response.getEntity().getContent()) {
+      in.readAllBytes();
+    }
+
+    assertEquals(1, meterRegistry.get(RequestMetricsInterceptor.REQUEST_METRIC)
+        .tag("method", "GET").tag("status", "200").timer().count());
+    assertEquals(BODY.length, meterRegistry.get(RequestMetricsInterceptor.RESPONSE_SIZE_METRIC)
+        .tag("method", "GET").summary().totalAmount());
+  }
+
+  @Test
+  void process_withoutEntity() {
+    var context = new BasicHttpContext();
+    var request = new BasicHttpRequest("DELETE", "/fhir/Patient/0");
+    context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+    var response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 204, "No Content");
+
+    interceptor.process(request, context);
+    interceptor.process(response, context);
+
+    assertEquals(1, meterRegistry.get(RequestMetricsInterceptor.REQUEST_METRIC)
+        .tag("method", "DELETE").tag("status", "204").timer().count());
+  }
+}
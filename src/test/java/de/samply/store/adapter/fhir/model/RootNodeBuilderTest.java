@@ -250,4 +250,27 @@ class RootNodeBuilderTest {
     assertEquals(clinicalImpression, node.resources().get(
         "ClinicalImpression/" + CLINICAL_IMPRESSION_ID));
   }
+
+  @Test
+  void testHistologyBundleOfOtherPatient() {
+    var patient = new Patient();
+    patient.setId(PATIENT_ID);
+    var condition = new Condition();
+    condition.setId(CONDITION_ID);
+    condition.getSubject().setReference("Patient/" + PATIENT_ID);
+    var histology = new Observation();
+    histology.setId(HISTOLOGY_ID);
+    histology.getCode().getCodingFirstRep().setSystem("http://loinc.org").setCode("59847-4");
+    histology.getSubject().setReference("Patient/other");
+    histology.getFocusFirstRep().setReference("Condition/" + CONDITION_ID);
+    var bundle = new Bundle();
+    bundle.addEntry().setResource(histology);
+    bundle.addEntry().setResource(patient);
+    bundle.addEntry().setResource(condition);
+
+    var node = RootNodeBuilder.fromBundle(bundle);
+
+    assertEquals(condition, node.patients().get(0).conditions().get(0).condition());
+    assertTrue(node.patients().get(0).conditions().get(0).histologies().isEmpty());
+  }
 }
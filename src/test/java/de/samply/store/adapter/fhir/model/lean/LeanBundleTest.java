@@ -0,0 +1,144 @@
+package de.samply.store.adapter.fhir.model.lean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import de.samply.store.adapter.fhir.model.lean.LeanElements.Coding;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Condition;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Observation;
+import de.samply.store.adapter.fhir.model.lean.LeanResource.Patient;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class LeanBundleTest {
+
+  private static LeanBundle parse(String json) throws IOException {
+    return LeanBundle.parse(new ByteArrayInputStream(json.getBytes(UTF_8)));
+  }
+
+  @Test
+  void parse_emptyBundle() throws IOException {
+    var bundle = parse("""
+        {"resourceType": "Bundle", "type": "searchset", "total": 0}
+        """);
+
+    assertEquals(0, bundle.total());
+    assertNull(bundle.nextUrl());
+    assertEquals(0, bundle.numEntries());
+    assertEquals(List.of(), bundle.resources());
+  }
+
+  @Test
+  void parse_nextLink() throws IOException {
+    var bundle = parse("""
+        {"resourceType": "Bundle", "link": [
+          {"relation": "self", "url": "self-url"},
+          {"url": "next-url", "relation": "next"}
+        ]}
+        """);
+
+    assertNull(bundle.total());
+    assertEquals("next-url", bundle.nextUrl());
+  }
+
+  @Test
+  void parse_patient() throws IOException {
+    var bundle = parse("""
+        {"entry": [{"fullUrl": "Patient/0", "resource": {
+          "gender": "male",
+          "identifier": [{"type": {"coding": [{"system": "s", "code": "Lokal"}]}, "value": "v"}],
+          "birthDate": "1980-01-02",
+          "meta": {"profile": ["p"]},
+          "id": "0",
+          "resourceType": "Patient"
+        }}], "resourceType": "Bundle"}
+        """);
+
+    assertEquals(1, bundle.numEntries());
+    assertEquals(1, bundle.numPatients());
+    var patient = (Patient) bundle.resources().get(0);
+    assertEquals("Patient/0", patient.reference());
+    assertEquals("male", patient.gender());
+    assertEquals("1980-01-02", patient.birthDate());
+    assertEquals(List.of(new Coding("s", null, "Lokal")), patient.identifiers().get(0).type());
+    assertEquals("v", patient.identifiers().get(0).value());
+  }
+
+  @Test
+  void parse_condition() throws IOException {
+    var bundle = parse("""
+        {"resourceType": "Bundle", "entry": [{"resource": {
+          "resourceType": "Condition",
+          "id": "0",
+          "subject": {"reference": "Patient/0"},
+          "code": {"coding": [{"system": "icd", "version": "2019", "code": "C34.0"}]},
+          "onsetAge": {"value": 54.50, "unit": "a"},
+          "evidence": [{"detail": [{"reference": "Observation/0"}]}],
+          "stage": [{"assessment": [{"reference": "Observation/1"}]}],
+          "extension": [{"url": "u", "valueReference": {"reference": "Observation/2"}}]
+        }}]}
+        """);
+
+    var condition = (Condition) bundle.resources().get(0);
+    assertEquals("Patient/0", condition.subject());
+    assertEquals(List.of(new Coding("icd", "2019", "C34.0")), condition.code());
+    assertEquals("54.50", condition.onsetAge());
+    assertNull(condition.onsetDateTime());
+    assertEquals(List.of("Observation/0"), condition.evidenceDetails());
+    assertEquals(List.of("Observation/1"), condition.stageAssessments());
+    assertEquals("Observation/2", condition.extensions().get(0).valueReference());
+  }
+
+  @Test
+  void parse_observation() throws IOException {
+    var bundle = parse("""
+        {"resourceType": "Bundle", "entry": [{"resource": {
+          "resourceType": "Observation",
+          "id": "0",
+          "code": {"coding": [{"system": "http://loinc.org", "code": "21908-9"}]},
+          "focus": [{"reference": "Condition/0"}, {"reference": "Condition/1"}],
+          "effectiveDateTime": "2020-01-02T03:04:05+01:00",
+          "component": [{
+            "code": {"coding": [{"code": "21905-5"}]},
+            "valueCodeableConcept": {"coding": [{"code": "T1"}]},
+            "extension": [{"url": "cpu", "valueCodeableConcept": {"coding": [{"code": "c"}]}}]
+          }]
+        }}]}
+        """);
+
+    var observation = (Observation) bundle.resources().get(0);
+    assertEquals("Condition/0", observation.focus());
+    assertEquals("2020-01-02T03:04:05+01:00", observation.effectiveDateTime());
+    var component = observation.components().get(0);
+    assertEquals(List.of(new Coding(null, null, "21905-5")), component.code());
+    assertEquals(List.of(new Coding(null, null, "T1")), component.valueCodeableConcept());
+    assertEquals(List.of(new Coding(null, null, "c")),
+        component.extensions().get(0).valueCodeableConcept());
+  }
+
+  @Test
+  void parse_unknownResourceIsCountedButSkipped() throws IOException {
+    var bundle = parse("""
+        {"resourceType": "Bundle", "entry": [
+          {"resource": {"resourceType": "MedicationStatement", "id": "0",
+                        "subject": {"reference": "Patient/0"}}},
+          {"search": {"mode": "match"}, "resource": {"id": "0", "resourceType": "Patient"}}
+        ]}
+        """);
+
+    assertEquals(2, bundle.numEntries());
+    assertEquals(List.of(new Patient("0", List.of(), null, null)), bundle.resources());
+  }
+
+  @Test
+  void parse_noBundle() {
+    assertThrows(JsonParseException.class, () -> parse("""
+        {"resourceType": "OperationOutcome"}
+        """));
+  }
+}
@@ -0,0 +1,84 @@
+package de.samply.store.adapter.fhir.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import de.samply.store.adapter.fhir.model.RootNode;
+import de.samply.store.adapter.fhir.util.Anomaly;
+import de.samply.store.adapter.fhir.util.Anomaly.Fault;
+import de.samply.store.adapter.fhir.util.Either;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class BatchBufferTest {
+
+  private static final String RESULT_ID = "id-140512";
+
+  private final BatchBuffer buffer = new BatchBuffer(4, Duration.ofMinutes(5));
+
+  @Test
+  void get_loadsOnce() {
+    var batch = new RootNode(List.of(), Map.of());
+    var loads = new AtomicInteger();
+
+    buffer.get(RESULT_ID, 0, () -> {
+      loads.incrementAndGet();
+      return Either.right(batch);
+    });
+    var result = buffer.get(RESULT_ID, 0, () -> {
+      loads.incrementAndGet();
+      return Either.right(batch);
+    });
+
+    assertSame(batch, ((Either.Right<Anomaly, RootNode>) result).val());
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void get_concurrentRequestsLoadOnce() {
+    var batch = new RootNode(List.of(), Map.of());
+    var loads = new AtomicInteger();
+    var executor = Executors.newFixedThreadPool(4);
+    try {
+      var results = new ArrayList<CompletableFuture<Either<Anomaly, RootNode>>>();
+      for (int i = 0; i < 4; i++) {
+        results.add(CompletableFuture.supplyAsync(() -> buffer.get(RESULT_ID, 0, () -> {
+          loads.incrementAndGet();
+          sleep();
+          return Either.right(batch);
+        }), executor));
+      }
+      for (var result : results) {
+        assertSame(batch, ((Either.Right<Anomaly, RootNode>) result.join()).val());
+      }
+      assertEquals(1, loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void get_failedLoadIsNotBuffered() {
+    var batch = new RootNode(List.of(), Map.of());
+
+    var failed = buffer.get(RESULT_ID, 0, () -> Either.left(new Fault("msg-140639")));
+    var result = buffer.get(RESULT_ID, 0, () -> Either.right(batch));
+
+    assertEquals(Either.<Anomaly, RootNode>left(new Fault("msg-140639")), failed);
+    assertSame(batch, ((Either.Right<Anomaly, RootNode>) result).val());
+  }
+
+  private static void sleep() {
+    try {
+      Thread.sleep(100);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
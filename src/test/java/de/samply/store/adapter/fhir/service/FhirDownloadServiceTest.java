@@ -1,18 +1,36 @@
 package de.samply.store.adapter.fhir.service;
 
+import static de.samply.store.adapter.fhir.service.FhirDownloadService.FetchStrategy.RESOURCE_TYPE;
+import static de.samply.store.adapter.fhir.service.FhirDownloadService.FetchStrategy.REVINCLUDE;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.store.adapter.fhir.client.AsyncFhirClient;
+import de.samply.store.adapter.fhir.client.HedgingPageFetcher;
+import de.samply.store.adapter.fhir.util.Anomaly;
 import de.samply.store.adapter.fhir.util.Anomaly.Fault;
+import de.samply.store.adapter.fhir.util.Anomaly.NotFound;
 import de.samply.store.adapter.fhir.util.Either;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.net.ConnectException;
+import java.util.List;
+import java.util.Set;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -26,6 +44,8 @@ class FhirDownloadServiceTest {
   private static final String MEASURE_URI = "http://dktk.dkfz.de/fhir/Measure/Query";
   private static final int PAGE_SIZE = 50;
   private static final String PAGE_URL = "url-185540";
+  private static final String SPLIT_PAGE_URL = "http://localhost/fhir/Patient?_list=0&_count=3";
+  private static final String NEXT_PAGE_URL = "url-105323";
   private static final int TOTAL = 212458;
   private static final String LIST_ID = "181102";
 
@@ -35,11 +55,23 @@ class FhirDownloadServiceTest {
   @Mock
   private IGenericClient client;
 
+  @Mock
+  private AsyncFhirClient asyncClient;
+
+  @Mock
+  private HedgingPageFetcher pageFetcher;
+
+  private SimpleMeterRegistry meterRegistry;
+  private PipelineMetrics metrics;
   private FhirDownloadService service;
 
   @BeforeEach
   void setUp() {
-    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, PAGE_SIZE);
+    meterRegistry = new SimpleMeterRegistry();
+    metrics = new PipelineMetrics(meterRegistry);
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient,
+        1, REVINCLUDE, false, pageFetcher, false, false, metrics,
+        new ResourceStripper(true, Set.of()));
   }
 
   @Test
@@ -54,7 +86,7 @@ class FhirDownloadServiceTest {
     expectedBundle.setTotal(TOTAL);
     when(fhirService.fetchFirstPage(LIST_ID, PAGE_SIZE)).thenReturn(Either.right(expectedBundle));
 
-    var bundle = service.runQuery();
+    var bundle = service.runQuery(PAGE_SIZE);
 
     assertEquals(Either.right(expectedBundle), bundle);
   }
@@ -73,11 +105,69 @@ class FhirDownloadServiceTest {
     totalBundle.setTotal(TOTAL);
     when(fhirService.fetchTotalBundle(LIST_ID)).thenReturn(Either.right(totalBundle));
 
-    var total = service.runQuery().map(Bundle::getTotal);
+    var total = service.runQuery(PAGE_SIZE).map(Bundle::getTotal);
+
+    assertEquals(Either.right(TOTAL), total);
+    for (var stage : List.of("initResources", "evaluateMeasure", "fetchFirstPage",
+        "fetchTotalBundle")) {
+      assertEquals(1, meterRegistry.get(PipelineMetrics.STAGE_METRIC).tag("stage", stage)
+          .timer().count());
+    }
+  }
+
+  @Test
+  void runQuery_async() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 1,
+        REVINCLUDE, false, pageFetcher, false, true, metrics,
+        new ResourceStripper(true, Set.of()));
+    when(fhirService.resourceExists(Library.class, LIBRARY_URI)).thenReturn(Either.right(true));
+    when(fhirService.resourceExists(Measure.class, MEASURE_URI)).thenReturn(Either.right(true));
+    var report = new MeasureReport();
+    report.getGroupFirstRep().getPopulationFirstRep().getSubjectResults()
+        .setReference("List/" + LIST_ID);
+    when(asyncClient.evaluateMeasure(MEASURE_URI)).thenReturn(completedFuture(
+        Either.right(report)));
+    when(asyncClient.fetchFirstPage(LIST_ID, PAGE_SIZE)).thenReturn(completedFuture(
+        Either.right(new Bundle())));
+    var totalBundle = new Bundle();
+    totalBundle.setTotal(TOTAL);
+    when(asyncClient.fetchTotalBundle(LIST_ID)).thenReturn(completedFuture(
+        Either.right(totalBundle)));
+
+    var total = service.runQuery(PAGE_SIZE).map(Bundle::getTotal);
 
     assertEquals(Either.right(TOTAL), total);
   }
 
+  @Test
+  void runQuery_asyncMeasureFails() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 1,
+        REVINCLUDE, false, pageFetcher, false, true, metrics,
+        new ResourceStripper(true, Set.of()));
+    when(fhirService.resourceExists(Library.class, LIBRARY_URI)).thenReturn(Either.right(true));
+    when(fhirService.resourceExists(Measure.class, MEASURE_URI)).thenReturn(Either.right(true));
+    when(asyncClient.evaluateMeasure(MEASURE_URI)).thenReturn(completedFuture(
+        Either.left(new Fault("msg-151203"))));
+
+    var result = service.runQuery(PAGE_SIZE);
+
+    assertEquals(Either.<String, Bundle>left("msg-151203"), result);
+  }
+
+  @Test
+  void fetchPage_async() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 1,
+        REVINCLUDE, false, pageFetcher, false, true, metrics,
+        new ResourceStripper(true, Set.of()));
+    var expectedBundle = new Bundle();
+    when(asyncClient.fetchPage(PAGE_URL)).thenReturn(completedFuture(
+        Either.right(expectedBundle)));
+
+    var bundle = service.fetchPage(PAGE_URL);
+
+    assertEquals(Either.right(expectedBundle), bundle);
+  }
+
   @Test
   void fetchPage() {
     var expectedBundle = new Bundle();
@@ -88,6 +178,23 @@ class FhirDownloadServiceTest {
     assertEquals(Either.right(expectedBundle), bundle);
   }
 
+  @Test
+  void fetchPage_recordsMetrics() {
+    var expectedBundle = new Bundle();
+    expectedBundle.addEntry().setResource(new Patient());
+    expectedBundle.addEntry().setResource(new Condition());
+    when(client.fetchResourceFromUrl(Bundle.class, PAGE_URL)).thenReturn(expectedBundle);
+
+    service.fetchPage(PAGE_URL);
+
+    assertEquals(1, meterRegistry.get(PipelineMetrics.STAGE_METRIC).tag("stage", "fetchPage")
+        .timer().count());
+    assertEquals(2, meterRegistry.get(PipelineMetrics.PAGE_RESOURCES_METRIC).summary()
+        .totalAmount());
+    assertEquals(1, meterRegistry.get(PipelineMetrics.PAGE_PATIENTS_METRIC).summary()
+        .totalAmount());
+  }
+
   @Test
   void fetchPage_ConnectException() {
     when(client.fetchResourceFromUrl(Bundle.class, PAGE_URL))
@@ -97,4 +204,112 @@ class FhirDownloadServiceTest {
 
     assertEquals(Either.left(new Fault("Connection refused")), bundle);
   }
+
+  @Test
+  void fetchPage_hedged() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 1,
+        REVINCLUDE, false, pageFetcher, true, false, metrics,
+        new ResourceStripper(true, Set.of()));
+    var expectedBundle = new Bundle();
+    when(pageFetcher.fetchPage(PAGE_URL)).thenReturn(completedFuture(Either.right(expectedBundle)));
+
+    var bundle = service.fetchPage(PAGE_URL);
+
+    assertEquals(Either.right(expectedBundle), bundle);
+  }
+
+  @Test
+  void fetchPage_split() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 2,
+        REVINCLUDE, false, pageFetcher, false, false, metrics,
+        new ResourceStripper(true, Set.of()));
+    var patientPage = new Bundle().setTotal(TOTAL);
+    patientPage.getLinkOrCreate("next").setUrl(NEXT_PAGE_URL);
+    patientPage.addEntry().setResource(new Patient().setId("0"));
+    patientPage.addEntry().setResource(new Patient().setId("1"));
+    patientPage.addEntry().setResource(new Patient().setId("2"));
+    when(client.fetchResourceFromUrl(Bundle.class, SPLIT_PAGE_URL)).thenReturn(patientPage);
+    when(asyncClient.fetchPatients(List.of("0"))).thenReturn(completedFuture(Either.right(
+        subPage(new Patient().setId("0"), new Condition().setId("0")))));
+    when(asyncClient.fetchPatients(List.of("1", "2"))).thenReturn(completedFuture(Either.right(
+        subPage(new Patient().setId("1"), new Patient().setId("2")))));
+
+    var bundle = service.fetchPage(SPLIT_PAGE_URL + "&_revinclude=Condition:patient");
+
+    var page = ((Either.Right<Anomaly, Bundle>) bundle).val();
+    assertEquals(TOTAL, page.getTotal());
+    assertEquals(NEXT_PAGE_URL, page.getLinkOrCreate("next").getUrl());
+    assertEquals(List.of("Patient/0", "Condition/0", "Patient/1", "Patient/2"),
+        page.getEntry().stream().map(BundleEntryComponent::getResource)
+            .map(r -> r.fhirType() + "/" + r.getIdElement().getIdPart()).toList());
+  }
+
+  @Test
+  void fetchPage_splitWithError() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 2,
+        REVINCLUDE, false, pageFetcher, false, false, metrics,
+        new ResourceStripper(true, Set.of()));
+    var patientPage = new Bundle();
+    patientPage.addEntry().setResource(new Patient().setId("0"));
+    when(client.fetchResourceFromUrl(Bundle.class, SPLIT_PAGE_URL)).thenReturn(patientPage);
+    when(asyncClient.fetchPatients(List.of("0"))).thenReturn(completedFuture(Either.left(
+        new NotFound("msg-110512"))));
+
+    var bundle = service.fetchPage(SPLIT_PAGE_URL);
+
+    assertEquals(Either.left(new Fault("msg-110512")), bundle);
+  }
+
+  @Test
+  void fetchPage_byResourceType() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 1,
+        RESOURCE_TYPE, false, pageFetcher, false, false, metrics,
+        new ResourceStripper(true, Set.of()));
+    var patientPage = new Bundle().setTotal(TOTAL);
+    patientPage.getLinkOrCreate("next").setUrl(NEXT_PAGE_URL);
+    patientPage.addEntry().setResource(new Patient().setId("0"));
+    when(client.fetchResourceFromUrl(Bundle.class, SPLIT_PAGE_URL)).thenReturn(patientPage);
+    when(asyncClient.fetchReferencing(any(), eq(List.of("0"))))
+        .thenReturn(completedFuture(Either.right(new Bundle())));
+    when(asyncClient.fetchReferencing("Condition:patient", List.of("0")))
+        .thenReturn(completedFuture(Either.right(subPage(new Condition().setId("0")))));
+
+    var bundle = service.fetchPage(SPLIT_PAGE_URL);
+
+    var page = ((Either.Right<Anomaly, Bundle>) bundle).val();
+    assertEquals(NEXT_PAGE_URL, page.getLinkOrCreate("next").getUrl());
+    assertEquals(List.of("Patient/0", "Condition/0"),
+        page.getEntry().stream().map(BundleEntryComponent::getResource)
+            .map(r -> r.fhirType() + "/" + r.getIdElement().getIdPart()).toList());
+    verify(asyncClient, times(FhirService.PATIENT_REV_INCLUDES.size()))
+        .fetchReferencing(any(), eq(List.of("0")));
+  }
+
+  @Test
+  void fetchPage_splitInBatch() {
+    service = new FhirDownloadService(FhirContext.forR4(), fhirService, client, asyncClient, 2,
+        REVINCLUDE, true, pageFetcher, false, false, metrics,
+        new ResourceStripper(true, Set.of()));
+    var patientPage = new Bundle();
+    patientPage.addEntry().setResource(new Patient().setId("0"));
+    patientPage.addEntry().setResource(new Patient().setId("1"));
+    when(client.fetchResourceFromUrl(Bundle.class, SPLIT_PAGE_URL)).thenReturn(patientPage);
+    when(asyncClient.batch(List.of(AsyncFhirClient.patientsQuery(List.of("0")),
+        AsyncFhirClient.patientsQuery(List.of("1"))))).thenReturn(completedFuture(List.of(
+        Either.right(subPage(new Patient().setId("0"))),
+        Either.right(subPage(new Patient().setId("1"))))));
+
+    var bundle = service.fetchPage(SPLIT_PAGE_URL);
+
+    var page = ((Either.Right<Anomaly, Bundle>) bundle).val();
+    assertEquals(2, page.getEntry().size());
+  }
+
+  private static Bundle subPage(Resource... resources) {
+    var bundle = new Bundle();
+    for (Resource resource : resources) {
+      bundle.addEntry().setResource(resource);
+    }
+    return bundle;
+  }
 }
@@ -0,0 +1,75 @@
+package de.samply.store.adapter.fhir.service;
+
+import static de.samply.store.adapter.fhir.service.FhirDownloadService.FetchStrategy.RESOURCE_TYPE;
+import static de.samply.store.adapter.fhir.service.FhirDownloadService.FetchStrategy.REVINCLUDE;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.store.adapter.fhir.client.AsyncFhirClient;
+import de.samply.store.adapter.fhir.service.mapping.LeanQueryResultMapping;
+import de.samply.store.adapter.fhir.service.mapping.MappingDefinitions;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class LeanPageServiceTest {
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  @Mock
+  private AsyncFhirClient client;
+
+  private final PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+
+  @Test
+  void enabled() {
+    var service = new LeanPageService(client, new LeanQueryResultMapping(),
+        MappingPlan.standard(fhirContext), metrics, true, 1, REVINCLUDE, false, 0);
+
+    assertTrue(service.enabled());
+  }
+
+  @Test
+  void enabled_otherFetchStrategy() {
+    var service = new LeanPageService(client, new LeanQueryResultMapping(),
+        MappingPlan.standard(fhirContext), metrics, true, 1, RESOURCE_TYPE, false, 0);
+
+    assertFalse(service.enabled());
+  }
+
+  @Test
+  void enabled_batchSize() {
+    var service = new LeanPageService(client, new LeanQueryResultMapping(),
+        MappingPlan.standard(fhirContext), metrics, true, 1, REVINCLUDE, false, 200);
+
+    assertFalse(service.enabled());
+  }
+
+  @Test
+  void create_otherMappingDefinitions() {
+    var mappingPlan = MappingPlan.compile(fhirContext, MappingDefinitions.load(
+        new ByteArrayInputStream("entities: {}".getBytes())));
+    var mapping = new LeanQueryResultMapping();
+
+    assertThrows(IllegalStateException.class, () -> new LeanPageService(client, mapping,
+        mappingPlan, metrics, true, 1, REVINCLUDE, false, 0));
+  }
+
+  @Test
+  void create_otherMappingDefinitionsDisabled() {
+    var mappingPlan = MappingPlan.compile(fhirContext, MappingDefinitions.load(
+        new ByteArrayInputStream("entities: {}".getBytes())));
+
+    var service = new LeanPageService(client, new LeanQueryResultMapping(), mappingPlan, metrics,
+        false, 1, REVINCLUDE, false, 0);
+
+    assertFalse(service.enabled());
+  }
+}
@@ -0,0 +1,142 @@
+package de.samply.store.adapter.fhir.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.share.model.ccp.Patient;
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.StoreFhirAdapterApplication;
+import de.samply.store.adapter.fhir.model.PatientNode;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan;
+import de.samply.store.adapter.fhir.service.mapping.PatientMapping;
+import de.samply.store.adapter.fhir.service.mapping.QueryResultMapping;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator.Shape;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class MappingServiceTest {
+
+  private static final int NUM_PATIENTS = 10;
+
+  @Mock
+  private PatientMapping patientMapping;
+
+  private ExecutorService executor;
+  private SimpleMeterRegistry meterRegistry;
+  private PipelineMetrics metrics;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    metrics = new PipelineMetrics(meterRegistry);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  void map_parallelPreservesOrder() {
+    when(patientMapping.map(any())).thenAnswer(invocation -> {
+      var patient = new Patient();
+      patient.setId(((PatientNode) invocation.getArgument(0)).patient().getIdElement()
+          .getIdPart());
+      return patient;
+    });
+    var bundle = createBundle();
+    var sequentialResult = new MappingService(
+        resources -> new QueryResultMapping(patientMapping), executor, 1, metrics).map(bundle);
+    var service = new MappingService(resources -> new QueryResultMapping(patientMapping),
+        executor, 4, metrics);
+
+    var result = service.map(bundle);
+
+    assertEquals(NUM_PATIENTS, result.getPatient().size());
+    assertEquals(sequentialResult.getPatient().stream().map(Patient::getId).toList(),
+        result.getPatient().stream().map(Patient::getId).toList());
+  }
+
+  @Test
+  void map_parallelEqualsSequentialWithRealMapping() throws Exception {
+    var fhirContext = FhirContext.forR4();
+    var mappingServiceFactory = new StoreFhirAdapterApplication()
+        .mappingServiceFactory(fhirContext, MappingPlan.standard(fhirContext));
+    var bundle = new SyntheticDataGenerator(40, Shape.TYPICAL).bundle(0, 50);
+    var sequentialResult = new MappingService(mappingServiceFactory, executor, 1, metrics)
+        .map(bundle);
+
+    var result = new MappingService(mappingServiceFactory, executor, 4, metrics).map(bundle);
+
+    assertEquals(50, result.getPatient().size());
+    assertEquals(marshal(sequentialResult), marshal(result));
+  }
+
+  @Test
+  void map_recordsMetrics() {
+    var service = new MappingService(resources -> new QueryResultMapping(patientMapping),
+        executor, 1, metrics);
+
+    service.map(createBundle());
+
+    assertEquals(1, meterRegistry.get(PipelineMetrics.STAGE_METRIC)
+        .tag("stage", "RootNodeBuilder.fromBundle").timer().count());
+    assertEquals(1, meterRegistry.get(PipelineMetrics.STAGE_METRIC)
+        .tag("stage", "QueryResultMapping.map").timer().count());
+  }
+
+  @Test
+  void partition() {
+    var patients = IntStream.range(0, NUM_PATIENTS)
+        .mapToObj(i -> new PatientNode(new org.hl7.fhir.r4.model.Patient()))
+        .toList();
+
+    var partitions = MappingService.partition(patients, 4);
+
+    assertEquals(4, partitions.size());
+    assertEquals(patients, partitions.stream().flatMap(List::stream).toList());
+  }
+
+  @Test
+  void partition_morePartitionsThanPatients() {
+    var patients = List.of(new PatientNode(new org.hl7.fhir.r4.model.Patient()));
+
+    var partitions = MappingService.partition(patients, 4);
+
+    assertEquals(List.of(patients), partitions);
+  }
+
+  private static Bundle createBundle() {
+    var bundle = new Bundle();
+    IntStream.range(0, NUM_PATIENTS).forEach(i -> {
+      var patient = new org.hl7.fhir.r4.model.Patient();
+      patient.setId(Integer.toString(i));
+      bundle.addEntry().setResource(patient);
+    });
+    return bundle;
+  }
+
+  private static String marshal(QueryResult result) throws JAXBException {
+    var writer = new StringWriter();
+    JAXBContext.newInstance(QueryResult.class).createMarshaller().marshal(result, writer);
+    return writer.toString();
+  }
+}
@@ -0,0 +1,91 @@
+package de.samply.store.adapter.fhir.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+class PageSizeEstimatorTest {
+
+  @Test
+  void pageSize_withoutObservation() {
+    var estimator = new PageSizeEstimator(1000, 10, 100);
+
+    assertEquals(100, estimator.pageSize());
+  }
+
+  @Test
+  void pageSize_withinBudget() {
+    var estimator = new PageSizeEstimator(1000, 10, 100);
+
+    estimator.observe(createBundle(2, 48));
+
+    assertEquals(40, estimator.pageSize());
+  }
+
+  @Test
+  void pageSize_isBoundedByMin() {
+    var estimator = new PageSizeEstimator(1000, 10, 100);
+
+    estimator.observe(createBundle(1, 999));
+
+    assertEquals(10, estimator.pageSize());
+  }
+
+  @Test
+  void pageSize_isBoundedByMax() {
+    var estimator = new PageSizeEstimator(1000, 10, 100);
+
+    estimator.observe(createBundle(10, 0));
+
+    assertEquals(100, estimator.pageSize());
+  }
+
+  @Test
+  void pageSize_growsAgain() {
+    var estimator = new PageSizeEstimator(1000, 10, 100);
+    estimator.observe(createBundle(1, 99));
+
+    estimator.observe(createBundle(1, 9));
+
+    assertEquals(13, estimator.pageSize());
+  }
+
+  @Test
+  void pageSize_withoutBudget() {
+    var estimator = new PageSizeEstimator(0, 10, 100);
+
+    estimator.observe(createBundle(1, 999));
+
+    assertEquals(100, estimator.pageSize());
+  }
+
+  @Test
+  void observe_ignoresEmptyPages() {
+    var estimator = new PageSizeEstimator(1000, 10, 100);
+    estimator.observe(createBundle(2, 48));
+
+    estimator.observe(new Bundle());
+
+    assertEquals(40, estimator.pageSize());
+  }
+
+  @Test
+  void invalidBounds() {
+    assertThrows(IllegalArgumentException.class, () -> new PageSizeEstimator(1000, 10, 5));
+  }
+
+  private static Bundle createBundle(int numPatients, int numConditions) {
+    var bundle = new Bundle();
+    for (int i = 0; i < numPatients; i++) {
+      bundle.addEntry().setResource(new Patient());
+    }
+    for (int i = 0; i < numConditions; i++) {
+      bundle.addEntry().setResource(new Condition());
+    }
+    return bundle;
+  }
+}
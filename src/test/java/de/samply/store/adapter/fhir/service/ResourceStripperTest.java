@@ -0,0 +1,63 @@
+package de.samply.store.adapter.fhir.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+class ResourceStripperTest {
+
+  private static final String KEPT_URL = "http://example.com/kept";
+  private static final String OTHER_URL = "http://example.com/other";
+
+  @Test
+  void strip() {
+    var condition = condition();
+    var observation = new Observation();
+    observation.addComponent().addExtension(OTHER_URL, new CodeType("c"));
+    var bundle = new Bundle();
+    bundle.addEntry().setResource(condition);
+    bundle.addEntry().setResource(observation);
+
+    var stripped = new ResourceStripper(true, Set.of(KEPT_URL)).strip(bundle);
+
+    assertFalse(condition.hasText());
+    assertFalse(condition.hasMeta());
+    assertEquals(1, condition.getExtension().size());
+    assertEquals(KEPT_URL, condition.getExtension().get(0).getUrl());
+    assertTrue(condition.hasModifierExtension());
+    assertTrue(observation.getComponentFirstRep().hasExtension(OTHER_URL));
+    assertEquals(bundle, stripped);
+  }
+
+  @Test
+  void strip_disabled() {
+    var condition = condition();
+    var bundle = new Bundle();
+    bundle.addEntry().setResource(condition);
+
+    new ResourceStripper(false, Set.of(KEPT_URL)).strip(bundle);
+
+    assertTrue(condition.hasText());
+    assertTrue(condition.hasMeta());
+    assertEquals(2, condition.getExtension().size());
+  }
+
+  private static Condition condition() {
+    var condition = new Condition();
+    condition.getText().setStatus(NarrativeStatus.GENERATED).setDivAsString("<div>text</div>");
+    condition.getMeta().addProfile("http://example.com/profile");
+    condition.addExtension(KEPT_URL, new Reference("Observation/0"));
+    condition.addExtension(OTHER_URL, new CodeType("c"));
+    condition.addModifierExtension().setUrl(OTHER_URL).setValue(new CodeType("c"));
+    return condition;
+  }
+}
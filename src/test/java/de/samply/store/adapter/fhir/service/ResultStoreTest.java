@@ -14,7 +14,8 @@ import org.mockito.junit.jupiter.MockitoExtension;
 class ResultStoreTest {
 
   public static final String RESULT_ID = "id-194129";
-  public static final Result RESULT = new Result(RESULT_ID, 0);
+  public static final int PAGE_SIZE = 50;
+  public static final Result RESULT = new Result(RESULT_ID, 0, PAGE_SIZE, PAGE_SIZE);
 
   private ResultStore store;
 
@@ -34,7 +35,7 @@ class ResultStoreTest {
   void get_withResult() throws Exception {
     var bundle = new Bundle();
     bundle.getLinkOrCreate("self").setUrl("url-150503");
-    store.create(bundle);
+    store.create(bundle, PAGE_SIZE, PAGE_SIZE);
 
     var result = store.get(RESULT_ID);
 
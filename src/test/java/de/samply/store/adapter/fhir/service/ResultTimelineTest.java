@@ -0,0 +1,52 @@
+package de.samply.store.adapter.fhir.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Span;
+import de.samply.store.adapter.fhir.service.PipelineMetrics.Stage;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ResultTimelineTest {
+
+  private static final String RESULT_ID = "id-135114";
+
+  @Test
+  void record() {
+    var timeline = new ResultTimeline(10, 10);
+
+    timeline.record(RESULT_ID, null, List.of(span(Stage.EVALUATE_MEASURE, 2_000_000)));
+    timeline.record(RESULT_ID, 1, List.of(span(Stage.FETCH_PAGE, 3_000_000)));
+
+    var events = timeline.get(RESULT_ID).orElseThrow();
+    assertEquals(List.of("evaluateMeasure", "fetchPage"),
+        events.stream().map(ResultTimeline.Event::stage).toList());
+    assertEquals(null, events.get(0).page());
+    assertEquals(1, events.get(1).page());
+    assertEquals(3.0, events.get(1).durationMs());
+  }
+
+  @Test
+  void record_keepsMostRecentEvents() {
+    var timeline = new ResultTimeline(10, 2);
+
+    timeline.record(RESULT_ID, 0, List.of(span(Stage.FETCH_PAGE, 1), span(Stage.MAP, 2),
+        span(Stage.SERIALIZE, 3)));
+
+    assertEquals(List.of("QueryResultMapping.map", "serialize"), timeline.get(RESULT_ID)
+        .orElseThrow().stream().map(ResultTimeline.Event::stage).toList());
+  }
+
+  @Test
+  void get_unknownResult() {
+    var timeline = new ResultTimeline(10, 10);
+
+    assertTrue(timeline.get(RESULT_ID).isEmpty());
+  }
+
+  private static Span span(Stage stage, long nanos) {
+    return new Span(stage, Instant.EPOCH, nanos, 0);
+  }
+}
@@ -0,0 +1,119 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import de.samply.store.adapter.fhir.service.EvaluationContext;
+import de.samply.store.adapter.fhir.service.FhirPathR4;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationComponentComponent;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.junit.jupiter.api.Test;
+
+class FusedExtractorTest {
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final FhirPathR4 fhirPathEngine = new FhirPathR4(fhirContext,
+      new EvaluationContext());
+
+  private static final FusedExtractor.Definition DEFINITION = FusedExtractor
+      .over("Observation.component", "code.coding.code")
+      .field("a", "key-a", "value.coding.code")
+      .field("a-display", "key-a", "value.coding.display")
+      .field("b", "key-b", "value.coding.code")
+      .field("c", "key-c", "value.coding.code");
+
+  @Test
+  void extract() {
+    var observation = new Observation();
+    observation.addComponent(component("key-a", "value-a"));
+    observation.addComponent(component("key-b", "value-b"));
+
+    var values = DEFINITION.compile(fhirPathEngine).extract(fhirPathEngine, observation);
+
+    assertEquals(Optional.of("value-a"), get(values, "a"));
+    assertEquals(Optional.of("display-value-a"), get(values, "a-display"));
+    assertEquals(Optional.of("value-b"), get(values, "b"));
+    assertEquals(Optional.empty(), get(values, "c"));
+  }
+
+  @Test
+  void extract_firstItemWithValueWins() {
+    var observation = new Observation();
+    observation.addComponent(component("key-a", null));
+    observation.addComponent(component("key-a", "value-a-1"));
+    observation.addComponent(component("key-a", "value-a-2"));
+
+    var values = DEFINITION.compile(fhirPathEngine).extract(fhirPathEngine, observation);
+
+    assertEquals(Optional.of("value-a-1"), get(values, "a"));
+  }
+
+  @Test
+  void extract_itemWithManyKeys() {
+    var observation = new Observation();
+    var component = component("key-a", "value");
+    component.getCode().addCoding().setCode("key-b");
+    observation.addComponent(component);
+
+    var values = DEFINITION.compile(fhirPathEngine).extract(fhirPathEngine, observation);
+
+    assertEquals(Optional.empty(), get(values, "a"));
+    assertEquals(Optional.empty(), get(values, "b"));
+  }
+
+  @Test
+  void extract_sharedParser() {
+    var observation = new Observation();
+    observation.addComponent(component("key-a", "value-a"));
+    var otherEngine = new FhirPathR4(fhirContext, new EvaluationContext());
+
+    var values = DEFINITION.compile().extract(otherEngine, observation);
+
+    assertEquals(Optional.of("value-a"), get(values, "a"));
+  }
+
+  @Test
+  void get_unknownField() {
+    var values = DEFINITION.compile(fhirPathEngine).extract(fhirPathEngine, new Observation());
+
+    var e = assertThrows(IllegalArgumentException.class, () -> get(values, "d"));
+
+    assertEquals("Unknown field `d`.", e.getMessage());
+  }
+
+  @Test
+  void get_unexpectedType() {
+    var observation = new Observation();
+    observation.addComponent(component("key-a", "value-a"));
+    var values = DEFINITION.compile(fhirPathEngine).extract(fhirPathEngine, observation);
+
+    assertThrows(FhirPathExecutionException.class, () -> values.get("a", DateTimeType.class));
+  }
+
+  @Test
+  void field_duplicate() {
+    var e = assertThrows(IllegalArgumentException.class,
+        () -> DEFINITION.field("a", "key-a", "value"));
+
+    assertEquals("Duplicate field `a`.", e.getMessage());
+  }
+
+  private static Optional<String> get(FusedExtractor.Values values, String name) {
+    return values.get(name, PrimitiveType.class).map(PrimitiveType::getValueAsString);
+  }
+
+  private static ObservationComponentComponent component(String key, String value) {
+    var component = new ObservationComponentComponent();
+    component.getCode().addCoding().setCode(key);
+    if (value != null) {
+      component.getValueCodeableConcept().addCoding().setCode(value)
+          .setDisplay("display-" + value);
+    }
+    return component;
+  }
+}
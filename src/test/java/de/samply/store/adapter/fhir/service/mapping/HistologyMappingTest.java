@@ -19,6 +19,7 @@ import org.junit.jupiter.params.provider.CsvFileSource;
 class HistologyMappingTest {
 
   private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final MappingPlan mappingPlan = MappingPlan.standard(fhirContext);
 
   @ParameterizedTest
   @CsvFileSource(resources = "/histologyMappings.csv", numLinesToSkip = 1)
@@ -28,7 +29,7 @@ class HistologyMappingTest {
     Map<String, Resource> gradings =
         fhirGrading == null ? Map.of() : Map.of("Observation/Test123", createGrading(fhirGrading));
     var mapping = new HistologyMapping(new FhirPathR4(fhirContext, new EvaluationContext(
-        gradings)));
+        gradings)), mappingPlan);
     var histology = new Observation();
     histology.getValueCodeableConcept().getCodingFirstRep()
         .setSystem("urn:oid:2.16.840.1.113883.6.43.1").setCode(fhirMorphologie)
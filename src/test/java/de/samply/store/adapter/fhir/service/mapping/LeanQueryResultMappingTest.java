@@ -0,0 +1,255 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.share.model.ccp.Entity;
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.store.adapter.fhir.StoreFhirAdapterApplication;
+import de.samply.store.adapter.fhir.model.RootNodeBuilder;
+import de.samply.store.adapter.fhir.model.lean.LeanBundle;
+import de.samply.store.adapter.fhir.model.lean.LeanRootNode;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator.Shape;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import org.hl7.fhir.r4.model.Age;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ClinicalImpression;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests that the lean mapping produces the same result as the FHIRPath based mappings.
+ */
+class LeanQueryResultMappingTest {
+
+  private static final String LOINC = "http://loinc.org";
+  private static final String CS = "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/";
+  private static final String ICD_10_GM = DiagnosisMapping.ICD_10_GM;
+  private static final String ICD_O_3 = DiagnosisMapping.ICD_O_3;
+  private static final String CPU_PRAEFIX_URL =
+      "http://dktk.dkfz.de/fhir/StructureDefinition/onco-core-Extension-TNMcpuPraefix";
+  private static final String EXTENSION_FERNMETASTASEN =
+      "http://dktk.dkfz.de/fhir/StructureDefinition/onco-core-Extension-Fernmetastasen";
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  private final LeanQueryResultMapping mapping = new LeanQueryResultMapping();
+
+  @ParameterizedTest
+  @ValueSource(longs = {1, 2, 3})
+  void map_synthetic(long seed) throws IOException {
+    assertEquivalent(new SyntheticDataGenerator(seed, Shape.TYPICAL).bundle(0, 20));
+  }
+
+  @Test
+  void map_empty() throws IOException {
+    assertEquivalent(new Bundle());
+  }
+
+  @Test
+  void map_rich() throws IOException {
+    var bundle = new Bundle();
+    richPatient().forEach(resource -> bundle.addEntry().setResource(resource));
+
+    assertEquivalent(bundle);
+  }
+
+  private void assertEquivalent(Bundle bundle) throws IOException {
+    var json = fhirContext.newJsonParser().encodeResourceToString(bundle).getBytes(UTF_8);
+
+    var hapiBundle = fhirContext.newJsonParser().parseResource(Bundle.class,
+        new ByteArrayInputStream(json));
+    var rootNode = RootNodeBuilder.fromBundle(hapiBundle);
+    var expected = new StoreFhirAdapterApplication().mappingServiceFactory(fhirContext,
+        MappingPlan.standard(fhirContext))
+        .apply(rootNode.resources()).map(rootNode.patients());
+
+    var actual = mapping.map(LeanRootNode.fromBundle(LeanBundle.parse(
+        new ByteArrayInputStream(json))));
+
+    assertEquals(render(expected), render(actual));
+  }
+
+  private static List<Resource> richPatient() {
+    var patientRef = new Reference("Patient/r0");
+    var conditionRef = new Reference("Condition/r0-condition");
+
+    var patient = new Patient();
+    patient.setId("r0");
+    patient.addIdentifier().setValue("LOCAL-r0").getType()
+        .addCoding(new Coding(CS + "PseudonymArtCS", "Lokal", null));
+    patient.addIdentifier().setValue("GLOBAL-r0").getType()
+        .addCoding(new Coding(CS + "PseudonymArtCS", "Global", null));
+    patient.setGender(AdministrativeGender.OTHER);
+    patient.setBirthDateElement(new org.hl7.fhir.r4.model.DateType("1950-06-15"));
+
+    var condition = new Condition();
+    condition.setId("r0-condition");
+    condition.setSubject(patientRef);
+    condition.setCode(new CodeableConcept(new Coding(ICD_10_GM, "C34.1", null)
+        .setVersion("2019")));
+    condition.addBodySite(new CodeableConcept(new Coding(ICD_O_3, "C34.1", null)
+        .setVersion("31")).addCoding(new Coding(CS + "SeitenlokalisationCS", "L", null)));
+    condition.setOnset(new Age().setValue(new BigDecimal("54.50")));
+    condition.setRecordedDateElement(new DateTimeType("2004-12-24"));
+    condition.addEvidence().addDetail(new Reference("Observation/r0-histology"))
+        .addDetail(new Reference("Observation/unknown"));
+    condition.addStage().addAssessment(new Reference("Observation/r0-metastasis"));
+    condition.addExtension(EXTENSION_FERNMETASTASEN, new Reference("Observation/r0-tnm-c"));
+
+    var grading = new Observation();
+    grading.setId("r0-grading");
+    grading.setSubject(patientRef);
+    grading.setCode(new CodeableConcept(new Coding(LOINC, "59542-1", null)));
+    grading.setValue(new CodeableConcept(new Coding(CS + "GradingCS", "G2", null)));
+
+    var histology = new Observation();
+    histology.setId("r0-histology");
+    histology.setSubject(patientRef);
+    histology.setCode(new CodeableConcept(new Coding(LOINC, "59847-4", null)));
+    histology.addFocus(conditionRef);
+    histology.setValue(new CodeableConcept(new Coding(ICD_O_3, "8140/3", null)
+        .setVersion("32")));
+    histology.addHasMember(new Reference("Observation/r0-grading"));
+
+    var metastasis = new Observation();
+    metastasis.setId("r0-metastasis");
+    metastasis.setSubject(patientRef);
+    metastasis.setCode(new CodeableConcept(new Coding(LOINC, "21907-1", null)));
+    metastasis.setEffective(new DateTimeType("2005-01-02T10:00:00+01:00"));
+    metastasis.setValue(new CodeableConcept(new Coding(CS + "JNUCS", "J", null)));
+    metastasis.setBodySite(new CodeableConcept(new Coding(CS + "FMLokalisationCS", "PUL",
+        null)));
+
+    var tnmC = tnm("r0-tnm-c", "21908-9", "21905-5", "21906-3", "21907-1");
+    tnmC.setSubject(patientRef);
+    var tnmP = tnm("r0-tnm-p", "21902-2", "21899-0", "21900-6", "21901-4");
+    tnmP.setSubject(patientRef);
+
+    var vitalState = new Observation();
+    vitalState.setId("r0-vital-state");
+    vitalState.setSubject(patientRef);
+    vitalState.setCode(new CodeableConcept(new Coding(LOINC, "75186-7", null)));
+    vitalState.setValue(new CodeableConcept(new Coding(CS + "VitalstatusCS", "lebend", null)));
+
+    var outcome = new Observation();
+    outcome.setId("r0-outcome");
+    outcome.setSubject(patientRef);
+    outcome.setCode(new CodeableConcept(new Coding(LOINC, "21976-6", null)));
+    outcome.setValue(new CodeableConcept(new Coding(CS + "GesamtbeurteilungTumorstatusCS", "V",
+        null)));
+
+    var localRecurrence = new Observation();
+    localRecurrence.setId("r0-local-recurrence");
+    localRecurrence.setSubject(patientRef);
+    localRecurrence.setCode(new CodeableConcept(new Coding(LOINC, "LA4583-6", null)));
+    localRecurrence.setValue(new CodeableConcept(new Coding(CS + "VerlaufLokalerTumorstatusCS",
+        "K", null)));
+
+    var impression = new ClinicalImpression();
+    impression.setId("r0-progress");
+    impression.setSubject(patientRef);
+    impression.addProblem(conditionRef);
+    impression.setEffective(new DateTimeType("2006-03-04"));
+    for (var item : List.of("r0-vital-state", "r0-histology", "r0-outcome",
+        "r0-local-recurrence", "r0-tnm-c", "r0-tnm-p", "unknown")) {
+      impression.addFinding().setItemReference(new Reference("Observation/" + item));
+    }
+
+    var surgery = new Procedure();
+    surgery.setId("r0-surgery");
+    surgery.setSubject(patientRef);
+    surgery.addReasonReference(conditionRef);
+    surgery.setCategory(new CodeableConcept(new Coding(CS + "SYSTTherapieartCS", "OP", null)));
+    surgery.setOutcome(new CodeableConcept(
+        new Coding(CS + "LokaleBeurteilungResidualstatusCS", "R0", null))
+        .addCoding(new Coding(CS + "GesamtbeurteilungResidualstatusCS", "R1", null)));
+
+    var radiationTherapy = new Procedure();
+    radiationTherapy.setId("r0-radiation-therapy");
+    radiationTherapy.setSubject(patientRef);
+    radiationTherapy.addReasonReference(conditionRef);
+    radiationTherapy.setCategory(new CodeableConcept(new Coding(CS + "SYSTTherapieartCS", "ST",
+        null)));
+    radiationTherapy.setPerformed(new Period()
+        .setStartElement(new DateTimeType("2005-02-01"))
+        .setEndElement(new DateTimeType("2005-03-01")));
+
+    var specimen = new Specimen();
+    specimen.setId("r0-specimen");
+    specimen.setSubject(patientRef);
+    specimen.setType(new CodeableConcept(new Coding(
+        "https://fhir.bbmri.de/CodeSystem/SampleMaterialType", "tissue-other", null))
+        .addCoding(new Coding("urn:centraxx", "NGW", null)));
+    specimen.getCollection().setCollected(new DateTimeType("2005-01-01T08:00:00Z"));
+
+    return List.of(patient, condition, grading, histology, metastasis, tnmC, tnmP, vitalState,
+        outcome, localRecurrence, impression, surgery, radiationTherapy, specimen);
+  }
+
+  private static Observation tnm(String id, String code, String codeT, String codeN,
+      String codeM) {
+    var tnm = new Observation();
+    tnm.setId(id);
+    tnm.setCode(new CodeableConcept(new Coding(LOINC, code, null)));
+    tnm.setEffective(new DateTimeType("2005-01-03"));
+    tnm.setValue(new CodeableConcept(new Coding(CS + "UiccstadiumCS", "IV", null)
+        .setVersion("8")));
+    var t = tnm.addComponent().setCode(new CodeableConcept(new Coding(LOINC, codeT, null)))
+        .setValue(new CodeableConcept(new Coding(CS + "TNMTCS", "3", null)));
+    t.addExtension(CPU_PRAEFIX_URL, new CodeableConcept(new Coding(CS + "TNMcpuPraefixTCS", "p",
+        null)));
+    tnm.addComponent().setCode(new CodeableConcept(new Coding(LOINC, codeN, null)))
+        .setValue(new CodeableConcept(new Coding(CS + "TNMNCS", "1", null)));
+    tnm.addComponent().setCode(new CodeableConcept(new Coding(LOINC, codeM, null)))
+        .setValue(new CodeableConcept(new Coding(CS + "TNMMCS", "1", null)));
+    tnm.addComponent().setCode(new CodeableConcept(new Coding(LOINC, "59479-6", null)))
+        .setValue(new CodeableConcept(new Coding(CS + "TNMySymbolCS", "y", null)));
+    tnm.addComponent().setCode(new CodeableConcept(new Coding(LOINC, "21983-2", null)))
+        .setValue(new CodeableConcept(new Coding(CS + "TNMrSymbolCS", "r", null)));
+    tnm.addComponent().setCode(new CodeableConcept(new Coding(LOINC, "42030-7", null)))
+        .setValue(new CodeableConcept(new Coding(CS + "TNMmSymbolCS", "m", null)));
+    // a component with two codes doesn't match any of the codes above
+    tnm.addComponent().setCode(new CodeableConcept(new Coding(LOINC, codeT, null))
+            .addCoding(new Coding(LOINC, codeN, null)))
+        .setValue(new CodeableConcept(new Coding(CS + "TNMTCS", "4", null)));
+    return tnm;
+  }
+
+  private static String render(QueryResult result) {
+    var builder = new StringBuilder();
+    result.getPatient().forEach(patient -> render(builder, patient, 0));
+    return builder.toString();
+  }
+
+  private static void render(StringBuilder builder, Entity entity, int depth) {
+    builder.append("  ".repeat(depth)).append(entity.getClass().getSimpleName()).append(' ')
+        .append(entity.getId());
+    if (entity instanceof de.samply.share.model.ccp.Container container) {
+      builder.append(' ').append(container.getDesignation());
+    }
+    builder.append('\n');
+    entity.getAttribute().forEach(attribute -> builder.append("  ".repeat(depth + 1))
+        .append(attribute.getMdrKey()).append(" = ").append(attribute.getValue().getValue())
+        .append('\n'));
+    entity.getContainer().forEach(container -> render(builder, container, depth + 1));
+  }
+}
@@ -0,0 +1,231 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import static de.samply.store.adapter.fhir.service.TestUtil.findAttrValue;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.share.model.ccp.Container;
+import de.samply.store.adapter.fhir.service.EvaluationContext;
+import de.samply.store.adapter.fhir.service.FhirPathR4;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+
+class MappingPlanTest {
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  @Test
+  void apply() {
+    var plan = compile("""
+        constants:
+          SYSTEM: http://example.com
+        entities:
+          Test:
+            shared:
+              members: Observation.hasMember.resolve()
+            attributes:
+              - mdrKey: urn:dktk:dataelement:1:1
+                path: Observation.value.coding.where(system = '${SYSTEM}').code
+                type: code
+              - mdrKey: urn:dktk:dataelement:2:1
+                from: members
+                path: value.coding.code
+                type: code
+              - mdrKey: urn:dktk:dataelement:3:1
+                path: Observation.effective
+                type: dateTime
+              - mdrKey: urn:dktk:dataelement:4:1
+                value: true
+              - mdrKey: urn:dktk:dataelement:5:1
+                path: Observation.status
+                type: code
+        """);
+    var member = new Observation();
+    member.setId(new IdType("member"));
+    member.getValueCodeableConcept().addCoding().setCode("member-code");
+    var observation = new Observation();
+    observation.getValueCodeableConcept().addCoding().setSystem("http://other.com")
+        .setCode("other");
+    observation.getValueCodeableConcept().addCoding().setSystem("http://example.com")
+        .setCode("code");
+    observation.addHasMember(new Reference("Observation/member"));
+    observation.getEffectiveDateTimeType().setValueAsString("2021-03-04T12:00:00+01:00");
+
+    var container = map(plan, observation, Map.of("Observation/member", member));
+
+    assertEquals(Optional.of("code"), findAttrValue(container, "1:1"));
+    assertEquals(Optional.of("member-code"), findAttrValue(container, "2:1"));
+    assertEquals(Optional.of("04.03.2021"), findAttrValue(container, "3:1"));
+    assertEquals(Optional.of("true"), findAttrValue(container, "4:1"));
+    assertEquals(Optional.empty(), findAttrValue(container, "5:1"));
+  }
+
+  @Test
+  void apply_missingSharedValues() {
+    var plan = compile("""
+        entities:
+          Test:
+            shared:
+              members: Observation.hasMember.resolve()
+            attributes:
+              - mdrKey: urn:dktk:dataelement:2:1
+                from: members
+                path: value.coding.code
+                type: code
+        """);
+
+    var container = map(plan, new Observation(), Map.of());
+
+    assertTrue(container.getAttribute().isEmpty());
+  }
+
+  @Test
+  void standard_hasAllRequiredEntities() {
+    var plan = MappingPlan.standard(fhirContext);
+
+    assertSame(plan, plan.requireEntities(MappingPlan.REQUIRED_ENTITIES));
+    assertTrue(plan.isStandard());
+  }
+
+  @Test
+  void requireEntities_missing() {
+    var plan = compile("""
+        entities:
+          Histology:
+            attributes: []
+        """);
+
+    var e = assertThrows(IllegalArgumentException.class,
+        () -> plan.requireEntities(List.of("Histology", "Surgery", "Progress")));
+
+    assertEquals("Missing mapping definitions of the entities `Surgery`, `Progress`.",
+        e.getMessage());
+  }
+
+  @Test
+  void isStandard_otherDefinitions() {
+    assertFalse(compile("entities: {}").isStandard());
+  }
+
+  @Test
+  void entity_missing() {
+    var plan = compile("entities: {}");
+
+    var e = assertThrows(IllegalArgumentException.class, () -> plan.entity("Test"));
+
+    assertEquals("Missing mapping definition of the entity `Test`.", e.getMessage());
+  }
+
+  @Test
+  void compile_unknownConstant() {
+    var e = assertThrows(IllegalArgumentException.class, () -> compile("""
+        entities:
+          Test:
+            attributes:
+              - mdrKey: urn:dktk:dataelement:1:1
+                path: Observation.value.coding.where(system = '${SYSTEM}').code
+                type: code
+        """));
+
+    assertEquals("Unknown constant `SYSTEM` in path "
+        + "`Observation.value.coding.where(system = '${SYSTEM}').code`.", e.getMessage());
+  }
+
+  @Test
+  void compile_unknownType() {
+    var e = assertThrows(IllegalArgumentException.class, () -> compile("""
+        entities:
+          Test:
+            attributes:
+              - mdrKey: urn:dktk:dataelement:1:1
+                path: Observation.status
+                type: integer
+        """));
+
+    assertEquals("Unknown type `integer` of Test attribute urn:dktk:dataelement:1:1.",
+        e.getMessage());
+  }
+
+  @Test
+  void compile_unknownSharedExpression() {
+    var e = assertThrows(IllegalArgumentException.class, () -> compile("""
+        entities:
+          Test:
+            attributes:
+              - mdrKey: urn:dktk:dataelement:1:1
+                from: members
+                path: value.coding.code
+                type: code
+        """));
+
+    assertEquals("Unknown shared expression `members` in Test attribute "
+        + "urn:dktk:dataelement:1:1.", e.getMessage());
+  }
+
+  @Test
+  void compile_pathAndValue() {
+    var e = assertThrows(IllegalArgumentException.class, () -> compile("""
+        entities:
+          Test:
+            attributes:
+              - mdrKey: urn:dktk:dataelement:1:1
+                path: Observation.status
+                type: code
+                value: X
+        """));
+
+    assertEquals("Expected either a path or a value in Test attribute urn:dktk:dataelement:1:1.",
+        e.getMessage());
+  }
+
+  @Test
+  void compile_invalidPath() {
+    var e = assertThrows(IllegalArgumentException.class, () -> compile("""
+        entities:
+          Test:
+            attributes:
+              - mdrKey: urn:dktk:dataelement:1:1
+                path: Observation..status
+                type: code
+        """));
+
+    assertTrue(e.getMessage().startsWith("Invalid path `Observation..status` in Test attribute "
+        + "urn:dktk:dataelement:1:1: "), e.getMessage());
+  }
+
+  @Test
+  void load_attributesNoList() {
+    var e = assertThrows(IllegalArgumentException.class, () -> compile("""
+        entities:
+          Test:
+            attributes: foo
+        """));
+
+    assertEquals("Expected `Test.attributes` to be a list.", e.getMessage());
+  }
+
+  private static MappingPlan compile(String yaml) {
+    return MappingPlan.compile(fhirContext,
+        MappingDefinitions.load(new ByteArrayInputStream(yaml.getBytes(UTF_8))));
+  }
+
+  private static Container map(MappingPlan plan, Resource resource,
+      Map<String, Resource> resources) {
+    var fhirPathEngine = new FhirPathR4(fhirContext, new EvaluationContext(resources));
+    var builder = new ContainerBuilder(fhirPathEngine, resource, "Test");
+    builder.addAttributes(plan.entity("Test"));
+    return builder.build();
+  }
+}
@@ -16,12 +16,14 @@ import org.junit.jupiter.params.provider.CsvFileSource;
 class MetatasisMappingTest {
 
   private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final MappingPlan mappingPlan = MappingPlan.standard(fhirContext);
 
   private MetastasisMapping mapping;
 
   @BeforeEach
   void setUp() {
-    mapping = new MetastasisMapping(new FhirPathR4(fhirContext, new EvaluationContext()));
+    mapping = new MetastasisMapping(new FhirPathR4(fhirContext, new EvaluationContext()),
+        mappingPlan);
   }
 
   @ParameterizedTest
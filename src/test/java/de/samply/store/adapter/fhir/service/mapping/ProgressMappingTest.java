@@ -33,6 +33,7 @@ class ProgressMappingTest {
       "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/VerlaufTumorstatusFernmetastasenCS";
 
   private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final MappingPlan mappingPlan = MappingPlan.standard(fhirContext);
 
   private ClinicalImpression clinicalImpression;
   private Map<String, Resource> findings;
@@ -43,7 +44,7 @@ class ProgressMappingTest {
     clinicalImpression = new ClinicalImpression();
     findings = new HashMap<>();
     FhirPathR4 fhirPathEngine = new FhirPathR4(fhirContext, new EvaluationContext(findings));
-    mapping = new ProgressMapping(fhirPathEngine, new TnmMapping(fhirPathEngine));
+    mapping = new ProgressMapping(fhirPathEngine, new TnmMapping(fhirPathEngine), mappingPlan);
   }
 
   @ParameterizedTest
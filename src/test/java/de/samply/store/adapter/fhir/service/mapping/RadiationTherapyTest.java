@@ -16,12 +16,14 @@ import org.junit.jupiter.api.Test;
 class RadiationTherapyTest {
 
   private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final MappingPlan mappingPlan = MappingPlan.standard(fhirContext);
 
   private RadiationTherapyMapping mapping;
 
   @BeforeEach
   void setUp() {
-    mapping = new RadiationTherapyMapping(new FhirPathR4(fhirContext, new EvaluationContext()));
+    mapping = new RadiationTherapyMapping(new FhirPathR4(fhirContext, new EvaluationContext()),
+        mappingPlan);
   }
 
   @Test
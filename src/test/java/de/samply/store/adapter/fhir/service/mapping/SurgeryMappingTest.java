@@ -21,12 +21,14 @@ class SurgeryMappingTest {
       "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/GesamtbeurteilungResidualstatusCS";
 
   private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final MappingPlan mappingPlan = MappingPlan.standard(fhirContext);
 
   private SurgeryMapping mapping;
 
   @BeforeEach
   void setUp() {
-    mapping = new SurgeryMapping(new FhirPathR4(fhirContext, new EvaluationContext()));
+    mapping = new SurgeryMapping(new FhirPathR4(fhirContext, new EvaluationContext()),
+        mappingPlan);
   }
 
   @Disabled
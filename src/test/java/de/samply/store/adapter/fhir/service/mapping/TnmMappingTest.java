@@ -2,6 +2,8 @@ package de.samply.store.adapter.fhir.service.mapping;
 
 import static de.samply.store.adapter.fhir.service.TestUtil.findAttrValue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import ca.uhn.fhir.context.FhirContext;
 import de.samply.store.adapter.fhir.service.EvaluationContext;
@@ -12,6 +14,7 @@ import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Observation.ObservationComponentComponent;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvFileSource;
 
@@ -103,6 +106,32 @@ public class TnmMappingTest {
     assertEquals(Optional.ofNullable(dktkTNMMS), findAttrValue(container, "10:2"));
   }
 
+  @Test
+  void map_sameObservationIsMappedOnce() {
+    observation.getCode().getCodingFirstRep().setSystem("http://loinc.org").setCode(TNM_P);
+    observation.addComponent(createCompontent("21899-0", "2"));
+    var other = observation.copy();
+
+    var container = mapping.map(observation);
+
+    assertSame(container, mapping.map(observation));
+    assertNotSame(container, mapping.map(other));
+    assertEquals(Optional.of("2"), findAttrValue(mapping.map(other), "100:1"));
+  }
+
+  @Test
+  void map_componentWithTwoCodingsMatchesNoCode() {
+    observation.getCode().getCodingFirstRep().setSystem("http://loinc.org").setCode(TNM_P);
+    var comp = createCompontent("59479-6", "y");
+    comp.getCode().addCoding().setSystem("http://loinc.org").setCode("21983-2");
+    observation.addComponent(comp);
+
+    var container = mapping.map(observation);
+
+    assertEquals(Optional.empty(), findAttrValue(container, "82:1"));
+    assertEquals(Optional.empty(), findAttrValue(container, "81:1"));
+  }
+
   private static ObservationComponentComponent createCompontent(String code, String value) {
     ObservationComponentComponent comp = new ObservationComponentComponent();
     comp.getCode().getCodingFirstRep().setSystem("http://loinc.org").setCode(code);
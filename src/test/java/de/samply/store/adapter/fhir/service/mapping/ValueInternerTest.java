@@ -0,0 +1,69 @@
+package de.samply.store.adapter.fhir.service.mapping;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+class ValueInternerTest {
+
+  private final ValueInterner interner = new ValueInterner(16, 10);
+
+  @Test
+  void intern_sameValueIsShared() {
+    var value = interner.intern("true");
+
+    assertEquals("true", value);
+    assertSame(value, interner.intern(new String("true")));
+  }
+
+  @Test
+  void intern_differentValues() {
+    var a = interner.intern("M");
+    var b = interner.intern("W");
+
+    assertEquals("M", a);
+    assertEquals("W", b);
+  }
+
+  @Test
+  void intern_longValueIsNotShared() {
+    var value = "01.01.2021 and more";
+    interner.intern(value);
+
+    var other = new String(value);
+
+    assertSame(other, interner.intern(other));
+  }
+
+  @Test
+  void intern_null() {
+    assertNull(interner.intern(null));
+  }
+
+  @Test
+  void intern_isBounded() {
+    var interner = new ValueInterner(1, 10);
+    var first = interner.intern("a");
+    for (int i = 0; i < 100; i++) {
+      interner.intern("value-" + i);
+    }
+
+    var again = interner.intern(new String("a"));
+
+    assertEquals("a", again);
+    assertNotSame(first, again);
+  }
+
+  @Test
+  void createAttribute_sharesValueString() {
+    var a = Util.createAttribute("urn:dktk:dataelement:34:2", "true");
+    var b = Util.createAttribute("urn:dktk:dataelement:33:2", new String("true"));
+
+    assertNotSame(a.getValue(), b.getValue());
+    assertSame(a.getValue().getValue(), b.getValue().getValue());
+    assertEquals("urn:dktk:dataelement:33:2", b.getMdrKey());
+  }
+}
@@ -0,0 +1,286 @@
+package de.samply.store.adapter.fhir.synthetic;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Enumerations.FHIRVersion;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * An embedded stub of a FHIR server serving the data of a {@link SyntheticDataGenerator}.
+ *
+ * <p>It implements the interactions the Store-FHIR-Adapter needs:
+ *
+ * <ul>
+ *   <li>{@code GET metadata}
+ *   <li>{@code GET Library?url=} and {@code GET Measure?url=} with {@code _summary=count} and
+ *   {@code POST Library} and {@code POST Measure}
+ *   <li>{@code POST Measure/$evaluate-measure} returning a subject list of all patients
+ *   <li>{@code GET Patient?_list=} with {@code _summary=count} or paged with {@code _count} and
+ *   {@code _revinclude}
+ *   <li>{@code GET Patient?_id=} with {@code _revinclude}
+ *   <li>{@code GET <type>?patient=} of resources referencing the patients
+ *   <li>{@code POST} of batch bundles with the searches above
+ * </ul>
+ *
+ * <p>Pages are generated on request, so that the number of patients is only limited by time.
+ */
+public class StubFhirServer implements AutoCloseable {
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final String FHIR_JSON = "application/fhir+json";
+  private static final String LIST_ID = "synthetic";
+  private static final int DEFAULT_COUNT = 50;
+
+  private final SyntheticDataGenerator generator;
+  private final int numPatients;
+  private final Set<String> canonicalUrls = ConcurrentHashMap.newKeySet();
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  /**
+   * Creates and starts a new {@code StubFhirServer} on a free port of localhost.
+   *
+   * @param generator   the generator of the data served
+   * @param numPatients the number of patients served
+   * @param threads     the number of threads handling requests
+   * @throws IOException if the server can't be bound
+   */
+  public StubFhirServer(SyntheticDataGenerator generator, int numPatients, int threads)
+      throws IOException {
+    this.generator = generator;
+    this.numPatients = numPatients;
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext("/fhir", this::handle);
+    server.start();
+  }
+
+  /**
+   * Returns the base URL of this server.
+   *
+   * @return the base URL
+   */
+  public String baseUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+  }
+
+  /**
+   * Returns the number of patients served.
+   *
+   * @return the number of patients
+   */
+  public int numPatients() {
+    return numPatients;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      var path = exchange.getRequestURI().getPath().substring("/fhir".length());
+      var query = Optional.ofNullable(exchange.getRequestURI().getRawQuery()).orElse("");
+      if ("POST".equals(exchange.getRequestMethod())) {
+        var body = new String(exchange.getRequestBody().readAllBytes(), UTF_8);
+        post(exchange, path, body);
+      } else {
+        var resource = get(path, query);
+        respond(exchange, resource == null ? 404 : 200,
+            resource == null ? notFound(path) : resource);
+      }
+    } catch (RuntimeException e) {
+      respond(exchange, 500, new OperationOutcome().addIssue(new OperationOutcome
+          .OperationOutcomeIssueComponent().setDiagnostics(e.getMessage())));
+    }
+  }
+
+  private void post(HttpExchange exchange, String path, String body) throws IOException {
+    switch (path) {
+      case "/Measure/$evaluate-measure" -> respond(exchange, 200, evaluateMeasure());
+      case "/Library", "/Measure" -> {
+        var resource = (MetadataResource) parse(body);
+        canonicalUrls.add(resource.getUrl());
+        resource.setId(path.substring(1) + "/" + canonicalUrls.size());
+        exchange.getResponseHeaders().add("Location",
+            baseUrl() + path + "/" + canonicalUrls.size() + "/_history/1");
+        respond(exchange, 201, resource);
+      }
+      case "", "/" -> respond(exchange, 200, batch((Bundle) parse(body)));
+      default -> respond(exchange, 404, notFound(path));
+    }
+  }
+
+  private Bundle batch(Bundle request) {
+    var response = new Bundle().setType(BundleType.BATCHRESPONSE);
+    for (var entry : request.getEntry()) {
+      var parts = entry.getRequest().getUrl().split("\\?", 2);
+      var resource = get("/" + parts[0], parts.length > 1 ? parts[1] : "");
+      var responseEntry = response.addEntry();
+      if (resource == null) {
+        responseEntry.getResponse().setStatus("404");
+      } else {
+        responseEntry.setResource((Resource) resource).getResponse().setStatus("200");
+      }
+    }
+    return response;
+  }
+
+  private IBaseResource get(String path, String rawQuery) {
+    var params = parseQuery(rawQuery);
+    return switch (path) {
+      case "/metadata" -> new CapabilityStatement().setStatus(PublicationStatus.ACTIVE)
+          .setFhirVersion(FHIRVersion._4_0_1);
+      case "/Library", "/Measure" -> new Bundle().setType(BundleType.SEARCHSET)
+          .setTotal(canonicalUrls.contains(params.get("url")) ? 1 : 0);
+      case "/Patient" -> searchPatients(params, rawQuery);
+      default -> params.containsKey("patient")
+          ? referencing(path.substring(1), ids(params.get("patient")))
+          : null;
+    };
+  }
+
+  private Bundle searchPatients(Map<String, String> params, String rawQuery) {
+    if (params.containsKey("_id")) {
+      return page(ids(params.get("_id")), revIncludeTypes(rawQuery));
+    }
+    if (!LIST_ID.equals(params.get("_list"))) {
+      return null;
+    }
+    if ("count".equals(params.get("_summary"))) {
+      return new Bundle().setType(BundleType.SEARCHSET).setTotal(numPatients);
+    }
+    var count = Integer.parseInt(params.getOrDefault("_count", "" + DEFAULT_COUNT));
+    var offset = Integer.parseInt(params.getOrDefault("__offset", "0"));
+    var indices = IntStream.range(offset, Math.min(numPatients, offset + count)).boxed().toList();
+    var bundle = page(indices, revIncludeTypes(rawQuery)).setTotal(numPatients);
+    bundle.addLink().setRelation("self").setUrl(pageUrl(rawQuery, offset));
+    if (offset + count < numPatients) {
+      bundle.addLink().setRelation("next").setUrl(pageUrl(rawQuery, offset + count));
+    }
+    return bundle;
+  }
+
+  private String pageUrl(String rawQuery, int offset) {
+    var query = Arrays.stream(rawQuery.split("&"))
+        .filter(param -> !param.startsWith("__offset="))
+        .collect(Collectors.joining("&"));
+    return baseUrl() + "/Patient?" + query + "&__offset=" + offset;
+  }
+
+  private Bundle page(List<Integer> indices, Set<String> revIncludeTypes) {
+    var bundle = new Bundle().setType(BundleType.SEARCHSET);
+    indices.stream()
+        .flatMap(index -> generator.resources(index).stream())
+        .filter(resource -> resource instanceof Patient
+            || revIncludeTypes.contains(resource.fhirType()))
+        .forEach(resource -> bundle.addEntry().setResource(resource));
+    return bundle;
+  }
+
+  private Bundle referencing(String type, List<Integer> indices) {
+    var bundle = new Bundle().setType(BundleType.SEARCHSET);
+    indices.stream()
+        .flatMap(index -> generator.resources(index).stream())
+        .filter(resource -> type.equals(resource.fhirType()))
+        .forEach(resource -> bundle.addEntry().setResource(resource));
+    return bundle.setTotal(bundle.getEntry().size());
+  }
+
+  private MeasureReport evaluateMeasure() {
+    var report = new MeasureReport();
+    var population = report.getGroupFirstRep().getPopulationFirstRep();
+    population.setCount(numPatients);
+    population.getSubjectResults().setReference("List/" + LIST_ID);
+    return report;
+  }
+
+  private List<Integer> ids(String ids) {
+    return Arrays.stream(ids.split(","))
+        .filter(id -> id.startsWith("p"))
+        .map(id -> Integer.parseInt(id.substring(1)))
+        .filter(index -> index < numPatients)
+        .toList();
+  }
+
+  private static Set<String> revIncludeTypes(String rawQuery) {
+    return Arrays.stream(rawQuery.split("&"))
+        .filter(param -> param.startsWith("_revinclude="))
+        .map(param -> URLDecoder.decode(param.substring("_revinclude=".length()), UTF_8))
+        .map(revInclude -> revInclude.split(":")[0])
+        .collect(Collectors.toSet());
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    var params = new LinkedHashMap<String, String>();
+    for (var param : rawQuery.split("&")) {
+      var parts = param.split("=", 2);
+      if (parts.length == 2) {
+        params.putIfAbsent(URLDecoder.decode(parts[0], UTF_8), URLDecoder.decode(parts[1],
+            UTF_8));
+      }
+    }
+    return params;
+  }
+
+  private static IBaseResource parse(String body) {
+    var parser = body.stripLeading().startsWith("<") ? fhirContext.newXmlParser()
+        : fhirContext.newJsonParser();
+    return parser.parseResource(body);
+  }
+
+  private static OperationOutcome notFound(String path) {
+    return new OperationOutcome().addIssue(new OperationOutcome.OperationOutcomeIssueComponent()
+        .setDiagnostics("Not found: " + path));
+  }
+
+  private static void respond(HttpExchange exchange, int status, IBaseResource resource)
+      throws IOException {
+    var body = fhirContext.newJsonParser().encodeResourceToString(resource).getBytes(UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", FHIR_JSON);
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+  }
+
+  /**
+   * Starts a stub server with typical data on a free port until the JVM is stopped.
+   *
+   * @param args the optional number of patients, 1000 by default
+   * @throws IOException if the server can't be bound
+   */
+  public static void main(String[] args) throws IOException {
+    var numPatients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    var server = new StubFhirServer(new SyntheticDataGenerator(1, SyntheticDataGenerator.Shape
+        .TYPICAL), numPatients, 8);
+    System.out.println("Serving " + numPatients + " patients at " + server.baseUrl());
+  }
+}
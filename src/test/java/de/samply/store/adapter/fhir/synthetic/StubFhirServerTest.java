@@ -0,0 +1,116 @@
+package de.samply.store.adapter.fhir.synthetic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.CREATED;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_XML;
+
+import de.samply.share.model.ccp.QueryResult;
+import de.samply.share.model.common.QueryResultStatistic;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator.Shape;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+/**
+ * Runs the whole loop of creating a request and fetching all result pages against the stub FHIR
+ * server.
+ */
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {"app.store.page-size=20",
+    "app.store.paging.min-page-size=20"})
+class StubFhirServerTest {
+
+  private static final int NUM_PATIENTS = 55;
+
+  private static final StubFhirServer server = startServer();
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  private static StubFhirServer startServer() {
+    try {
+      return new StubFhirServer(new SyntheticDataGenerator(1, Shape.TYPICAL), NUM_PATIENTS, 4);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @DynamicPropertySource
+  static void storeUrl(DynamicPropertyRegistry registry) {
+    registry.add("app.store.url", server::baseUrl);
+  }
+
+  @AfterAll
+  static void stopServer() {
+    server.close();
+  }
+
+  @Test
+  void createRequestAndFetchAllPages() {
+    var created = restTemplate.postForEntity("/rest/teiler/requests", "<query/>", Void.class);
+    assertEquals(CREATED, created.getStatusCode());
+    var requestPath = created.getHeaders().getLocation().getPath();
+
+    var stats = restTemplate.getForObject(requestPath + "/stats", QueryResultStatistic.class);
+    assertEquals(NUM_PATIENTS, stats.getTotalSize());
+    assertEquals(3, stats.getNumberOfPages());
+
+    var patients = 0;
+    for (int page = 0; page < stats.getNumberOfPages(); page++) {
+      var result = restTemplate.getForObject(requestPath + "/result?page=" + page,
+          QueryResult.class);
+      patients += result.getPatient().size();
+    }
+    assertEquals(NUM_PATIENTS, patients);
+  }
+
+  @Test
+  void fetchPageAsJson() {
+    var created = restTemplate.postForEntity("/rest/teiler/requests", "<query/>", Void.class);
+    var requestPath = created.getHeaders().getLocation().getPath();
+
+    var stats = get(requestPath + "/stats", APPLICATION_JSON);
+    assertEquals(APPLICATION_JSON, stats.getHeaders().getContentType());
+    assertTrue(stats.getBody().contains("\"totalSize\":" + NUM_PATIENTS));
+
+    var result = get(requestPath + "/result?page=0", APPLICATION_JSON);
+    assertEquals(APPLICATION_JSON, result.getHeaders().getContentType());
+    assertTrue(result.getBody().startsWith("{\"id\":"));
+
+    var xmlResult = get(requestPath + "/result?page=0", MediaType.ALL);
+    assertEquals(APPLICATION_XML, xmlResult.getHeaders().getContentType());
+  }
+
+  @Test
+  void exportAllPatients() {
+    var created = restTemplate.postForEntity("/rest/teiler/requests", "<query/>", Void.class);
+    var requestPath = created.getHeaders().getLocation().getPath();
+
+    var export = get(requestPath + "/export", MediaType.APPLICATION_NDJSON);
+
+    assertEquals(MediaType.APPLICATION_NDJSON, export.getHeaders().getContentType());
+    var lines = export.getBody().split("\n");
+    assertEquals(NUM_PATIENTS, lines.length);
+    assertTrue(lines[0].startsWith("{\"attribute\":["));
+  }
+
+  private ResponseEntity<String> get(String path, MediaType accept) {
+    var headers = new HttpHeaders();
+    headers.setAccept(List.of(accept));
+    return restTemplate.exchange(path, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+  }
+}
@@ -0,0 +1,260 @@
+package de.samply.store.adapter.fhir.synthetic;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.ClinicalImpression;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Specimen;
+
+/**
+ * A deterministic generator of synthetic oncology data following the DKTK oncology profiles.
+ *
+ * <p>The resources of a patient only depend on the seed, the shape and the index of the patient,
+ * so that pages of any size can be generated reproducibly. Every patient has a vital state,
+ * specimens and conditions. Every condition has histology and TNM observations, clinical
+ * impressions and alternating surgeries and radiation therapies.
+ */
+public class SyntheticDataGenerator {
+
+  private static final String LOINC = "http://loinc.org";
+  private static final String ICD_10_GM = "http://fhir.de/CodeSystem/dimdi/icd-10-gm";
+  private static final String ICD_O_3 = "urn:oid:2.16.840.1.113883.6.43.1";
+  private static final String CS = "http://dktk.dkfz.de/fhir/onco/core/CodeSystem/";
+  private static final String SAMPLE_MATERIAL_TYPE =
+      "https://fhir.bbmri.de/CodeSystem/SampleMaterialType";
+
+  private static final String[] ICD_10_CODES = {"C18.0", "C34.1", "C50.4", "C61", "C71.1"};
+  private static final String[] TOPOGRAPHY_CODES = {"C18.0", "C34.1", "C50.4", "C61.9", "C71.1"};
+  private static final String[] MORPHOLOGY_CODES = {"8140/3", "8070/3", "8500/3", "9440/3"};
+  private static final String[] SAMPLE_TYPES = {"whole-blood", "tissue-frozen", "tissue-ffpe"};
+  private static final String[] TNM_T = {"1", "2", "3", "4"};
+  private static final String[] TNM_N = {"0", "1", "2"};
+  private static final String[] TNM_M = {"0", "1"};
+
+  private final long seed;
+  private final Shape shape;
+
+  /**
+   * Creates a new {@code SyntheticDataGenerator}.
+   *
+   * @param seed  the seed of all random choices
+   * @param shape the number of resources per patient
+   */
+  public SyntheticDataGenerator(long seed, Shape shape) {
+    this.seed = seed;
+    this.shape = shape;
+  }
+
+  /**
+   * Returns the identifier of the patient with {@code index}.
+   *
+   * @param index the index of the patient
+   * @return the identifier
+   */
+  public static String patientId(int index) {
+    return "p" + index;
+  }
+
+  /**
+   * Generates a search set bundle of the patients with index {@code from} (inclusive) to {@code
+   * from + count} (exclusive) together with all resources referencing them.
+   *
+   * @param from  the index of the first patient
+   * @param count the number of patients
+   * @return the bundle
+   */
+  public Bundle bundle(int from, int count) {
+    var bundle = new Bundle().setType(BundleType.SEARCHSET);
+    IntStream.range(from, from + count)
+        .mapToObj(this::resources)
+        .flatMap(List::stream)
+        .forEach(resource -> bundle.addEntry()
+            .setFullUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+            .setResource(resource));
+    return bundle;
+  }
+
+  /**
+   * Generates the patient with {@code index} followed by all resources referencing it.
+   *
+   * @param index the index of the patient
+   * @return the resources
+   */
+  public List<Resource> resources(int index) {
+    var random = new Random(seed * 31 + index);
+    var id = patientId(index);
+    var patientRef = new Reference("Patient/" + id);
+    var resources = new ArrayList<Resource>();
+
+    var patient = new Patient();
+    patient.setId(id);
+    patient.addIdentifier().setValue("GLOBAL-" + id).getType()
+        .addCoding(new Coding(CS + "PseudonymArtCS", "Global", null));
+    patient.setGender(random.nextBoolean() ? AdministrativeGender.MALE
+        : AdministrativeGender.FEMALE);
+    patient.setBirthDateElement(new DateType(1930 + random.nextInt(60), random.nextInt(12),
+        1 + random.nextInt(28)));
+    resources.add(patient);
+
+    var vitalState = new Observation();
+    vitalState.setId(id + "-vital-state");
+    vitalState.setStatus(Observation.ObservationStatus.FINAL);
+    vitalState.setCode(loinc("75186-7"));
+    vitalState.setSubject(patientRef);
+    vitalState.setEffective(dateTime(random));
+    vitalState.setValue(new CodeableConcept(new Coding(CS + "VitalstatusCS",
+        random.nextInt(4) == 0 ? "verstorben" : "lebend", null)));
+    resources.add(vitalState);
+
+    for (int s = 0; s < shape.specimensPerPatient(); s++) {
+      var specimen = new Specimen();
+      specimen.setId(id + "-specimen-" + s);
+      specimen.setSubject(patientRef);
+      specimen.setType(new CodeableConcept(new Coding(SAMPLE_MATERIAL_TYPE,
+          pick(random, SAMPLE_TYPES), null)));
+      specimen.getCollection().setCollected(dateTime(random));
+      resources.add(specimen);
+    }
+
+    for (int c = 0; c < shape.conditionsPerPatient(); c++) {
+      resources.addAll(condition(random, id + "-condition-" + c, patientRef));
+    }
+    return resources;
+  }
+
+  private List<Resource> condition(Random random, String id, Reference patientRef) {
+    var resources = new ArrayList<Resource>();
+    var conditionRef = new Reference("Condition/" + id);
+
+    var condition = new Condition();
+    condition.setId(id);
+    condition.setSubject(patientRef);
+    condition.setCode(new CodeableConcept(new Coding(ICD_10_GM, pick(random, ICD_10_CODES),
+        null).setVersion("2019")));
+    condition.addBodySite(new CodeableConcept(new Coding(ICD_O_3, pick(random, TOPOGRAPHY_CODES),
+        null).setVersion("31")));
+    condition.setOnset(dateTime(random));
+    resources.add(condition);
+
+    var observations = new ArrayList<Observation>();
+    for (int o = 0; o < shape.observationsPerCondition(); o++) {
+      var observation = o % 2 == 0
+          ? histology(random, id + "-histology-" + o, patientRef, conditionRef)
+          : tnm(random, id + "-tnm-" + o, patientRef, conditionRef);
+      if (o % 2 == 0) {
+        condition.addEvidence().addDetail(new Reference("Observation/" + observation.getId()));
+      }
+      observations.add(observation);
+    }
+    resources.addAll(observations);
+
+    for (int i = 0; i < shape.clinicalImpressionsPerCondition(); i++) {
+      var impression = new ClinicalImpression();
+      impression.setId(id + "-progress-" + i);
+      impression.setStatus(ClinicalImpression.ClinicalImpressionStatus.COMPLETED);
+      impression.setSubject(patientRef);
+      impression.addProblem(conditionRef);
+      impression.setEffective(dateTime(random));
+      observations.forEach(observation -> impression.addFinding()
+          .setItemReference(new Reference("Observation/" + observation.getId())));
+      resources.add(impression);
+    }
+
+    for (int p = 0; p < shape.proceduresPerCondition(); p++) {
+      var procedure = new Procedure();
+      procedure.setId(id + "-procedure-" + p);
+      procedure.setStatus(Procedure.ProcedureStatus.COMPLETED);
+      procedure.setSubject(patientRef);
+      procedure.addReasonReference(conditionRef);
+      procedure.setCategory(new CodeableConcept(new Coding(CS + "SYSTTherapieartCS",
+          p % 2 == 0 ? "OP" : "ST", null)));
+      procedure.setOutcome(new CodeableConcept(new Coding(
+          CS + "LokaleBeurteilungResidualstatusCS", random.nextBoolean() ? "R0" : "R1", null)));
+      procedure.setPerformed(dateTime(random));
+      resources.add(procedure);
+    }
+    return resources;
+  }
+
+  private static Observation histology(Random random, String id, Reference patientRef,
+      Reference conditionRef) {
+    var histology = new Observation();
+    histology.setId(id);
+    histology.setStatus(Observation.ObservationStatus.FINAL);
+    histology.setCode(loinc("59847-4"));
+    histology.setSubject(patientRef);
+    histology.addFocus(conditionRef);
+    histology.setEffective(dateTime(random));
+    histology.setValue(new CodeableConcept(new Coding(ICD_O_3, pick(random, MORPHOLOGY_CODES),
+        null).setVersion("32")));
+    return histology;
+  }
+
+  private static Observation tnm(Random random, String id, Reference patientRef,
+      Reference conditionRef) {
+    var tnm = new Observation();
+    tnm.setId(id);
+    tnm.setStatus(Observation.ObservationStatus.FINAL);
+    tnm.setCode(loinc("21908-9"));
+    tnm.setSubject(patientRef);
+    tnm.addFocus(conditionRef);
+    tnm.setEffective(dateTime(random));
+    tnm.setValue(new CodeableConcept(new Coding(CS + "UiccstadiumCS", "III", null)
+        .setVersion("8")));
+    tnm.addComponent().setCode(loinc("21905-5")).setValue(new CodeableConcept(
+        new Coding(CS + "TNMTCS", pick(random, TNM_T), null)));
+    tnm.addComponent().setCode(loinc("21906-3")).setValue(new CodeableConcept(
+        new Coding(CS + "TNMNCS", pick(random, TNM_N), null)));
+    tnm.addComponent().setCode(loinc("21907-1")).setValue(new CodeableConcept(
+        new Coding(CS + "TNMMCS", pick(random, TNM_M), null)));
+    return tnm;
+  }
+
+  private static CodeableConcept loinc(String code) {
+    return new CodeableConcept(new Coding(LOINC, code, null));
+  }
+
+  private static DateTimeType dateTime(Random random) {
+    return new DateTimeType(new Date(946684800000L + (long) random.nextInt(7000) * 86400000L));
+  }
+
+  private static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+
+  /**
+   * The number of resources generated per patient.
+   *
+   * @param conditionsPerPatient            the number of conditions per patient
+   * @param observationsPerCondition        the number of histology and TNM observations per
+   *                                        condition, alternating
+   * @param clinicalImpressionsPerCondition the number of clinical impressions per condition
+   * @param proceduresPerCondition          the number of procedures per condition, alternating
+   *                                        between surgery and radiation therapy
+   * @param specimensPerPatient             the number of specimens per patient
+   */
+  public record Shape(int conditionsPerPatient, int observationsPerCondition,
+                      int clinicalImpressionsPerCondition, int proceduresPerCondition,
+                      int specimensPerPatient) {
+
+    /**
+     * A typical shape with two conditions per patient.
+     */
+    public static final Shape TYPICAL = new Shape(2, 2, 1, 2, 1);
+  }
+}
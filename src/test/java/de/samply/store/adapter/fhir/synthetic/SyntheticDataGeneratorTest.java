@@ -0,0 +1,60 @@
+package de.samply.store.adapter.fhir.synthetic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.store.adapter.fhir.StoreFhirAdapterApplication;
+import de.samply.store.adapter.fhir.model.RootNodeBuilder;
+import de.samply.store.adapter.fhir.service.mapping.MappingPlan;
+import de.samply.store.adapter.fhir.synthetic.SyntheticDataGenerator.Shape;
+import org.junit.jupiter.api.Test;
+
+class SyntheticDataGeneratorTest {
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  @Test
+  void bundle_isDeterministic() {
+    var parser = fhirContext.newJsonParser();
+
+    var bundle1 = new SyntheticDataGenerator(1, Shape.TYPICAL).bundle(0, 10);
+    var bundle2 = new SyntheticDataGenerator(1, Shape.TYPICAL).bundle(0, 10);
+    var bundle3 = new SyntheticDataGenerator(2, Shape.TYPICAL).bundle(0, 10);
+
+    assertEquals(parser.encodeResourceToString(bundle1), parser.encodeResourceToString(bundle2));
+    assertNotEquals(parser.encodeResourceToString(bundle1),
+        parser.encodeResourceToString(bundle3));
+  }
+
+  @Test
+  void bundle_pagesAreIndependentOfPageSize() {
+    var generator = new SyntheticDataGenerator(1, Shape.TYPICAL);
+    var parser = fhirContext.newJsonParser();
+
+    var whole = generator.bundle(0, 4);
+    var secondHalf = generator.bundle(2, 2);
+
+    assertEquals(parser.encodeResourceToString(whole.getEntry().get(whole.getEntry().size()
+            - secondHalf.getEntry().size()).getResource()),
+        parser.encodeResourceToString(secondHalf.getEntryFirstRep().getResource()));
+  }
+
+  @Test
+  void bundle_isMapped() {
+    var bundle = new SyntheticDataGenerator(1, Shape.TYPICAL).bundle(0, 5);
+    var rootNode = RootNodeBuilder.fromBundle(bundle);
+
+    var result = new StoreFhirAdapterApplication().mappingServiceFactory(fhirContext,
+        MappingPlan.standard(fhirContext))
+        .apply(rootNode.resources()).map(rootNode.patients());
+
+    assertEquals(5, result.getPatient().size());
+    var patient = result.getPatient().get(0);
+    assertEquals(2, patient.getContainer().stream()
+        .filter(c -> "Diagnosis".equals(c.getDesignation())).count());
+    assertTrue(patient.getContainer().stream()
+        .anyMatch(c -> "Sample".equals(c.getDesignation())));
+  }
+}